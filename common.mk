@@ -12,7 +12,14 @@ SYSLOGGER_BRANCH=$(build-major).$(build-minor)
 # JAVA_HOME         the base of the JDK used to build
 A2_OUTPUT = $(SDK_BUILD_BASE)/a2
 JVM ?= $(JAVA_HOME)/bin/java
+JAVAC ?= $(JAVA_HOME)/bin/javac
 JAVADOC ?= $(JAVA_HOME)/bin/javadoc
+JAR ?= $(JAVA_HOME)/bin/jar
+# Runtime and specification versions of the JVM running the tools, which are compiled for it
+JVM_VERSIONS := $(shell $(JVM) -XshowSettings:properties -version 2>&1 | sed -n 's/^ *java\.\(runtime\|specification\)\.version = //p')
+
+# Precompiled Argeo Build tools and their AppCDS archives
+ARGEO_BUILD_TOOLS_BASE = $(SDK_BUILD_BASE)/argeo-build
 
 # GNU defaults
 prefix ?= /usr/local
@@ -55,3 +62,25 @@ define LF
 
 $(null)
 endef
+
+# Short hash of the content of a list of files, used as a cache key
+# (empty if no files are provided, so that cat does not wait on stdin)
+files-hash = $(if $(strip $(1)),$(shell cat $(1) | sha256sum | cut -c 1-16))
+
+# Short hash of the source of a tool and of the JVM running it, used as the key of the compiled tool
+tool-hash = $(shell (cat $(1); echo '$(JVM_VERSIONS)') | sha256sum | cut -c 1-16)
+
+# Compile an Argeo Build tool into a jar (1: source file, 2: classpath, 3: target jar), for the JVM running it
+# Failures are ignored, since the tools can still be run directly from their source,
+# but they are recorded, so that compilation is not retried until the source, the JDK or the classpath change
+compile-tool-failed = $(3).$(shell echo '$(2)' | sha256sum | cut -c 1-16).failed
+define compile-tool
+	@mkdir -p $(dir $(3))
+	@rm -rf $(3).classes $(3).tmp
+	@if [ ! -f $(compile-tool-failed) ]; then \
+	 $(JAVAC) -nowarn $(if $(JVM_VERSIONS),--release $(lastword $(JVM_VERSIONS))) -d $(3).classes -cp $(2) $(1) \
+	 && $(JAR) --create --file $(3).tmp -C $(3).classes . \
+	 && mv $(3).tmp $(3) \
+	 || (touch $(compile-tool-failed); echo "Cannot compile $(notdir $(1)), it will be run from its source"); fi
+	@rm -rf $(3).classes $(3).tmp
+endef
@@ -24,7 +24,15 @@ LOGGER_JAR ?= $(firstword $(foreach base, $(A2_BASE), $(wildcard $(base)/log/sys
 BNDLIB_JAR ?= $(firstword $(foreach base, $(A2_BASE), $(wildcard $(base)/org.argeo.tp.build/biz.aQute.bndlib.$(BNDLIB_BRANCH).jar)))
 
 # Internal variables
-ARGEO_MAKE = $(JVM) -cp $(LOGGER_JAR):$(ECJ_JAR):$(BNDLIB_JAR) $(ARGEO_BUILD_BASE)src/org/argeo/build/Make.java
+MAKE_CLASSPATH = $(LOGGER_JAR):$(ECJ_JAR):$(BNDLIB_JAR)
+MAKE_SRC = $(ARGEO_BUILD_BASE)src/org/argeo/build/Make.java
+# Make.java compiled once for this source and this JVM, used when available
+MAKE_JAR := $(ARGEO_BUILD_TOOLS_BASE)/lib/argeo-make-$(call tool-hash, $(MAKE_SRC)).jar
+# AppCDS archive, used if it has been generated with 'osgi-cds' for this jar and exactly this classpath
+MAKE_CDS_ARCHIVE := $(ARGEO_BUILD_TOOLS_BASE)/cds/$(basename $(notdir $(MAKE_JAR)))-$(call files-hash, $(LOGGER_JAR) $(ECJ_JAR) $(BNDLIB_JAR)).jsa
+ARGEO_MAKE = $(JVM) $(if $(wildcard $(MAKE_JAR)),\
+ $(if $(wildcard $(MAKE_CDS_ARCHIVE)),-XX:SharedArchiveFile=$(MAKE_CDS_ARCHIVE)) -cp $(MAKE_JAR):$(MAKE_CLASSPATH) org.argeo.build.Make,\
+ -cp $(MAKE_CLASSPATH) $(MAKE_SRC))
 JAVADOC_SRCS = $(foreach bundle, $(BUNDLES), $(bundle)/src)
 ifneq ($(NO_MANIFEST_COPY),true)
 MANIFESTS = $(foreach bundle, $(BUNDLES), $(bundle)/META-INF/MANIFEST.MF)
@@ -42,7 +50,7 @@ osgi: $(BUILD_BASE)/built $(MANIFESTS)
 
 # Actual build (compilation + bundle packaging)
 $(BUILD_BASE)/built : BUNDLES_TO_BUILD = $(strip $(subst $(abspath $(BUILD_BASE))/,, $(subst to-build,, $?)))
-$(BUILD_BASE)/built : $(TODOS)
+$(BUILD_BASE)/built : $(TODOS) | $(MAKE_JAR)
 	@echo "| A2 category  : $(A2_CATEGORY)"
 	@echo "| Bundles      : $(BUNDLES_TO_BUILD)"
 	@echo "| Dependencies : $(DEP_CATEGORIES)"
@@ -52,7 +60,7 @@ $(BUILD_BASE)/built : $(TODOS)
 	 --category $(A2_CATEGORY) --bundles $(BUNDLES_TO_BUILD)
 	@touch $(BUILD_BASE)/built 
 
-$(A2_OUTPUT)/%.$(major).$(minor).jar : $(BUILD_BASE)/$$(subst $(A2_CATEGORY)/,,$$*)/to-build
+$(A2_OUTPUT)/%.$(major).$(minor).jar : $(BUILD_BASE)/$$(subst $(A2_CATEGORY)/,,$$*)/to-build | $(MAKE_JAR)
 	$(ARGEO_MAKE) \
 	 all --a2-bases $(A2_BASE) --dep-categories $(DEP_CATEGORIES) \
 	 --category $(A2_CATEGORY) --bundles $(subst $(A2_CATEGORY)/,,$*)
@@ -101,8 +109,26 @@ jni-install:
 jni-uninstall:
 	$(foreach dir, $(JNIDIRS), $(MAKE) -C $(dir) uninstall;)
 
+# Compile Make.java once, instead of at every call
+$(MAKE_JAR):
+	$(call compile-tool,$(MAKE_SRC),$(MAKE_CLASSPATH),$@)
+
+# AppCDS archive of the Make.java toolchain, dumped after a training build of all the bundles
+# (written to a scratch output, so that the actual output and its timestamps are not affected)
+osgi-cds: $(MAKE_CDS_ARCHIVE)
+
+$(MAKE_CDS_ARCHIVE): | $(MAKE_JAR)
+	@mkdir -p $(dir $@)
+	@rm -rf $@.training
+	ARGEO_BUILD_OUTPUT=$@.training \
+	 $(JVM) -XX:ArchiveClassesAtExit=$@ -cp $(MAKE_JAR):$(MAKE_CLASSPATH) org.argeo.build.Make \
+	 all --a2-bases $(A2_BASE) --dep-categories $(DEP_CATEGORIES) \
+	 --category $(A2_CATEGORY) --bundles $(BUNDLES) \
+	 || (rm -rf $@ $@.training; exit 1)
+	@rm -rf $@.training
+
 # Javadoc generation
 javadoc: $(BUILD_BASE)/built
 	$(JAVADOC) -noindex -quiet -Xmaxwarns 1 -d $(BUILD_BASE)/api --source-path $(subst $(space),$(pathsep),$(strip $(JAVADOC_SRCS))) -subpackages $(JAVADOC_PACKAGES)
 
-.PHONY: osgi manifests javadoc osgi-all osgi-clean osgi-install osgi-uninstall jni-all jni-clean jni-install jni-uninstall
+.PHONY: osgi manifests javadoc osgi-all osgi-cds osgi-clean osgi-install osgi-uninstall jni-all jni-clean jni-install jni-uninstall
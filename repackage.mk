@@ -11,7 +11,16 @@ LOGGER_JAR ?= $(firstword $(foreach base, $(A2_BASE), $(wildcard $(base)/log/sys
 BNDLIB_JAR ?= $(firstword $(foreach base, $(A2_BASE), $(wildcard $(base)/org.argeo.tp.build/biz.aQute.bndlib.$(BNDLIB_BRANCH).jar)))
 
 # Internal variables
-ARGEO_REPACKAGE = $(JVM) -cp $(LOGGER_JAR):$(BNDLIB_JAR) $(ARGEO_BUILD_BASE)src/org/argeo/build/Repackage.java
+# (absolute, as the jar, so that the AppCDS archive matches them whatever the working directory of the training)
+REPACKAGE_CLASSPATH = $(abspath $(LOGGER_JAR)):$(abspath $(BNDLIB_JAR))
+REPACKAGE_SRC = $(ARGEO_BUILD_BASE)src/org/argeo/build/Repackage.java
+# Repackage.java compiled once for this source and this JVM, used when available
+REPACKAGE_JAR := $(abspath $(ARGEO_BUILD_TOOLS_BASE)/lib/argeo-repackage-$(call tool-hash, $(REPACKAGE_SRC)).jar)
+# AppCDS archive, used if it has been generated with 'cds' for this jar and exactly this classpath
+REPACKAGE_CDS_ARCHIVE := $(ARGEO_BUILD_TOOLS_BASE)/cds/$(basename $(notdir $(REPACKAGE_JAR)))-$(call files-hash, $(LOGGER_JAR) $(BNDLIB_JAR)).jsa
+ARGEO_REPACKAGE = $(JVM) $(if $(wildcard $(REPACKAGE_JAR)),\
+ $(if $(wildcard $(REPACKAGE_CDS_ARCHIVE)),-XX:SharedArchiveFile=$(REPACKAGE_CDS_ARCHIVE)) -cp $(REPACKAGE_JAR):$(REPACKAGE_CLASSPATH) org.argeo.build.Repackage,\
+ -cp $(REPACKAGE_CLASSPATH) $(REPACKAGE_SRC))
 TODOS_REPACKAGE = $(foreach category, $(CATEGORIES),$(BUILD_BASE)/$(category)/to-repackage) 
 BUILD_BASE = $(SDK_BUILD_BASE)/$(shell basename $(SDK_SRC_BASE))
 REPACKAGED_CATEGORIES = $(foreach category, $(CATEGORIES),$(A2_OUTPUT)/$(category))
@@ -46,7 +55,7 @@ uninstall:
 # We use .SECONDEXPANSION and CATEGORIES_TO_REPACKAGE instead of directly CATEGORIES
 # so that we don't repackage a category if it hasn't changed
 $(BUILD_BASE)/repackaged : CATEGORIES_TO_REPACKAGE = $(subst $(abspath $(BUILD_BASE))/,, $(subst to-repackage,, $?))
-$(BUILD_BASE)/repackaged : $(TODOS_REPACKAGE)
+$(BUILD_BASE)/repackaged : $(TODOS_REPACKAGE) | $(REPACKAGE_JAR)
 	@$(ARGEO_REPACKAGE) $(A2_OUTPUT) $(CATEGORIES_TO_REPACKAGE)
 	@touch $(BUILD_BASE)/repackaged
 
@@ -55,6 +64,42 @@ $(BUILD_BASE)/%/to-repackage : $$(shell find % -type f )
 	@mkdir -p $(dir $@) 
 	@touch $@
 
+# Compile Repackage.java once, instead of at every call
+$(REPACKAGE_JAR):
+	$(call compile-tool,$(REPACKAGE_SRC),$(REPACKAGE_CLASSPATH),$@)
+
+# Download the origins of all the categories to the origin store, e.g. before building with ARGEO_BUILD_OFFLINE=true
+seed: | $(REPACKAGE_JAR)
+	@ARGEO_BUILD_SEED=true $(ARGEO_REPACKAGE) $(A2_OUTPUT) $(CATEGORIES)
+
+# Worker of a distributed repackaging, sharing ARGEO_BUILD_WORK_DIR (and the A2 output) with the build which plans
+# it ('all' with the same ARGEO_BUILD_WORK_DIR), possibly on other machines, until this build has collected the results
+worker: | $(REPACKAGE_JAR)
+	$(if $(ARGEO_BUILD_WORK_DIR),,$(error ARGEO_BUILD_WORK_DIR must be set to the work directory shared with the build))
+	@ARGEO_BUILD_WORKER=true $(ARGEO_REPACKAGE) $(A2_OUTPUT) $(CATEGORIES)
+
+# AppCDS archive of the Repackage.java toolchain, dumped after a training repackaging of a small fixture: the
+# bndlib jar, read through a file: URI (so that there is no network access), in a scratch directory used as home
+# (so that the caches and the actual output are not affected), without the stores (so that bnd and the zip
+# classes are actually used)
+cds: $(REPACKAGE_CDS_ARCHIVE)
+
+CDS_TRAINING_CATEGORY = org.argeo.build.cds
+CDS_TRAINING_ORIGIN = file://$(abspath $(BNDLIB_JAR))
+
+$(REPACKAGE_CDS_ARCHIVE): | $(REPACKAGE_JAR)
+	@mkdir -p $(dir $@)
+	@rm -rf $@.training
+	@mkdir -p $@.training/descriptors/$(CDS_TRAINING_CATEGORY)
+	@printf 'Argeo-Origin-M2: org.argeo.build.cds:training:1.0.0\nArgeo-Origin-URI: $(CDS_TRAINING_ORIGIN)\n%s\n%s\n' \
+	 'Argeo-Origin-Sources-URI: $(CDS_TRAINING_ORIGIN)' 'SPDX-License-Identifier: Apache-2.0' \
+	 > $@.training/descriptors/$(CDS_TRAINING_CATEGORY)/org.argeo.build.cds.training.bnd
+	cd $@.training/descriptors && ARGEO_BUILD_OUTPUT_STORE=none ARGEO_BUILD_BND_CACHE=none \
+	 $(JVM) -XX:ArchiveClassesAtExit=$(abspath $@) -Duser.home=$(abspath $@.training)/home \
+	 -cp $(REPACKAGE_JAR):$(REPACKAGE_CLASSPATH) org.argeo.build.Repackage ../a2 $(CDS_TRAINING_CATEGORY) \
+	 || (rm -rf $@ $@.training; exit 1)
+	@rm -rf $@.training
+
 clean:
 	@$(foreach category, $(CATEGORIES), rm -rf $(BUILD_BASE)/$(category))
 	@rm -f $(BUILD_BASE)/repackaged
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.lang.management.ManagementFactory;
@@ -24,22 +25,30 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
-import java.util.StringJoiner;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.Deflater;
+import java.util.zip.ZipException;
 
 import org.eclipse.jdt.core.compiler.CompilationProgress;
 
@@ -91,6 +100,33 @@ public class Make {
 	 */
 	private final static String VAR_BRANCH = "BRANCH";
 
+	/**
+	 * Environment variable overriding the build output base set in
+	 * {@link #SDK_MK}, typically so that a training build does not write to the
+	 * actual output.
+	 */
+	private final static String ENV_ARGEO_BUILD_OUTPUT = "ARGEO_BUILD_OUTPUT";
+
+	/** Environment variable on whether operations should be parallelised. */
+	private final static String ENV_ARGEO_BUILD_SEQUENTIAL = "ARGEO_BUILD_SEQUENTIAL";
+
+	/**
+	 * Environment variable on a directory where the compiled classes are staged,
+	 * typically on a RAM-backed file system such as <code>/dev/shm</code>.
+	 */
+	private final static String ENV_ARGEO_BUILD_STAGING = "ARGEO_BUILD_STAGING";
+	/**
+	 * Environment variable on the maximum size of the staging area, in bytes or
+	 * with a k, m or g suffix (default is half of the usable space).
+	 */
+	private final static String ENV_ARGEO_BUILD_STAGING_MAX = "ARGEO_BUILD_STAGING_MAX";
+
+	/**
+	 * Environment variable on whether the entries of the bundles should be
+	 * ordered for the runtime.
+	 */
+	private final static String ENV_ARGEO_BUILD_RUNTIME_LAYOUT = "ARGEO_BUILD_RUNTIME_LAYOUT";
+
 	/** Name of the local-specific Makefile (sdk.mk). */
 	final static String SDK_MK = "sdk.mk";
 	/** Name of the branch definition Makefile (branch.mk). */
@@ -118,6 +154,14 @@ public class Make {
 	final boolean sourceBundles;
 	/** Whether common legal files should be included. */
 	final boolean noSdkLegal;
+	/** Whether compilation and packaging should be pipelined (default) or not. */
+	final boolean sequential;
+	/** Whether the entries of the bundles are ordered for the runtime. */
+	final boolean runtimeLayout;
+	/** Where the compiled classes are staged, or null if they are kept in the build base. */
+	final StagingArea staging;
+	/** The staged directories of the compiled classes, per bundle. */
+	private final Map<String, Path> stagedBins = new HashMap<>();
 
 	/** Constructor initialises the base directories. */
 	public Make() throws IOException {
@@ -127,6 +171,12 @@ public class Make {
 		noSdkLegal = Boolean.parseBoolean(System.getenv(ENV_NO_SDK_LEGAL));
 		if (noSdkLegal)
 			logger.log(Level.INFO, "SDK legal files will NOT be included");
+		sequential = Boolean.parseBoolean(System.getenv(ENV_ARGEO_BUILD_SEQUENTIAL));
+		if (sequential)
+			logger.log(Level.INFO, "Build will be sequential");
+		runtimeLayout = Boolean.parseBoolean(System.getenv(ENV_ARGEO_BUILD_RUNTIME_LAYOUT));
+		if (runtimeLayout)
+			logger.log(Level.INFO, "Bundles will be laid out for the runtime");
 
 		execDirectory = Paths.get(System.getProperty("user.dir"));
 		Path sdkMkP = findSdkMk(execDirectory);
@@ -150,21 +200,57 @@ public class Make {
 		}
 		argeoBuildBase = argeoBuildBaseT;
 
-		sdkBuildBase = Paths.get(context.computeIfAbsent(VAR_SDK_BUILD_BASE, (key) -> {
-			throw new IllegalStateException(key + " not found");
-		})).toAbsolutePath();
+		String outputFromEnv = System.getenv(ENV_ARGEO_BUILD_OUTPUT);
+		sdkBuildBase = Paths.get(outputFromEnv != null ? outputFromEnv
+				: context.computeIfAbsent(VAR_SDK_BUILD_BASE, (key) -> {
+					throw new IllegalStateException(key + " not found");
+				})).toAbsolutePath();
 		buildBase = sdkBuildBase.resolve(sdkSrcBase.getFileName());
 		a2Output = sdkBuildBase.resolve("a2");
 		a2srcOutput = sdkBuildBase.resolve("a2.src");
+
+		String stagingDir = System.getenv(ENV_ARGEO_BUILD_STAGING);
+		staging = stagingDir != null
+				? new StagingArea(Paths.get(stagingDir), "make", System.getenv(ENV_ARGEO_BUILD_STAGING_MAX))
+				: null;
+		if (staging != null) // also when failing, as RAM is scarcer than disk
+			Runtime.getRuntime().addShutdownHook(new Thread(staging::close, "Delete staging area"));
 	}
 
 	/*
 	 * ACTIONS
 	 */
-	/** Compile and create the bundles in one go. */
+	/**
+	 * Compile and create the bundles in one go. If there are multiple bundles, the
+	 * stages are pipelined, so that a bundle is analysed and packaged while the next
+	 * ones are being compiled.
+	 */
 	void all(Map<String, List<String>> options) throws IOException {
-		compile(options);
-		bundle(options);
+		List<String> bundles = options.get("--bundles");
+		Objects.requireNonNull(bundles, "--bundles argument must be set");
+		// the compiled classes are only needed until packaged, within this action
+		if (staging != null)
+			for (String bundle : bundles) {
+				Path bundleSrc = execDirectory.resolve(bundle).resolve("src");
+				if (!Files.exists(bundleSrc))
+					continue;
+				// class files are roughly as large as their sources
+				long expectedSize;
+				try (Stream<Path> files = Files.walk(bundleSrc)) {
+					expectedSize = files.filter(Files::isRegularFile).mapToLong((f) -> f.toFile().length()).sum();
+				}
+				Path bin = staging.reserve(Paths.get(bundle).getFileName().toString(), expectedSize);
+				if (bin != null)
+					stagedBins.put(bundle, bin);
+				else
+					logger.log(DEBUG, () -> "Staging area is full, compiling " + bundle + " in the build base");
+			}
+		if (sequential || bundles.size() <= 1) {
+			compile(options);
+			bundle(options);
+		} else {
+			pipeline(options);
+		}
 	}
 
 	/** Compile all the bundles which have been passed via the --bundle argument. */
@@ -174,6 +260,137 @@ public class Make {
 		if (bundles.isEmpty())
 			return;
 
+		List<String> classPath = a2ClassPath(options);
+		boolean success = compile(bundles, classPath, new PrintWriter(System.out), new PrintWriter(System.err),
+				new MakeCompilationProgress());
+		if (!success) // kill the process if compilation failed
+			throw new IllegalStateException("Compilation failed");
+	}
+
+	/**
+	 * Compile the bundles, analyse and package them as a pipeline. Bundles are
+	 * compiled in small batches of consecutive bundles, in the order they were
+	 * provided, each batch against the bundles compiled before, so that the
+	 * bundles which are already compiled can be analysed by BND and written as
+	 * jars while the next ones are being compiled. The number of bundles waiting
+	 * to be packaged is bounded. The jars of the bundles being built, which may be
+	 * left in the A2 output by a previous build, are not used for compilation. If
+	 * a batch cannot be compiled on its own (typically because it depends on a
+	 * bundle provided after it), the remaining bundles are compiled together and
+	 * packaged afterwards, the errors of that batch being reported if this fails
+	 * as well.
+	 */
+	void pipeline(Map<String, List<String>> options) throws IOException {
+		List<String> bundles = options.get("--bundles");
+		String category = singleArg(options, "--category", true);
+		String branch = readBranch();
+
+		for (String bundle : bundles)
+			if (!Files.exists(execDirectory.resolve(bundle)))
+				throw new IllegalArgumentException("Bundle " + bundle + " not found in " + execDirectory);
+
+		// the bundles being built must not be compiled against their previous jars
+		Set<String> bundleNames = new HashSet<>();
+		for (String bundle : bundles)
+			bundleNames.add(Paths.get(bundle).getFileName().toString());
+		List<String> a2ClassPath = new ArrayList<>();
+		for (String jar : a2ClassPath(options))
+			if (!bundleNames.contains(new A2Jar(Paths.get(jar)).name))
+				a2ClassPath.add(jar);
+		List<String> compiledClassPath = new ArrayList<>();
+
+		long begin = System.currentTimeMillis();
+		// back-pressure on compilation, so that not too many bundles wait to be packaged
+		int packagingSlotCount = Runtime.getRuntime().availableProcessors();
+		Semaphore packagingSlots = new Semaphore(packagingSlotCount);
+		List<CompletableFuture<Void>> toDos = new ArrayList<>();
+		List<String> remaining = new ArrayList<>(bundles);
+		// the errors of the batch which could not be compiled on its own, if any
+		String batchErrors = null;
+		RuntimeException failure = null;
+		try {
+			// compiled in batches, since the compiler scans the whole class path each time
+			batches: for (int i = 0; i < bundles.size(); i = i + packagingSlotCount) {
+				List<String> batch = bundles.subList(i, Math.min(i + packagingSlotCount, bundles.size()));
+				List<String> javaBundles = batch.stream()
+						.filter((bundle) -> Files.exists(execDirectory.resolve(bundle).resolve("src")))
+						.collect(Collectors.toList());
+				// compiled bundles have priority over the a2 dependencies
+				List<String> classPath = new ArrayList<>(compiledClassPath);
+				classPath.addAll(a2ClassPath);
+				StringWriter compilerOut = new StringWriter();
+				StringWriter compilerErr = new StringWriter();
+				boolean success = compile(javaBundles, classPath, new PrintWriter(compilerOut),
+						new PrintWriter(compilerErr), null);
+				if (!success) {
+					batchErrors = "Cannot compile " + batch + " on their own:\n" + compilerErr;
+					logger.log(DEBUG,
+							() -> "Cannot compile " + batch + " on their own, compiling remaining bundles together");
+					break batches;
+				}
+				System.out.print(compilerOut);
+				System.err.print(compilerErr);
+
+				for (String bundle : javaBundles)
+					compiledClassPath.add(binDirectory(bundle).toString());
+				for (String bundle : batch) {
+					remaining.remove(bundle);
+
+					packagingSlots.acquire();
+					toDos.add(CompletableFuture.supplyAsync(() -> {
+						try {
+							return analyseBundle(branch, bundle, category);
+						} catch (IOException e) {
+							throw new RuntimeException("Analysis of " + bundle + " failed", e);
+						}
+					}).thenAcceptAsync((analysis) -> {
+						try {
+							writeBundle(analysis);
+						} catch (IOException e) {
+							throw new RuntimeException("Packaging of " + bundle + " failed", e);
+						}
+					}).whenComplete((v, e) -> packagingSlots.release()));
+				}
+			}
+		} catch (InterruptedException e) {
+			failure = new IllegalStateException("Pipeline was interrupted", e);
+			throw failure;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			try {
+				CompletableFuture.allOf(toDos.toArray(new CompletableFuture<?>[0])).join();
+			} catch (CompletionException e) {
+				if (failure == null)
+					throw e;
+				failure.addSuppressed(e);// the original failure is not hidden
+			}
+		}
+		logger.log(DEBUG, "Pipelined compilation and packaging took " + (System.currentTimeMillis() - begin) + " ms");
+
+		if (!remaining.isEmpty()) {
+			Map<String, List<String>> remainingOptions = new HashMap<>(options);
+			remainingOptions.put("--bundles", remaining);
+			// previously compiled bundles may be required
+			List<String> classPath = new ArrayList<>(compiledClassPath);
+			classPath.addAll(a2ClassPath);
+			boolean success = compile(remaining, classPath, new PrintWriter(System.out), new PrintWriter(System.err),
+					new MakeCompilationProgress());
+			if (!success) {// kill the process if compilation failed
+				if (batchErrors != null)
+					logger.log(ERROR, batchErrors);
+				throw new IllegalStateException("Compilation failed");
+			}
+			bundle(remainingOptions);
+		}
+	}
+
+	/**
+	 * The jars of the A2 dependency categories, keeping only the highest
+	 * major.minor of a given bundle.
+	 */
+	List<String> a2ClassPath(Map<String, List<String>> options) throws IOException {
 		List<String> a2Categories = options.getOrDefault("--dep-categories", new ArrayList<>());
 		List<String> a2Bases = options.getOrDefault("--a2-bases", new ArrayList<>());
 		a2Bases = a2Bases.stream().distinct().collect(Collectors.toList());// remove duplicates
@@ -181,12 +398,7 @@ public class Make {
 			a2Bases.add(a2Output.toString());
 		}
 
-		List<String> compilerArgs = new ArrayList<>();
-
-		Path ecjArgs = argeoBuildBase.resolve("ecj.args");
-		compilerArgs.add("@" + ecjArgs);
-
-		// classpath
+		List<String> classPath = new ArrayList<>();
 		if (!a2Categories.isEmpty()) {
 			// We will keep only the highest major.minor
 			// and order by bundle name, for predictability
@@ -216,12 +428,29 @@ public class Make {
 				}
 			}
 
-			StringJoiner classPath = new StringJoiner(File.pathSeparator);
 			for (Iterator<A2Jar> it = a2Jars.values().iterator(); it.hasNext();)
 				classPath.add(it.next().path.toString());
+		}
+		return classPath;
+	}
+
+	/**
+	 * Compile the provided bundles with a single invocation of the compiler.
+	 * 
+	 * @param progress can be <code>null</code>
+	 * @return whether compilation was successful (or not necessary)
+	 */
+	boolean compile(List<String> bundles, List<String> classPath, PrintWriter out, PrintWriter err,
+			CompilationProgress progress) throws IOException {
+		List<String> compilerArgs = new ArrayList<>();
+
+		Path ecjArgs = argeoBuildBase.resolve("ecj.args");
+		compilerArgs.add("@" + ecjArgs);
 
+		// classpath
+		if (!classPath.isEmpty()) {
 			compilerArgs.add("-cp");
-			compilerArgs.add(classPath.toString());
+			compilerArgs.add(String.join(File.pathSeparator, classPath));
 //			compilerArgs.add("--module-path");
 //			compilerArgs.add(modulePath.toString());
 		}
@@ -248,14 +477,14 @@ public class Make {
 			sb.append("[-d");
 			compilerArgs.add(sb.toString());
 			sb = new StringBuilder();
-			sb.append(buildBase.resolve(bundle).resolve("bin"));
+			sb.append(binDirectory(bundle));
 			sb.append("]");
 			compilerArgs.add(sb.toString());
 			atLeastOneBundleToCompile = true;
 		}
 
 		if (!atLeastOneBundleToCompile)
-			return;
+			return true;
 
 		if (logger.isLoggable(INFO))
 			compilerArgs.add("-time");
@@ -266,11 +495,8 @@ public class Make {
 				logger.log(DEBUG, arg);
 		}
 
-		boolean success = org.eclipse.jdt.core.compiler.batch.BatchCompiler.compile(
-				compilerArgs.toArray(new String[compilerArgs.size()]), new PrintWriter(System.out),
-				new PrintWriter(System.err), new MakeCompilationProgress());
-		if (!success) // kill the process if compilation failed
-			throw new IllegalStateException("Compilation failed");
+		return org.eclipse.jdt.core.compiler.batch.BatchCompiler.compile(
+				compilerArgs.toArray(new String[compilerArgs.size()]), out, err, progress);
 	}
 
 	/** Package the bundles. */
@@ -287,14 +513,7 @@ public class Make {
 			throw new IllegalArgumentException("One and only one --category must be specified");
 		String category = categories.get(0);
 
-		final String branch;
-		Path branchMk = sdkSrcBase.resolve(BRANCH_MK);
-		if (Files.exists(branchMk)) {
-			Map<String, String> branchVariables = readMakefileVariables(branchMk);
-			branch = branchVariables.get(VAR_BRANCH);
-		} else {
-			branch = null;
-		}
+		final String branch = readBranch();
 
 		long begin = System.currentTimeMillis();
 		// create jars in parallel
@@ -308,11 +527,22 @@ public class Make {
 				}
 			}));
 		}
-		CompletableFuture.allOf(toDos.toArray(new CompletableFuture[toDos.size()])).join();
+		CompletableFuture.allOf(toDos.toArray(new CompletableFuture<?>[0])).join();
 		long duration = System.currentTimeMillis() - begin;
 		logger.log(DEBUG, "Packaging took " + duration + " ms");
 	}
 
+	/** The branch defined in {@link #BRANCH_MK}, or <code>null</code>. */
+	String readBranch() throws IOException {
+		Path branchMk = sdkSrcBase.resolve(BRANCH_MK);
+		if (Files.exists(branchMk)) {
+			Map<String, String> branchVariables = readMakefileVariables(branchMk);
+			return branchVariables.get(VAR_BRANCH);
+		} else {
+			return null;
+		}
+	}
+
 	/** Install or uninstall bundles and native output. */
 	void install(Map<String, List<String>> options, boolean uninstall) throws IOException {
 		final String LIB_ = "lib/";
@@ -436,8 +666,19 @@ public class Make {
 		}
 	}
 
+	/** The directory of the compiled classes of a bundle. */
+	Path binDirectory(String bundle) {
+		Path staged = stagedBins.get(bundle);
+		return staged != null ? staged : buildBase.resolve(bundle).resolve("bin");
+	}
+
 	/** Package a single bundle. */
 	void createBundle(String branch, String bundle, String category) throws IOException {
+		writeBundle(analyseBundle(branch, bundle, category));
+	}
+
+	/** Compute the MANIFEST of a compiled bundle. */
+	BundleAnalysis analyseBundle(String branch, String bundle, String category) throws IOException {
 		final Path bundleSourceBase;
 		if (!Files.exists(execDirectory.resolve(bundle))) {
 			logger.log(WARNING,
@@ -446,7 +687,6 @@ public class Make {
 		} else {
 			bundleSourceBase = execDirectory.resolve(bundle);
 		}
-		Path srcP = bundleSourceBase.resolve("src");
 
 		Path compiled = buildBase.resolve(bundle);
 		String bundleSymbolicName = bundleSourceBase.getFileName().toString();
@@ -477,7 +717,7 @@ public class Make {
 			properties.put("Bundle-SymbolicName", bundleSymbolicName);
 
 		// Calculate MANIFEST
-		Path binP = compiled.resolve("bin");
+		Path binP = binDirectory(bundle);
 		if (!Files.exists(binP))
 			Files.createDirectories(binP);
 		Manifest manifest;
@@ -495,6 +735,22 @@ public class Make {
 		String minor = properties.getProperty("minor");
 		Objects.requireNonNull(minor, "'minor' must be set");
 
+		return new BundleAnalysis(bundle, category, bundleSourceBase, manifest, major, minor);
+	}
+
+	/** Write the MANIFEST and the jar of an analysed bundle. */
+	void writeBundle(BundleAnalysis analysis) throws IOException {
+		String bundle = analysis.bundle;
+		String category = analysis.category;
+		Path bundleSourceBase = analysis.bundleSourceBase;
+		Manifest manifest = analysis.manifest;
+		String major = analysis.major;
+		String minor = analysis.minor;
+		Path srcP = bundleSourceBase.resolve("src");
+		Path compiled = buildBase.resolve(bundle);
+		Path binP = binDirectory(bundle);
+		String bundleSymbolicName = bundleSourceBase.getFileName().toString();
+
 		// Write manifest
 		Path manifestP = compiled.resolve("META-INF/MANIFEST.MF");
 		Files.createDirectories(manifestP.getParent());
@@ -518,12 +774,15 @@ public class Make {
 
 		try (JarOutputStream jarOut = new JarOutputStream(Files.newOutputStream(jarP), manifest)) {
 			jarOut.setLevel(Deflater.DEFAULT_COMPRESSION);
+			// entries are collected first, so that they can be written in the runtime layout
+			Map<String, Path> entries = runtimeLayout
+					? new TreeMap<>(runtimeLayout(manifest.getMainAttributes().getValue("Bundle-Activator")))
+					: new LinkedHashMap<>();
 			// add all classes first
 			Files.walkFileTree(binP, new SimpleFileVisitor<Path>() {
 				@Override
 				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-					jarOut.putNextEntry(new JarEntry(binP.relativize(file).toString()));
-					Files.copy(file, jarOut);
+					addEntry(entries, binP.relativize(file).toString(), file);
 					return FileVisitResult.CONTINUE;
 				}
 			});
@@ -555,9 +814,7 @@ public class Make {
 					if (sourceBundles && file.getFileName().toString().endsWith(".map"))
 						return FileVisitResult.CONTINUE;
 
-					JarEntry entry = new JarEntry(relativeP.toString());
-					jarOut.putNextEntry(entry);
-					Files.copy(file, jarOut);
+					addEntry(entries, relativeP.toString(), file);
 					return FileVisitResult.CONTINUE;
 				}
 			});
@@ -579,9 +836,7 @@ public class Make {
 						if (file.getFileName().toString().endsWith(".java")
 								|| file.getFileName().toString().endsWith(".class"))
 							return FileVisitResult.CONTINUE;
-						jarOut.putNextEntry(new JarEntry(srcP.relativize(file).toString()));
-						if (!Files.isDirectory(file))
-							Files.copy(file, jarOut);
+						addEntry(entries, srcP.relativize(file).toString(), file);
 						return FileVisitResult.CONTINUE;
 					}
 				});
@@ -590,15 +845,15 @@ public class Make {
 				// TODO add effective BND, Eclipse project file, etc., in order to be able to
 				// repackage
 				if (!sourceBundles) {
-					copySourcesToJar(srcP, jarOut, "OSGI-OPT/src/");
+					addSources(srcP, "OSGI-OPT/src/", entries);
 				}
 			}
 
 			// add legal notices and licenses
-			for (Path p : listLegalFilesToInclude(bundleSourceBase).values()) {
-				jarOut.putNextEntry(new JarEntry(p.getFileName().toString()));
-				Files.copy(p, jarOut);
-			}
+			for (Path p : listLegalFilesToInclude(bundleSourceBase).values())
+				addEntry(entries, p.getFileName().toString(), p);
+
+			writeEntries(entries, jarOut);
 		}
 
 		if (sourceBundles) {// create separate sources jar
@@ -610,6 +865,43 @@ public class Make {
 		}
 	}
 
+	/**
+	 * The order of the entries in the runtime layout: the MANIFEST first, then the
+	 * other metadata (<code>META-INF</code>, <code>OSGI-INF</code>), then the classes and resources grouped by package,
+	 * starting with the package of the activator, then the files at the root
+	 * (typically legal notices), and the embedded sources last.
+	 * 
+	 * @param activator the class name of the bundle activator, or null
+	 */
+	static Comparator<String> runtimeLayout(String activator) {
+		String activatorPackage = activator != null ? packageDirectory(activator.strip().replace('.', '/') + ".class")
+				: null;
+		return Comparator.comparingInt(Make::layoutGroup)
+				.thenComparing((name) -> !packageDirectory(name).equals(activatorPackage))
+				.thenComparing(Make::packageDirectory).thenComparing(Comparator.naturalOrder());
+	}
+
+	private static int layoutGroup(String name) {
+		if (name.equalsIgnoreCase("META-INF/"))
+			return 0;
+		else if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME))
+			return 1;
+		else if (name.startsWith("META-INF/") || name.startsWith("OSGI-INF/"))
+			return 2;
+		else if (name.startsWith("OSGI-OPT/"))
+			return 5;
+		else if (name.indexOf('/') < 0 && !name.endsWith(".class"))
+			return 4;
+		else
+			return 3;
+	}
+
+	/** The directory of an entry, or an empty string if it is at the root. */
+	static String packageDirectory(String name) {
+		int index = name.lastIndexOf('/');
+		return index < 0 ? "" : name.substring(0, index);
+	}
+
 	/** Create a separate bundle containing the sources. */
 	void createSourceBundle(String bundleSymbolicName, Manifest manifest, Path bundleSourceBase, Path srcP,
 			Path srcJarP) throws IOException {
@@ -688,17 +980,37 @@ public class Make {
 	 */
 	/** Add sources to a jar file */
 	void copySourcesToJar(Path srcP, JarOutputStream srcJarOut, String prefix) throws IOException {
+		Map<String, Path> entries = new LinkedHashMap<>();
+		addSources(srcP, prefix, entries);
+		writeEntries(entries, srcJarOut);
+	}
+
+	/** Adds the sources to the entries of a jar, under this prefix. */
+	void addSources(Path srcP, String prefix, Map<String, Path> entries) throws IOException {
 		Files.walkFileTree(srcP, new SimpleFileVisitor<Path>() {
 			@Override
 			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-				srcJarOut.putNextEntry(new JarEntry(prefix + srcP.relativize(file).toString()));
-				if (!Files.isDirectory(file))
-					Files.copy(file, srcJarOut);
+				addEntry(entries, prefix + srcP.relativize(file).toString(), file);
 				return FileVisitResult.CONTINUE;
 			}
 		});
 	}
 
+	/** Adds an entry to be written to a jar, failing as the jar would if it already exists. */
+	static void addEntry(Map<String, Path> entries, String name, Path file) throws ZipException {
+		if (entries.putIfAbsent(name, file) != null)
+			throw new ZipException("duplicate entry: " + name);
+	}
+
+	/** Writes the entries to a jar, in the order of the map. */
+	static void writeEntries(Map<String, Path> entries, JarOutputStream jarOut) throws IOException {
+		for (Map.Entry<String, Path> entry : entries.entrySet()) {
+			jarOut.putNextEntry(new JarEntry(entry.getKey()));
+			if (!Files.isDirectory(entry.getValue()))
+				Files.copy(entry.getValue(), jarOut);
+		}
+	}
+
 	/**
 	 * Recursively find the base source directory (which contains the
 	 * <code>{@value #SDK_MK}</code> file).
@@ -803,6 +1115,116 @@ public class Make {
 		}
 	}
 
+	/** A compiled bundle whose MANIFEST has been computed. */
+	static class BundleAnalysis {
+		final String bundle;
+		final String category;
+		final Path bundleSourceBase;
+		final Manifest manifest;
+		final String major;
+		final String minor;
+
+		BundleAnalysis(String bundle, String category, Path bundleSourceBase, Manifest manifest, String major,
+				String minor) {
+			this.bundle = bundle;
+			this.category = category;
+			this.bundleSourceBase = bundleSourceBase;
+			this.manifest = manifest;
+			this.major = major;
+			this.minor = minor;
+		}
+	}
+
+	/**
+	 * A staging area for the compiled classes, typically on a RAM-backed file
+	 * system, so that they are not written to disk only to be packaged. It is
+	 * private to this process and deleted when closed, the areas left by processes
+	 * which are not running anymore being deleted when a new one is created. The
+	 * expected sizes of the staged directories are reserved against a maximum,
+	 * directories which would not fit being kept in the build base instead.
+	 */
+	static class StagingArea implements AutoCloseable {
+		private final Path base;
+		private final long maxSize;
+		private long reserved = 0;
+
+		StagingArea(Path root, String prefix, String maxSize) throws IOException {
+			Files.createDirectories(root);
+			try (DirectoryStream<Path> previous = Files.newDirectoryStream(root, prefix + "-*")) {
+				for (Path dir : previous) {
+					String pid = dir.getFileName().toString().substring(prefix.length() + 1);
+					try {
+						if (ProcessHandle.of(Long.parseLong(pid)).isPresent())
+							continue;
+					} catch (NumberFormatException e) {
+						continue;
+					}
+					logger.log(WARNING, "Staging area " + dir + " left by a previous build, deleting it...");
+					deleteDirectory(dir);
+				}
+			}
+			base = Files.createDirectories(root.resolve(prefix + "-" + ProcessHandle.current().pid()));
+			this.maxSize = maxSize != null ? parseSize(maxSize) : Files.getFileStore(base).getUsableSpace() / 2;
+			logger.log(DEBUG, "Compiled classes will be staged in " + base);
+		}
+
+		/**
+		 * Reserves space for a new directory.
+		 * 
+		 * @return the staged directory, or null if it would not fit
+		 */
+		synchronized Path reserve(String name, long expectedSize) throws IOException {
+			if (reserved + expectedSize > maxSize || Files.getFileStore(base).getUsableSpace() < expectedSize)
+				return null;
+			reserved += expectedSize;
+			return Files.createTempDirectory(base, name + ".");
+		}
+
+		@Override
+		public void close() {
+			try {
+				deleteDirectory(base);
+			} catch (IOException e) {
+				logger.log(ERROR, "Cannot delete staging area " + base, e);
+			}
+		}
+
+		/** Parses a size in bytes, possibly with a k, m or g suffix. */
+		static long parseSize(String size) {
+			String str = size.trim().toLowerCase();
+			int shift = switch (str.charAt(str.length() - 1)) {
+			case 'k' -> 10;
+			case 'm' -> 20;
+			case 'g' -> 30;
+			default -> 0;
+			};
+			if (shift != 0)
+				str = str.substring(0, str.length() - 1);
+			return Long.parseLong(str) << shift;
+		}
+
+		/** Recursively deletes a directory. */
+		static void deleteDirectory(Path path) throws IOException {
+			if (!Files.exists(path))
+				return;
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+					if (e != null)
+						throw e;
+					Files.delete(directory);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+	}
+
 	/**
 	 * An ECJ {@link CompilationProgress} printing a progress bar while compiling.
 	 */
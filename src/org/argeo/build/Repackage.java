@@ -6,17 +6,17 @@ import static java.lang.System.Logger.Level.INFO;
 import static java.lang.System.Logger.Level.TRACE;
 import static java.lang.System.Logger.Level.WARNING;
 import static java.nio.file.FileVisitResult.CONTINUE;
-import static java.nio.file.StandardOpenOption.APPEND;
-import static java.nio.file.StandardOpenOption.CREATE;
 import static java.util.jar.Attributes.Name.MANIFEST_VERSION;
 import static org.argeo.build.Repackage.ManifestHeader.ARGEO_DO_NOT_MODIFY;
 import static org.argeo.build.Repackage.ManifestHeader.ARGEO_ORIGIN_M2;
 import static org.argeo.build.Repackage.ManifestHeader.ARGEO_ORIGIN_M2_MERGE;
 import static org.argeo.build.Repackage.ManifestHeader.ARGEO_ORIGIN_M2_REPO;
 import static org.argeo.build.Repackage.ManifestHeader.ARGEO_ORIGIN_NO_METADATA_GENERATION;
+import static org.argeo.build.Repackage.ManifestHeader.ARGEO_ORIGIN_P2;
 import static org.argeo.build.Repackage.ManifestHeader.ARGEO_ORIGIN_SOURCES_URI;
 import static org.argeo.build.Repackage.ManifestHeader.ARGEO_ORIGIN_URI;
 import static org.argeo.build.Repackage.ManifestHeader.AUTOMATIC_MODULE_NAME;
+import static org.argeo.build.Repackage.ManifestHeader.BUNDLE_ACTIVATOR;
 import static org.argeo.build.Repackage.ManifestHeader.BUNDLE_LICENSE;
 import static org.argeo.build.Repackage.ManifestHeader.BUNDLE_SYMBOLICNAME;
 import static org.argeo.build.Repackage.ManifestHeader.BUNDLE_VERSION;
@@ -26,21 +26,48 @@ import static org.argeo.build.Repackage.ManifestHeader.IMPORT_PACKAGE;
 import static org.argeo.build.Repackage.ManifestHeader.REQUIRE_BUNDLE;
 import static org.argeo.build.Repackage.ManifestHeader.SPDX_LICENSE_IDENTIFIER;
 
-import java.io.BufferedWriter;
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.lang.System.Logger;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystem;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
@@ -48,27 +75,78 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringJoiner;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import aQute.bnd.osgi.About;
 import aQute.bnd.osgi.Analyzer;
+import aQute.bnd.osgi.EmbeddedResource;
 import aQute.bnd.osgi.Jar;
+import aQute.bnd.osgi.Resource;
 
 /** Repackages existing jar files into OSGi bundles in an A2 repository. */
 public class Repackage {
@@ -82,6 +160,67 @@ public class Repackage {
 	/** Environment variable on whether operations should be parallelised. */
 	final static String ENV_ARGEO_BUILD_SEQUENTIAL = "ARGEO_BUILD_SEQUENTIAL";
 
+	/** Environment variable on how many downloads can run in parallel. */
+	final static String ENV_ARGEO_BUILD_DOWNLOADS = "ARGEO_BUILD_DOWNLOADS";
+	/**
+	 * Environment variable on the location of the origin store, where downloaded
+	 * files are kept by content (default is ~/.cache/argeo/build/origin-store).
+	 */
+	final static String ENV_ARGEO_BUILD_ORIGIN_STORE = "ARGEO_BUILD_ORIGIN_STORE";
+	/**
+	 * Environment variable on the location of the output store, where the
+	 * repackaged bundles are shared with other builds (default is
+	 * ~/.cache/argeo/build/a2), or <code>none</code> in order not to use it. It
+	 * must be on the same file system as the outputs, since they are hard linked.
+	 */
+	final static String ENV_ARGEO_BUILD_OUTPUT_STORE = "ARGEO_BUILD_OUTPUT_STORE";
+	/**
+	 * Environment variable on the location of the cache of the bnd analyses
+	 * (default is ~/.cache/argeo/build/bnd), or <code>none</code> in order not to
+	 * use it.
+	 */
+	final static String ENV_ARGEO_BUILD_BND_CACHE = "ARGEO_BUILD_BND_CACHE";
+	/**
+	 * Environment variable on whether the build should only use the files already
+	 * in the local caches or in the origin store, without network access.
+	 */
+	final static String ENV_ARGEO_BUILD_OFFLINE = "ARGEO_BUILD_OFFLINE";
+	/**
+	 * Environment variable on whether the origins of the categories should only be
+	 * downloaded to the origin store, without repackaging, typically before an
+	 * offline build. Origins already in the local caches are added to the store.
+	 */
+	final static String ENV_ARGEO_BUILD_SEED = "ARGEO_BUILD_SEED";
+
+	/**
+	 * Environment variable on the work directory shared by the processes of a
+	 * distributed build.
+	 */
+	final static String ENV_ARGEO_BUILD_WORK_DIR = "ARGEO_BUILD_WORK_DIR";
+	/**
+	 * Environment variable on whether this process is only a worker of a
+	 * distributed build, the build being planned and reported by the coordinator.
+	 */
+	final static String ENV_ARGEO_BUILD_WORKER = "ARGEO_BUILD_WORKER";
+	/**
+	 * Environment variable on whether a unit described identically in several
+	 * native categories (<code>lib/&lt;os&gt;/&lt;arch&gt;/...</code>) should be
+	 * processed once for all of them.
+	 */
+	final static String ENV_ARGEO_BUILD_NATIVE_FAN_OUT = "ARGEO_BUILD_NATIVE_FAN_OUT";
+	/**
+	 * Environment variable on the heap memory which concurrent tasks can use for
+	 * the content of the archives, in bytes or with a k, m or g suffix. When set,
+	 * nested archives are extracted to temporary files rather than read in memory,
+	 * and the bnd analyses wait until their classes fit in the budget.
+	 */
+	final static String ENV_ARGEO_BUILD_MEMORY = "ARGEO_BUILD_MEMORY";
+	/**
+	 * Environment variable on whether the entries of the bundles should be
+	 * ordered for the runtime.
+	 */
+	final static String ENV_ARGEO_BUILD_RUNTIME_LAYOUT = "ARGEO_BUILD_RUNTIME_LAYOUT";
+
 	/** Whether repackaging should run in parallel (default) or sequentially. */
 	final static boolean sequential = Boolean.parseBoolean(System.getenv(ENV_ARGEO_BUILD_SEQUENTIAL));
 
@@ -97,42 +236,85 @@ public class Repackage {
 		Path descriptorsBase = Paths.get(".").toAbsolutePath().normalize();
 		Repackage factory = new Repackage(a2Base, descriptorsBase);
 
-		List<CompletableFuture<Void>> toDos = new ArrayList<>();
-		for (int i = 1; i < args.length; i++) {
-			Path categoryPath = Paths.get(args[i]);
-			factory.cleanPreviousFailedBuild(categoryPath);
-			if (sequential) // sequential processing happens here
-				factory.processCategory(categoryPath);
-			else
-				toDos.add(CompletableFuture.runAsync(() -> factory.processCategory(categoryPath)));
+		List<Path> categoryPaths = new ArrayList<>();
+		for (int i = 1; i < args.length; i++)
+			categoryPaths.add(Paths.get(args[i]));
+
+		if (Boolean.parseBoolean(System.getenv(ENV_ARGEO_BUILD_SEED))) {
+			factory.seed(categoryPaths);
+			return;
+		}
+
+		String workDir = System.getenv(ENV_ARGEO_BUILD_WORK_DIR);
+		if (workDir != null) {
+			boolean worker = Boolean.parseBoolean(System.getenv(ENV_ARGEO_BUILD_WORKER));
+			try {
+				factory.processDistributed(new WorkQueue(Paths.get(workDir).toAbsolutePath()), categoryPaths,
+						!worker);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot use work directory " + workDir, e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (worker) {// the summary is logged by the coordinator
+				factory.reportMetrics(Summary.merge(), "metrics." + ProcessHandle.current().pid() + ".json");
+				return;
+			}
+		} else {
+			ExecutorService prefetchExecutor = null;
+			if (!sequential) // start all downloads upfront
+				prefetchExecutor = factory.prefetch(categoryPaths);
+
+			factory.planNativeFanOut(categoryPaths);
+			List<CompletableFuture<Void>> toDos = new ArrayList<>();
+			for (Path categoryPath : categoryPaths) {
+				factory.cleanPreviousFailedBuild(categoryPath);
+				CompletableFuture<Void> toDo = factory.processCategory(categoryPath);
+				if (sequential) // sequential processing has already happened, fail early
+					toDo.join();
+				toDos.add(toDo);
+			}
+			CompletableFuture.allOf(toDos.toArray(new CompletableFuture<?>[0])).join();
+			if (prefetchExecutor != null)
+				prefetchExecutor.shutdownNow();
 		}
-		if (!sequential)// parallel processing
-			CompletableFuture.allOf(toDos.toArray(new CompletableFuture[toDos.size()])).join();
 
 		// Summary
+		Summary summary = Summary.merge();
 		StringBuilder sb = new StringBuilder();
-		for (String licenseId : licensesUsed.keySet())
-			for (String name : licensesUsed.get(licenseId))
+		for (String licenseId : summary.licensesUsed.keySet())
+			for (String name : summary.licensesUsed.get(licenseId))
 				sb.append((licenseId.equals("") ? "Proprietary" : licenseId) + "\t\t" + name + "\n");
 		logger.log(INFO, "# License summary:\n" + sb);
+		if (!summary.sourcesMissing.isEmpty()) {
+			StringBuilder missing = new StringBuilder();
+			for (String artifact : summary.sourcesMissing.keySet())
+				missing.append(artifact + "\t\t" + summary.sourcesMissing.get(artifact) + "\n");
+			logger.log(WARNING, "# Sources not available:\n" + missing);
+		}
+		factory.reportMetrics(summary, METRICS_JSON);
 	}
 
-	/** Deletes remaining sub directories. */
+	/**
+	 * Deletes the partial jars remaining from a previous failed build. Jars are not
+	 * expanded to directories anymore, and sub directories of a category are
+	 * legitimate native categories.
+	 */
 	void cleanPreviousFailedBuild(Path categoryPath) {
-		Path outputCategoryPath = a2Base.resolve(categoryPath);
-		if (!Files.exists(outputCategoryPath))
-			return;
-		// clean previous failed build
-		try {
-			for (Path subDir : Files.newDirectoryStream(outputCategoryPath, (d) -> Files.isDirectory(d))) {
-				if (Files.exists(subDir)) {
-					logger.log(WARNING, "Bundle dir " + subDir
+		for (Path base : new TreeSet<>(List.of(a2Base, a2SrcBase))) {
+			Path outputCategoryPath = base.resolve(categoryPath);
+			if (!Files.exists(outputCategoryPath))
+				continue;
+			try (DirectoryStream<Path> partials = Files.newDirectoryStream(outputCategoryPath, "*.jar*.tmp")) {
+				for (Path partial : partials) {
+					logger.log(WARNING, "Partial jar " + partial
 							+ " already exists, probably from a previous failed build, deleting it...");
-					deleteDirectory(subDir);
+					Files.deleteIfExists(partial);
 				}
+			} catch (IOException e) {
+				logger.log(ERROR, "Cannot clean previous build", e);
 			}
-		} catch (IOException e) {
-			logger.log(ERROR, "Cannot clean previous build", e);
 		}
 	}
 
@@ -153,6 +335,8 @@ public class Repackage {
 		REQUIRE_BUNDLE("Require-Bundle"), //
 		/** OSGi path to embedded jar. */
 		BUNDLE_CLASSPATH("Bundle-Classpath"), //
+		/** OSGi bundle activator. */
+		BUNDLE_ACTIVATOR("Bundle-Activator"), //
 		// Java
 		/** Java module name. */
 		AUTOMATIC_MODULE_NAME("Automatic-Module-Name"), //
@@ -201,6 +385,16 @@ public class Repackage {
 		 * (jar, archive, code repository, etc.).
 		 */
 		ARGEO_ORIGIN_SOURCES_URI("Argeo-Origin-Sources-URI"), //
+		/**
+		 * Eclipse p2 repository from which only the required bundles are downloaded,
+		 * instead of a whole archive. The patterns of includes.properties and
+		 * excludes.properties are then matched against the file names of the bundles
+		 * (<code>&lt;id&gt;_&lt;version&gt;.jar</code>), so that only their last
+		 * segment is used: <code>eclipse/plugins/org.eclipse.swt_*.jar</code> and
+		 * <code>org.eclipse.swt_*.jar</code> are equivalent, and a pattern cannot
+		 * select bundles by directory.
+		 */
+		ARGEO_ORIGIN_P2("Argeo-Origin-P2"), //
 		;
 
 		final String headerName;
@@ -253,13 +447,22 @@ public class Repackage {
 	final static String README_REPACKAGED = "README.repackaged";
 
 	// cache
-	/** Summary of all license seen during the repackaging. */
-	final static Map<String, Set<String>> licensesUsed = new TreeMap<>();
+	/** Name of the metrics report, written next to the incremental records. */
+	final static String METRICS_JSON = "metrics.json";
 
 	/** Directory where to download archives */
 	final Path originBase;
 	/** Directory where to download Maven artifacts */
 	final Path mavenBase;
+	/** Directory where to cache the results of the BND analysis, or null */
+	final Path bndCacheBase;
+	/**
+	 * Repackaged outputs shared by the builds of the various branches, or null if
+	 * they are not shared
+	 */
+	final Path storeBase;
+	/** Whether the outputs can be hard linked to the store. */
+	private volatile boolean storeLinkable = true;
 
 	/** A2 repository base for binary bundles */
 	final Path a2Base;
@@ -269,30 +472,97 @@ public class Repackage {
 	final Path a2LibBase;
 	/** Location of the descriptors driving the packaging */
 	final Path descriptorsBase;
+	/** Fingerprints of the inputs of the previous builds, next to the A2 base */
+	final Path fingerprintsBase;
+	/** Hash of the code of Repackage, null if not available */
+	final String codeVersion = codeVersion();
 	/** URIs of archives to download */
 	final Properties uris = new Properties();
+	/**
+	 * Pinned checksums of the files to download. Key is the file name (last
+	 * segment of the URI), value is <code>&lt;algorithm&gt;:&lt;hex value&gt;</code>
+	 */
+	final Properties checksums = new Properties();
 	/** Mirrors for archive download. Key is URI prefix, value list of base URLs */
 	final Map<String, List<String>> mirrors = new HashMap<String, List<String>>();
 
 	/** Whether sources should be packaged separately */
 	final boolean separateSources;
 
+	/** Whether the entries of the bundles are ordered for the runtime */
+	final boolean runtimeLayout;
+	/** Whether identical native units are processed once for all their categories */
+	final boolean nativeFanOut;
+	/** The native units processed together with a unit, by this unit. */
+	private final Map<Path, List<Path>> nativeSiblings = new HashMap<>();
+	/** The native units processed together with another unit. */
+	private final Set<Path> fannedOut = new HashSet<>();
+	/**
+	 * The fingerprints of a distributed build, by descriptor, until the outputs of
+	 * their unit have been reported, or null if the build is not distributed.
+	 */
+	private volatile Map<Path, Queue<Fingerprint>> distributedFingerprints;
+
+	/** Downloads to the local caches */
+	final Downloader downloader;
+	/** The memory available to concurrent tasks, or null if it is not limited. */
+	final MemoryBudget memoryBudget;
+
+	/**
+	 * Runs the repackaging tasks, either in a work-stealing pool, or directly in
+	 * the calling thread if the build is sequential.
+	 */
+	final Executor executor = sequential ? Runnable::run : ForkJoinPool.commonPool();
+
 	/** Constructor initialises the various variables */
 	public Repackage(Path a2Base, Path descriptorsBase) {
 		separateSources = Boolean.parseBoolean(System.getenv(ENV_SOURCE_BUNDLES));
 		if (separateSources)
 			logger.log(INFO, "Sources will be packaged separately");
+		runtimeLayout = Boolean.parseBoolean(System.getenv(ENV_ARGEO_BUILD_RUNTIME_LAYOUT));
+		if (runtimeLayout)
+			logger.log(INFO, "Bundles will be laid out for the runtime");
+		nativeFanOut = Boolean.parseBoolean(System.getenv(ENV_ARGEO_BUILD_NATIVE_FAN_OUT));
+		if (nativeFanOut)
+			logger.log(INFO, "Native units will be processed once for all their categories");
 
 		Objects.requireNonNull(a2Base);
 		Objects.requireNonNull(descriptorsBase);
+		String maxDownloads = System.getenv(ENV_ARGEO_BUILD_DOWNLOADS);
+		String originStore = System.getenv(ENV_ARGEO_BUILD_ORIGIN_STORE);
+		boolean offline = Boolean.parseBoolean(System.getenv(ENV_ARGEO_BUILD_OFFLINE));
+		if (offline)
+			logger.log(INFO, "Build will be offline");
+		this.downloader = new Downloader(Downloader.newHttpClient(),
+				maxDownloads != null ? Integer.parseInt(maxDownloads) : Downloader.DEFAULT_MAX_DOWNLOADS,
+				originStore != null ? Paths.get(originStore).toAbsolutePath()
+						: Paths.get(System.getProperty("user.home"), ".cache", "argeo/build/origin-store"),
+				Paths.get(System.getProperty("user.home"), ".cache", "argeo/build/locks"), offline);
+		String memory = System.getenv(ENV_ARGEO_BUILD_MEMORY);
+		this.memoryBudget = memory != null ? new MemoryBudget(parseSize(memory)) : null;
+		if (memoryBudget != null)
+			logger.log(INFO, "Archive content in memory will be limited to " + memory);
 		this.originBase = Paths.get(System.getProperty("user.home"), ".cache", "argeo/build/origin");
 		this.mavenBase = Paths.get(System.getProperty("user.home"), ".m2", "repository");
+		String bndCache = System.getenv(ENV_ARGEO_BUILD_BND_CACHE);
+		if ("none".equals(bndCache))
+			this.bndCacheBase = null;
+		else
+			this.bndCacheBase = bndCache != null ? Paths.get(bndCache).toAbsolutePath()
+					: Paths.get(System.getProperty("user.home"), ".cache", "argeo/build/bnd");
+		String outputStore = System.getenv(ENV_ARGEO_BUILD_OUTPUT_STORE);
+		if ("none".equals(outputStore))
+			this.storeBase = null;
+		else
+			this.storeBase = outputStore != null ? Paths.get(outputStore).toAbsolutePath()
+					: Paths.get(System.getProperty("user.home"), ".cache", "argeo/build/a2");
 
 		// TODO define and use a build base
 		this.a2Base = a2Base;
 		this.a2SrcBase = separateSources ? a2Base.getParent().resolve(a2Base.getFileName() + ".src") : a2Base;
 		this.a2LibBase = a2Base.resolve("lib");
 		this.descriptorsBase = descriptorsBase;
+		this.fingerprintsBase = a2Base.getParent().resolve(a2Base.getFileName() + ".repackage");
 		if (!Files.exists(this.descriptorsBase))
 			throw new IllegalArgumentException(this.descriptorsBase + " does not exist");
 
@@ -306,6 +576,16 @@ public class Repackage {
 			}
 		}
 
+		// pinned checksums
+		Path checksumsPath = this.descriptorsBase.resolve("checksums.properties");
+		if (Files.exists(checksumsPath)) {
+			try (InputStream in = Files.newInputStream(checksumsPath)) {
+				checksums.load(in);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot load " + checksumsPath, e);
+			}
+		}
+
 		// Eclipse mirrors
 		Path eclipseMirrorsPath = this.descriptorsBase.resolve("eclipse.mirrors.txt");
 		List<String> eclipseMirrors = new ArrayList<>();
@@ -327,32 +607,272 @@ public class Repackage {
 	/*
 	 * MAVEN ORIGIN
 	 */
-	/** Process a whole category/group id. */
-	void processCategory(Path categoryRelativePath) {
-		try {
-			Path targetCategoryBase = descriptorsBase.resolve(categoryRelativePath);
-			DirectoryStream<Path> bnds = Files.newDirectoryStream(targetCategoryBase,
-					(p) -> p.getFileName().toString().endsWith(".bnd") && !p.getFileName().toString().equals(COMMON_BND)
-							&& !p.getFileName().toString().equals(MERGE_BND));
-			for (Path p : bnds) {
-				processSingleM2ArtifactDistributionUnit(p);
+	/**
+	 * Process a whole category/group id. Each artifact, merge and archive is
+	 * processed as a separate task, so that a large category does not keep the
+	 * other threads idle.
+	 * 
+	 * @return completes when all the bundles of the category have been written
+	 */
+	CompletableFuture<Void> processCategory(Path categoryRelativePath) {
+		List<CompletableFuture<Void>> toDos = new ArrayList<>();
+		for (Path unit : listUnits(categoryRelativePath))
+			if (!fannedOut.contains(unit))
+				toDos.add(processUnit(unit));
+		return CompletableFuture.allOf(toDos.toArray(new CompletableFuture<?>[0]));
+	}
+
+	/**
+	 * The units of work of a category: the descriptors of standalone artifacts,
+	 * and then the directories of the distribution units.
+	 */
+	List<Path> listUnits(Path categoryRelativePath) {
+		List<Path> units = new ArrayList<>();
+		Path targetCategoryBase = descriptorsBase.resolve(categoryRelativePath);
+		try (DirectoryStream<Path> bnds = Files.newDirectoryStream(targetCategoryBase,
+				(p) -> p.getFileName().toString().endsWith(".bnd") && !p.getFileName().toString().equals(COMMON_BND)
+						&& !p.getFileName().toString().equals(MERGE_BND))) {
+			for (Path p : bnds)
+				units.add(p);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot process category " + categoryRelativePath, e);
+		}
+		try (DirectoryStream<Path> dus = Files.newDirectoryStream(targetCategoryBase, (p) -> Files.isDirectory(p))) {
+			for (Path duDir : dus)
+				units.add(duDir);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot process category " + categoryRelativePath, e);
+		}
+		return units;
+	}
+
+	/** Process a unit of work, as listed by {@link #listUnits(Path)}. */
+	CompletableFuture<Void> processUnit(Path unit) {
+		if (!Files.isDirectory(unit))
+			return processSingleM2ArtifactDistributionUnit(unit);
+		else if (unit.getFileName().toString().startsWith("eclipse-"))
+			return CompletableFuture.supplyAsync(() -> processEclipseArchive(unit), executor)
+					.thenCompose((toDo) -> toDo);
+		else
+			return processM2BasedDistributionUnit(unit);
+	}
+
+	/**
+	 * Groups the units which are described identically in several of these
+	 * categories, when they are native categories, so that each group is processed
+	 * once: the origin is read and analysed once, its native libraries are
+	 * extracted to all the categories, and the bundle is linked to the other
+	 * categories. Merged and Eclipse-based units are always processed per
+	 * category.
+	 */
+	void planNativeFanOut(List<Path> categoryPaths) {
+		if (!nativeFanOut)
+			return;
+		Path descriptorsLibBase = descriptorsBase.resolve("lib");
+		Map<String, Path> firstUnits = new HashMap<>();
+		for (Path categoryPath : categoryPaths) {
+			Path categoryBase = descriptorsBase.resolve(categoryPath);
+			if (!categoryBase.startsWith(descriptorsLibBase))
+				continue;
+			Path libRelativePath = descriptorsLibBase.relativize(categoryBase);
+			if (libRelativePath.getNameCount() < 3)
+				continue;
+			// category without its os and arch
+			Path portablePath = libRelativePath.subpath(2, libRelativePath.getNameCount());
+			for (Path unit : listUnits(categoryPath)) {
+				String digest;
+				try {
+					digest = nativeUnitDigest(unit);
+				} catch (IOException e) {
+					throw new RuntimeException("Cannot read " + unit, e);
+				}
+				if (digest == null)
+					continue;
+				String key = portablePath.resolve(unit.getFileName()) + "#" + digest;
+				Path firstUnit = firstUnits.putIfAbsent(key, unit);
+				if (firstUnit != null) {
+					nativeSiblings.computeIfAbsent(firstUnit, (k) -> new ArrayList<>()).add(unit);
+					fannedOut.add(unit);
+					logger.log(DEBUG, () -> unit + " will be processed with " + firstUnit);
+				}
 			}
+		}
+	}
 
-			DirectoryStream<Path> dus = Files.newDirectoryStream(targetCategoryBase, (p) -> Files.isDirectory(p));
-			for (Path duDir : dus) {
-				if (duDir.getFileName().toString().startsWith("eclipse-")) {
-					processEclipseArchive(duDir);
-				} else {
-					processM2BasedDistributionUnit(duDir);
+	/**
+	 * The digest of the descriptors of a unit which could be processed together
+	 * with identical units, or <code>null</code> if it cannot.
+	 */
+	String nativeUnitDigest(Path unit) throws IOException {
+		MessageDigest digest = newSha256();
+		if (!Files.isDirectory(unit)) {
+			digest.update(Files.readAllBytes(unit));
+		} else {
+			if (unit.getFileName().toString().startsWith("eclipse-") || Files.exists(unit.resolve(MERGE_BND)))
+				return null;
+			Set<Path> files = new TreeSet<>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(unit)) {
+				for (Path file : ds)
+					files.add(file);
+			}
+			for (Path file : files) {
+				if (Files.isDirectory(file))
+					return null;
+				digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+				digest.update(Files.readAllBytes(file));
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * The descriptors processed together with this descriptor, with the target
+	 * category of each of them.
+	 */
+	Map<Path, Path> nativeSiblings(Path descriptor) {
+		Map<Path, Path> res = new LinkedHashMap<>();
+		if (nativeSiblings.containsKey(descriptor)) {// standalone
+			for (Path sibling : nativeSiblings.get(descriptor))
+				res.put(sibling, a2Base.resolve(descriptorsBase.relativize(sibling.getParent())));
+		} else if (nativeSiblings.containsKey(descriptor.getParent())) {// part of a distribution unit
+			for (Path sibling : nativeSiblings.get(descriptor.getParent()))
+				res.put(sibling.resolve(descriptor.getFileName()),
+						a2Base.resolve(descriptorsBase.relativize(sibling.getParent())));
+		}
+		return res;
+	}
+
+	/**
+	 * Provides a bundle, and its separate sources if any, to the other native
+	 * categories it has been processed for, and records them.
+	 * 
+	 * @param fanOut the fingerprints of the other units, by target category
+	 */
+	void provideNativeFanOut(JarWriter jar, Map<Path, Fingerprint> fanOut) throws IOException {
+		for (Path targetCategoryBase : fanOut.keySet()) {
+			Fingerprint fingerprint = fanOut.get(targetCategoryBase);
+			fingerprint.addOutput(jar.copyTo(targetCategoryBase.resolve(jar.getBundleDir().getFileName())));
+			Path sourceJarPath = jar.getSeparateSourceJarPath();
+			if (sourceJarPath != null) {
+				Path sourceLink = a2SrcBase.resolve(a2Base.relativize(targetCategoryBase))
+						.resolve(sourceJarPath.getFileName());
+				Files.createDirectories(sourceLink.getParent());
+				Files.deleteIfExists(sourceLink);
+				linkOrCopy(sourceJarPath, sourceLink);
+				fingerprint.addOutput(sourceLink);
+			}
+			fingerprint.record();
+		}
+	}
+
+	/*
+	 * DISTRIBUTED BUILD
+	 */
+	/**
+	 * Process the units of work of these categories together with other
+	 * processes, possibly on other machines, sharing the work directory and the
+	 * A2 output. Each process claims units from the queue until all of them have
+	 * been processed. The coordinator plans the queue, waits for the units
+	 * processed by the workers, and fails if any of them has failed.
+	 */
+	void processDistributed(WorkQueue queue, List<Path> categoryPaths, boolean coordinator)
+			throws IOException, InterruptedException {
+		distributedFingerprints = new ConcurrentHashMap<>();
+		planNativeFanOut(categoryPaths);
+		if (coordinator) {
+			List<String> tasks = new ArrayList<>();
+			for (Path categoryPath : categoryPaths) {
+				cleanPreviousFailedBuild(categoryPath);
+				for (Path unit : listUnits(categoryPath))
+					if (!fannedOut.contains(unit))
+						tasks.add(descriptorsBase.relativize(unit).toString());
+			}
+			queue.plan(tasks);
+		}
+
+		int parallelism = sequential ? 1 : ForkJoinPool.getCommonPoolParallelism();
+		Semaphore slots = new Semaphore(parallelism);
+		while (!queue.isFinished()) {
+			slots.acquire();
+			String task = queue.claim();
+			if (task == null) {// wait for the units claimed by others, or for the queue to be planned
+				slots.release();
+				Thread.sleep(WorkQueue.POLL_INTERVAL.toMillis());
+				continue;
+			}
+			logger.log(DEBUG, () -> "Claimed " + task);
+			CompletableFuture<Void> toDo;
+			try {
+				toDo = processUnit(descriptorsBase.resolve(task));
+			} catch (RuntimeException e) {
+				toDo = CompletableFuture.failedFuture(e);
+			}
+			toDo.whenComplete((v, e) -> {
+				try {
+					queue.complete(task, e, unitOutputs(descriptorsBase.resolve(task)));
+				} catch (IOException ioe) {
+					logger.log(ERROR, "Cannot complete " + task + ", it will be processed again", ioe);
+				} finally {
+					slots.release();
+				}
+			});
+		}
+		// wait for the tasks of this process, so that their summaries are complete
+		slots.acquire(parallelism);
+		queue.close();
+		if (!coordinator)
+			return;
+
+		Map<String, String> failures = queue.getFailures();
+		List<String> outputs = queue.getOutputs();
+		queue.end();
+		if (!failures.isEmpty()) {
+			StringBuilder sb = new StringBuilder();
+			for (String task : failures.keySet())
+				sb.append(task + ":\n" + failures.get(task) + "\n");
+			throw new IllegalStateException(failures.size() + " unit(s) failed:\n" + sb);
+		}
+
+		// the license summary is rebuilt from the bundles of this plan, whoever has processed them
+		Summary.clearLicensesUsed();
+		List<Path> outputPaths = new ArrayList<>();
+		for (String output : outputs)
+			outputPaths.add(a2Base.getParent().resolve(output));
+		addLicensesUsed(outputPaths);
+	}
+
+	/**
+	 * The files written for a unit of a distributed build, and for the units
+	 * processed together with it, relative to the parent of the A2 base.
+	 */
+	List<String> unitOutputs(Path unit) throws IOException {
+		List<Path> units = new ArrayList<>();
+		units.add(unit);
+		units.addAll(nativeSiblings.getOrDefault(unit, Collections.emptyList()));
+		Set<String> outputs = new TreeSet<>();
+		for (Path u : units) {
+			// the unit itself, or the files it contains, are the descriptors
+			List<Path> descriptors = new ArrayList<>();
+			descriptors.add(u);
+			if (Files.isDirectory(u))
+				try (DirectoryStream<Path> ds = Files.newDirectoryStream(u)) {
+					for (Path descriptor : ds)
+						descriptors.add(descriptor);
 				}
+			for (Path descriptor : descriptors) {
+				Queue<Fingerprint> fingerprints = distributedFingerprints.remove(descriptor);
+				if (fingerprints != null)
+					for (Fingerprint fingerprint : fingerprints)
+						for (Path output : fingerprint.outputs)
+							outputs.add(a2Base.getParent().relativize(output).toString());
 			}
-		} catch (IOException e) {
-			throw new RuntimeException("Cannot process category " + categoryRelativePath, e);
 		}
+		return new ArrayList<>(outputs);
 	}
 
 	/** Process a standalone Maven artifact. */
-	void processSingleM2ArtifactDistributionUnit(Path bndFile) {
+	CompletableFuture<Void> processSingleM2ArtifactDistributionUnit(Path bndFile) {
 		try {
 			Path categoryRelativePath = descriptorsBase.relativize(bndFile.getParent());
 			Path targetCategoryBase = a2Base.resolve(categoryRelativePath);
@@ -372,26 +892,80 @@ public class Repackage {
 			if (m2Coordinates == null)
 				throw new IllegalArgumentException("No M2 coordinates available for " + bndFile);
 			M2Artifact artifact = new M2Artifact(m2Coordinates);
-
-			Path downloaded = downloadMaven(fileProps, artifact);
-
-			boolean doNotModify = Boolean
-					.parseBoolean(fileProps.getOrDefault(ARGEO_DO_NOT_MODIFY.toString(), "false").toString());
-			if (doNotModify) {
-				processNotModified(targetCategoryBase, downloaded, fileProps, artifact);
-				return;
-			}
-
-			// regular processing
-			A2Origin origin = new A2Origin();
-			Path bundleDir = processBndJar(downloaded, targetCategoryBase, fileProps, artifact, origin);
-			downloadAndProcessM2Sources(fileProps, artifact, bundleDir, false, false);
-			createJar(bundleDir, origin);
+			return processM2Artifact(bndFile, targetCategoryBase, fileProps, artifact);
 		} catch (Exception e) {
 			throw new RuntimeException("Cannot process " + bndFile, e);
 		}
 	}
 
+	/**
+	 * Process a Maven artifact, and then its sources, as dependent tasks.
+	 * 
+	 * @param descriptor the file describing this artifact, for error messages
+	 */
+	CompletableFuture<Void> processM2Artifact(Path descriptor, Path targetCategoryBase, Properties props,
+			M2Artifact artifact) {
+		// taken before processing, which modifies the properties
+		Fingerprint fingerprint = new Fingerprint(descriptor, props);
+		// identical descriptors in other native categories
+		Map<Path, Fingerprint> fanOut = new LinkedHashMap<>();
+		Map<Path, Path> siblings = nativeSiblings(descriptor);
+		for (Path sibling : siblings.keySet())
+			fanOut.put(siblings.get(sibling), new Fingerprint(sibling, props));
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				Path downloaded = downloadMaven(props, artifact);
+				for (Fingerprint fp : fanOut.values())
+					fp.addOrigin(downloaded);
+				fingerprint.addOrigin(downloaded);
+				if (fingerprint.isUpToDate() && fanOut.values().stream().allMatch(Fingerprint::isUpToDate)) {
+					logger.log(DEBUG, () -> descriptor + " is up to date");
+					return CompletableFuture.<Void>completedFuture(null);
+				}
+
+				// the sources are downloaded while the binary is being processed
+				CompletableFuture<Path> sources = downloadMavenSourcesAsync(props, artifact);
+
+				boolean doNotModify = Boolean
+						.parseBoolean(props.getOrDefault(ARGEO_DO_NOT_MODIFY.toString(), "false").toString());
+				if (doNotModify) {
+					processNotModified(targetCategoryBase, downloaded, sources.join(), props, artifact, fingerprint);
+					fingerprint.record();
+					for (Path siblingCategoryBase : fanOut.keySet()) {
+						processNotModified(siblingCategoryBase, downloaded, sources.join(), props, artifact,
+								fanOut.get(siblingCategoryBase));
+						fanOut.get(siblingCategoryBase).record();
+					}
+					return CompletableFuture.<Void>completedFuture(null);
+				}
+
+				// regular processing
+				A2Origin origin = new A2Origin();
+				origin.fingerprint = fingerprint;
+				origin.nativeFanOut = fanOut;
+				origin.metrics.origin = artifact.toString();
+				origin.metrics.addDownload(downloader.getTransfer(downloaded));
+				JarWriter jar = processBndJar(downloaded, targetCategoryBase, props, artifact, origin);
+				return sources.thenAcceptAsync((sourcesDownloaded) -> {
+					try (jar) {
+						processM2Sources(sourcesDownloaded, artifact, jar, false);
+					} catch (Exception e) {
+						throw new RuntimeException("Cannot process sources of " + descriptor, e);
+					}
+					fingerprint.record();
+					try {
+						provideNativeFanOut(jar, fanOut);
+					} catch (IOException e) {
+						throw new RuntimeException("Cannot provide " + jar.getJarPath() + " to other native categories",
+								e);
+					}
+				}, executor);
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot process " + descriptor, e);
+			}
+		}, executor).thenCompose((toDo) -> toDo);
+	}
+
 	/**
 	 * Process multiple Maven artifacts coming from a same project and therefore
 	 * with information in common (typically the version), generating single bundles
@@ -399,88 +973,49 @@ public class Repackage {
 	 * 
 	 * @see #COMMON_BND
 	 * @see #MERGE_BND
+	 * @return completes when all the bundles of the distribution unit have been
+	 *         written
 	 */
-	void processM2BasedDistributionUnit(Path duDir) {
+	CompletableFuture<Void> processM2BasedDistributionUnit(Path duDir) {
 		try {
 			Path categoryRelativePath = descriptorsBase.relativize(duDir.getParent());
 			Path targetCategoryBase = a2Base.resolve(categoryRelativePath);
 
 			Path mergeBnd = duDir.resolve(MERGE_BND);
+			CompletableFuture<Void> merge;
 			if (Files.exists(mergeBnd)) // merge
-				mergeM2Artifacts(mergeBnd);
+				merge = CompletableFuture.runAsync(() -> {
+					try {
+						mergeM2Artifacts(mergeBnd);
+					} catch (IOException e) {
+						throw new RuntimeException("Cannot merge " + mergeBnd, e);
+					}
+				}, executor);
+			else
+				merge = CompletableFuture.completedFuture(null);
 
 			Path commonBnd = duDir.resolve(COMMON_BND);
 			if (!Files.exists(commonBnd))
-				return;
-
-			Properties commonProps = new Properties();
-			try (InputStream in = Files.newInputStream(commonBnd)) {
-				commonProps.load(in);
-			}
+				return merge;
 
-			String m2Version = commonProps.getProperty(ARGEO_ORIGIN_M2.toString());
+			Properties commonProps = loadProperties(commonBnd);
+			String m2Version = commonM2Version(commonProps);
 			if (m2Version == null) {
 				logger.log(WARNING, "Ignoring " + duDir + " as it is not an M2-based distribution unit");
-				return;// ignore, this is probably an Eclipse archive
-			}
-			if (!m2Version.startsWith(":")) {
-				throw new IllegalStateException("Only the M2 version can be specified: " + m2Version);
+				return merge;// ignore, this is probably an Eclipse archive
 			}
-			m2Version = m2Version.substring(1);
-
-			DirectoryStream<Path> ds = Files.newDirectoryStream(duDir,
-					(p) -> p.getFileName().toString().endsWith(".bnd") && !p.getFileName().toString().equals(COMMON_BND)
-							&& !p.getFileName().toString().equals(MERGE_BND));
-			for (Path p : ds) {
-				Properties fileProps = new Properties();
-				try (InputStream in = Files.newInputStream(p)) {
-					fileProps.load(in);
-				}
-				String m2Coordinates = fileProps.getProperty(ARGEO_ORIGIN_M2.toString());
-				M2Artifact artifact = new M2Artifact(m2Coordinates);
-				if (artifact.getVersion() == null) {
-					artifact.setVersion(m2Version);
-				} else {
-					logger.log(DEBUG, p.getFileName() + " : Using version " + artifact.getVersion()
-							+ " specified in descriptor rather than " + m2Version + " specified in " + COMMON_BND);
-				}
-
-				// prepare manifest entries
-				Properties mergedProps = new Properties();
-				mergedProps.putAll(commonProps);
-
-				fileEntries: for (Object key : fileProps.keySet()) {
-					if (ARGEO_ORIGIN_M2.toString().equals(key))
-						continue fileEntries;
-					String value = fileProps.getProperty(key.toString());
-					Object previousValue = mergedProps.put(key.toString(), value);
-					if (previousValue != null) {
-						logger.log(WARNING,
-								commonBnd + ": " + key + " was " + previousValue + ", overridden with " + value);
-					}
-				}
-				mergedProps.put(ARGEO_ORIGIN_M2.toString(), artifact.toM2Coordinates());
-				if (!mergedProps.containsKey(BUNDLE_SYMBOLICNAME.toString())) {
-					// use file name as symbolic name
-					String symbolicName = p.getFileName().toString();
-					symbolicName = symbolicName.substring(0, symbolicName.length() - ".bnd".length());
-					mergedProps.put(BUNDLE_SYMBOLICNAME.toString(), symbolicName);
-				}
-
-				// download
-				Path downloaded = downloadMaven(mergedProps, artifact);
 
-				boolean doNotModify = Boolean
-						.parseBoolean(mergedProps.getOrDefault(ARGEO_DO_NOT_MODIFY.toString(), "false").toString());
-				if (doNotModify) {
-					processNotModified(targetCategoryBase, downloaded, mergedProps, artifact);
-				} else {
-					A2Origin origin = new A2Origin();
-					Path targetBundleDir = processBndJar(downloaded, targetCategoryBase, mergedProps, artifact, origin);
-					downloadAndProcessM2Sources(mergedProps, artifact, targetBundleDir, false, false);
-					createJar(targetBundleDir, origin);
-				}
+			List<CompletableFuture<Void>> toDos = new ArrayList<>();
+			toDos.add(merge);
+			Map<Path, Properties> descriptors = loadM2Descriptors(duDir, commonProps, m2Version, true);
+			for (Path p : descriptors.keySet()) {
+				Properties mergedProps = descriptors.get(p);
+				M2Artifact artifact = new M2Artifact(mergedProps.getProperty(ARGEO_ORIGIN_M2.toString()));
+				// the other artifacts are processed only once the merge has succeeded
+				toDos.add(merge.thenComposeAsync(
+						(v) -> processM2Artifact(p, targetCategoryBase, mergedProps, artifact), executor));
 			}
+			return CompletableFuture.allOf(toDos.toArray(new CompletableFuture<?>[0]));
 		} catch (IOException e) {
 			throw new RuntimeException("Cannot process " + duDir, e);
 		}
@@ -492,55 +1027,61 @@ public class Repackage {
 		String category = duDir.getParent().getFileName().toString();
 		Path targetCategoryBase = a2Base.resolve(category);
 
-		Properties mergeProps = new Properties();
-		// first, load common properties
-		Path commonBnd = duDir.resolve(COMMON_BND);
-		if (Files.exists(commonBnd))
-			try (InputStream in = Files.newInputStream(commonBnd)) {
-				mergeProps.load(in);
-			}
-		// then, the merge properties themselves
-		try (InputStream in = Files.newInputStream(mergeBnd)) {
-			mergeProps.load(in);
-		}
-
-		String m2Version = mergeProps.getProperty(ARGEO_ORIGIN_M2.toString());
+		Properties mergeProps = loadMergeProperties(mergeBnd);
+		String m2Version = commonM2Version(mergeProps);
 		if (m2Version == null) {
 			logger.log(WARNING, "Ignoring merging in " + duDir + " as it is not an M2-based distribution unit");
 			return;// ignore, this is probably an Eclipse archive
 		}
-		if (!m2Version.startsWith(":")) {
-			throw new IllegalStateException("Only the M2 version can be specified: " + m2Version);
-		}
-		m2Version = m2Version.substring(1);
+		List<M2Artifact> mergedArtifacts = mergedM2Artifacts(mergeBnd, mergeProps, m2Version);
 		mergeProps.put(BUNDLE_VERSION.toString(), m2Version);
 
-		String artifactsStr = mergeProps.getProperty(ARGEO_ORIGIN_M2_MERGE.toString());
-		if (artifactsStr == null)
-			throw new IllegalArgumentException(mergeBnd + ": " + ARGEO_ORIGIN_M2_MERGE + " must be set");
-
 		String bundleSymbolicName = mergeProps.getProperty(BUNDLE_SYMBOLICNAME.toString());
 		if (bundleSymbolicName == null)
 			throw new IllegalArgumentException("Bundle-SymbolicName must be set in " + mergeBnd);
 		CategoryNameVersion nameVersion = new M2Artifact(category + ":" + bundleSymbolicName + ":" + m2Version);
 
-		A2Origin origin = new A2Origin();
 		Path bundleDir = targetCategoryBase.resolve(bundleSymbolicName + "." + nameVersion.getBranch());
 
+		// the artifacts are downloaded first, since they are inputs of the fingerprint
+		Fingerprint fingerprint = new Fingerprint(mergeBnd, mergeProps);
 		StringJoiner originDesc = new StringJoiner(",");
-		String[] artifacts = artifactsStr.split(",");
-		artifacts: for (String str : artifacts) {
-			String m2Coordinates = str.trim();
-			if ("".equals(m2Coordinates))
-				continue artifacts;
-			M2Artifact artifact = new M2Artifact(m2Coordinates.trim());
-			if (artifact.getVersion() == null)
-				artifact.setVersion(m2Version);
+		for (M2Artifact artifact : mergedArtifacts) {
 			originDesc.add(artifact.toString());
-			Path downloaded = downloadMaven(mergeProps, artifact);
-			JarEntry entry;
-			try (JarInputStream jarIn = new JarInputStream(Files.newInputStream(downloaded), false)) {
-				entries: while ((entry = jarIn.getNextJarEntry()) != null) {
+			fingerprint.addOrigin(downloadMaven(mergeProps, artifact));
+		}
+		Path servicesDir = duDir.resolve("services");
+		if (Files.exists(servicesDir))
+			for (Path p : Files.newDirectoryStream(servicesDir))
+				fingerprint.addOrigin(p);
+		if (fingerprint.isUpToDate()) {
+			logger.log(DEBUG, () -> mergeBnd + " is up to date");
+			return;
+		}
+		// the sources are downloaded while the binaries are being merged
+		List<CompletableFuture<Path>> mergedSources = new ArrayList<>();
+		for (M2Artifact artifact : mergedArtifacts)
+			mergedSources.add(downloadMavenSourcesAsync(mergeProps, artifact));
+
+		A2Origin origin = new A2Origin();
+		origin.fingerprint = fingerprint;
+		origin.metrics.origin = descriptorsBase.relativize(mergeBnd).toString();
+
+		// the merge is first planned from the indexes of the artifacts, so that all
+		// conflicts are reported at once, before anything is read or written
+		Map<String, List<ZipIndex.Entry>> plan = new TreeMap<>();
+		Map<String, List<Path>> additionalServices = new TreeMap<>();
+		Map<ZipIndex, M2Artifact> indexes = new LinkedHashMap<>();
+		List<String> conflicts = new ArrayList<>();
+		try {
+			for (M2Artifact artifact : mergedArtifacts) {
+				Path downloaded = downloadMaven(mergeProps, artifact);
+				ZipIndex index = new ZipIndex(downloaded);
+				indexes.put(index, artifact);
+				origin.metrics.addDownload(downloader.getTransfer(downloaded));
+				origin.metrics.entries += index.getEntries().size();
+				origin.metrics.originBytes += index.getSize();
+				entries: for (ZipIndex.Entry entry : index.getEntries()) {
 					if (entry.isDirectory())
 						continue entries;
 					if (entry.getName().endsWith(".RSA") || entry.getName().endsWith(".DSA")
@@ -568,125 +1109,155 @@ public class Repackage {
 						origin.deleted.add("Dependencies (META-INF/DEPENDENCIES) from " + artifact);
 						continue entries;
 					}
+					String artifactOriginDir = ARGEO_ORIGIN + "/" + artifact.getGroupId() + "/"
+							+ artifact.getArtifactId() + "/";
 					if (entry.getName().equals("META-INF/MANIFEST.MF")) {
-						Path originalManifest = bundleDir.resolve(ARGEO_ORIGIN).resolve(artifact.getGroupId())
-								.resolve(artifact.getArtifactId()).resolve("MANIFEST.MF");
-						Files.createDirectories(originalManifest.getParent());
-						try (OutputStream out = Files.newOutputStream(originalManifest)) {
-							Files.copy(jarIn, originalManifest);
-						}
-						origin.added.add(
-								"original MANIFEST (" + bundleDir.relativize(originalManifest) + ") from " + artifact);
+						String originalManifest = artifactOriginDir + "MANIFEST.MF";
+						plan.put(originalManifest, new ArrayList<>(List.of(entry)));
+						origin.added.add("original MANIFEST (" + originalManifest + ") from " + artifact);
 						continue entries;
 					}
 
-					if (entry.getName().endsWith("NOTICE") || entry.getName().endsWith("NOTICE.txt")
-							|| entry.getName().endsWith("NOTICE.md") || entry.getName().endsWith("LICENSE")
+					// all the notices are kept, so that they do not conflict
+					if (entry.getName().startsWith("META-INF/NOTICE") || entry.getName().endsWith("NOTICE")
+							|| entry.getName().endsWith("NOTICE.txt") || entry.getName().endsWith("NOTICE.md")
+							|| entry.getName().endsWith("LICENSE")
 							|| entry.getName().endsWith("LICENSE.md") || entry.getName().endsWith("LICENSE-notice.md")
 							|| entry.getName().endsWith("COPYING") || entry.getName().endsWith("COPYING.LESSER")) {
-						Path artifactOriginDir = bundleDir.resolve(ARGEO_ORIGIN).resolve(artifact.getGroupId())
-								.resolve(artifact.getArtifactId());
-						Path target = artifactOriginDir.resolve(entry.getName());
-						Files.createDirectories(target.getParent());
-						Files.copy(jarIn, target);
-						origin.moved.add(entry.getName() + " in " + artifact + " to " + bundleDir.relativize(target));
+						String target = artifactOriginDir + entry.getName();
+						if (plan.containsKey(target)) {
+							conflicts.add(target + " from " + artifact + " already exists");
+							continue entries;
+						}
+						plan.put(target, new ArrayList<>(List.of(entry)));
+						origin.moved.add(entry.getName() + " in " + artifact + " to " + target);
 						continue entries;
 					}
-					Path target = bundleDir.resolve(entry.getName());
-					Files.createDirectories(target.getParent());
-					if (!Files.exists(target)) {
-						Files.copy(jarIn, target);
+					String target = entry.getName();
+					List<ZipIndex.Entry> parts = plan.get(target);
+					if (parts == null) {
+						plan.put(target, new ArrayList<>(List.of(entry)));
 					} else {
+						ZipIndex.Entry previous = parts.get(0);
 						if (entry.getName().startsWith("META-INF/services/")) {
-							try (OutputStream out = Files.newOutputStream(target, StandardOpenOption.APPEND)) {
-								out.write("\n".getBytes());
-								jarIn.transferTo(out);
-								logger.log(DEBUG, artifact.getArtifactId() + " - Appended " + entry.getName());
-							}
+							parts.add(entry);
+							logger.log(DEBUG, artifact.getArtifactId() + " - Appended " + entry.getName());
 							origin.modified.add(entry.getName() + ", merging from " + artifact);
 						} else if (entry.getName().startsWith("org/apache/batik/")) {
 							logger.log(TRACE, "Skip " + entry.getName());
 							continue entries;
-						} else if (entry.getName().startsWith("META-INF/NOTICE")) {
-							logger.log(WARNING, "Skip " + entry.getName() + " from " + artifact);
-							// TODO merge them?
+						} else if (entry.crc == previous.crc && entry.size == previous.size
+								&& Arrays.equals(entry.index.readAllBytes(entry),
+										previous.index.readAllBytes(previous))) {
+							// the bytes are compared, since CRC-32 may collide
+							logger.log(TRACE, () -> "Skip " + target + " from " + artifact + ", identical to the one from "
+									+ indexes.get(previous.index));
 							continue entries;
 						} else {
-							throw new IllegalStateException("File " + target + " from " + artifact + " already exists");
+							conflicts.add("File " + target + " from " + artifact + " already exists in "
+									+ indexes.get(previous.index));
+							continue entries;
 						}
 					}
-					logger.log(TRACE, () -> "Copied " + target);
+					logger.log(TRACE, () -> "Planned " + target);
 				}
+				origin.added.add("binary content of " + artifact);
 			}
-			origin.added.add("binary content of " + artifact);
-
-			// process sources
-			downloadAndProcessM2Sources(mergeProps, artifact, bundleDir, true, false);
-		}
-
-		// additional service files
-		Path servicesDir = duDir.resolve("services");
-		if (Files.exists(servicesDir)) {
-			for (Path p : Files.newDirectoryStream(servicesDir)) {
-				Path target = bundleDir.resolve("META-INF/services/").resolve(p.getFileName());
-				try (InputStream in = Files.newInputStream(p);
-						OutputStream out = Files.newOutputStream(target, StandardOpenOption.APPEND);) {
-					out.write("\n".getBytes());
-					in.transferTo(out);
+			if (!conflicts.isEmpty())
+				throw new IllegalStateException("Cannot merge " + mergeBnd + ", " + conflicts.size()
+						+ " conflict(s):\n" + String.join("\n", conflicts));
+
+			// additional service files
+			if (Files.exists(servicesDir)) {
+				for (Path p : Files.newDirectoryStream(servicesDir)) {
+					String target = "META-INF/services/" + p.getFileName();
+					additionalServices.computeIfAbsent(target, (k) -> new ArrayList<>()).add(p);
 					logger.log(DEBUG, "Appended " + p);
+					origin.added.add(target);
 				}
-				origin.added.add(bundleDir.relativize(target).toString());
 			}
-		}
 
-		// BND analysis
-		Map<String, String> entries = new TreeMap<>();
-		try (Analyzer bndAnalyzer = new Analyzer()) {
-			bndAnalyzer.setProperties(mergeProps);
-			Jar jar = new Jar(bundleDir.toFile());
-			bndAnalyzer.setJar(jar);
-			Manifest manifest = bndAnalyzer.calcManifest();
-
-			keys: for (Object key : manifest.getMainAttributes().keySet()) {
-				Object value = manifest.getMainAttributes().get(key);
-
-				switch (key.toString()) {
-				case "Tool":
-				case "Bnd-LastModified":
-				case "Created-By":
-					continue keys;
+			// the merged binary content has to be analysed by BND before the MANIFEST,
+			// which comes first in the jar, can be written; entries with a single part are
+			// read from the merged artifacts when needed, and then copied as is
+			Jar merged = new Jar(bundleSymbolicName);
+			Map<String, ZipIndex.Entry> unmodified = new HashMap<>();
+			Set<String> targets = new TreeSet<>(plan.keySet());
+			targets.addAll(additionalServices.keySet());
+			for (String target : targets) {
+				List<ZipIndex.Entry> parts = plan.getOrDefault(target, Collections.emptyList());
+				List<Path> files = additionalServices.getOrDefault(target, Collections.emptyList());
+				if (parts.size() == 1 && files.isEmpty()) {
+					ZipIndex.Entry entry = parts.get(0);
+					merged.putResource(target, new EntryResource(entry));
+					unmodified.put(target, entry);
+					continue;
+				}
+				// concatenated, one part per line
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				for (int i = 0; i < parts.size(); i++) {
+					if (i != 0)
+						out.write('\n');
+					out.write(parts.get(i).index.readAllBytes(parts.get(i)));
 				}
-				if ("Require-Capability".equals(key.toString())
-						&& value.toString().equals("osgi.ee;filter:=\"(&(osgi.ee=JavaSE)(version=1.1))\"")) {
-					origin.deleted.add("MANIFEST header " + key);
-					continue keys;// hack for very old classes
+				for (Path file : files) {
+					out.write('\n');
+					out.write(Files.readAllBytes(file));
 				}
-				entries.put(key.toString(), value.toString());
+				merged.putResource(target, new EmbeddedResource(out.toByteArray(), 0));
 			}
-		} catch (Exception e) {
-			throw new RuntimeException("Cannot process " + mergeBnd, e);
-		}
 
-		Manifest manifest = new Manifest();
-		Path manifestPath = bundleDir.resolve("META-INF/MANIFEST.MF");
-		Files.createDirectories(manifestPath.getParent());
-		for (String key : entries.keySet()) {
-			String value = entries.get(key);
-			manifest.getMainAttributes().putValue(key, value);
-		}
-		manifest.getMainAttributes().putValue(ARGEO_ORIGIN_M2.toString(), originDesc.toString());
+			// BND analysis
+			Map<String, String> entries = new TreeMap<>();
+			// the analyzer closes the jar, but the resources are still available
+			Map<String, Resource> resources = new TreeMap<>(merged.getResources());
+			try {
+				entries.putAll(analyze(merged, contentHash(resources), mergeProps, origin));
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot process " + mergeBnd, e);
+			}
 
-		processLicense(bundleDir, manifest);
+			Manifest manifest = new Manifest();
+			for (String key : entries.keySet()) {
+				String value = entries.get(key);
+				manifest.getMainAttributes().putValue(key, value);
+			}
+			manifest.getMainAttributes().putValue(ARGEO_ORIGIN_M2.toString(), originDesc.toString());
+
+			processLicense(bundleDir, manifest);
+
+			// write the jar
+			try (JarWriter jar = new JarWriter(bundleDir, manifest, origin)) {
+				for (Map.Entry<String, Resource> resource : resources.entrySet()) {
+					if (resource.getKey().equals("META-INF/MANIFEST.MF"))
+						continue;
+					ZipIndex.Entry unmodifiedEntry = unmodified.get(resource.getKey());
+					if (unmodifiedEntry != null) {
+						jar.copy(resource.getKey(), unmodifiedEntry);
+						continue;
+					}
+					try (InputStream in = resource.getValue().openInputStream()) {
+						jar.write(resource.getKey(), in);
+					} catch (IOException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new IOException("Cannot read " + resource.getKey(), e);
+					}
+				}
 
-		// write MANIFEST
-		try (OutputStream out = Files.newOutputStream(manifestPath)) {
-			manifest.write(out);
+				// process sources
+				for (int i = 0; i < mergedArtifacts.size(); i++)
+					processM2Sources(mergedSources.get(i).join(), mergedArtifacts.get(i), jar, true);
+			}
+		} finally {
+			for (ZipIndex index : indexes.keySet())
+				index.close();
 		}
-		createJar(bundleDir, origin);
+		fingerprint.record();
 	}
 
 	/** Generates MANIFEST using BND. */
-	Path processBndJar(Path downloaded, Path targetCategoryBase, Properties fileProps, M2Artifact artifact,
+	JarWriter processBndJar(Path downloaded, Path targetCategoryBase, Properties fileProps, M2Artifact artifact,
 			A2Origin origin) {
 		try {
 			Map<String, String> additionalEntries = new TreeMap<>();
@@ -715,33 +1286,14 @@ public class Repackage {
 				}
 
 				// BND analysis
-				try (Analyzer bndAnalyzer = new Analyzer()) {
-					bndAnalyzer.setProperties(fileProps);
-					Jar jar = new Jar(downloaded.toFile());
-					bndAnalyzer.setJar(jar);
-					Manifest manifest = bndAnalyzer.calcManifest();
-
-					keys: for (Object key : manifest.getMainAttributes().keySet()) {
-						Object value = manifest.getMainAttributes().get(key);
-
-						switch (key.toString()) {
-						case "Tool":
-						case "Bnd-LastModified":
-						case "Created-By":
-							continue keys;
-						}
-						if ("Require-Capability".equals(key.toString())
-								&& value.toString().equals("osgi.ee;filter:=\"(&(osgi.ee=JavaSE)(version=1.1))\"")) {
-							origin.deleted.add("MANIFEST header " + key);
-							continue keys;// !! hack for very old classes
-						}
-						additionalEntries.put(key.toString(), value.toString());
-					}
+				try (ZipIndex index = new ZipIndex(downloaded)) {
+					additionalEntries.putAll(
+							analyze(newJar(index), Downloader.checksum(downloaded, "sha256"), fileProps, origin));
 				}
 			}
-			Path targetBundleDir = processBundleJar(downloaded, targetCategoryBase, additionalEntries, origin);
+			JarWriter jar = processBundleJar(downloaded, targetCategoryBase, additionalEntries, origin);
 			logger.log(DEBUG, () -> "Processed " + downloaded);
-			return targetBundleDir;
+			return jar;
 		} catch (Exception e) {
 			throw new RuntimeException("Cannot BND process " + downloaded, e);
 		}
@@ -749,58 +1301,63 @@ public class Repackage {
 	}
 
 	/** Process an artifact that should not be modified. */
-	void processNotModified(Path targetCategoryBase, Path downloaded, Properties fileProps, M2Artifact artifact)
-			throws IOException {
+	void processNotModified(Path targetCategoryBase, Path downloaded, Path sourcesDownloaded, Properties fileProps,
+			M2Artifact artifact, Fingerprint fingerprint) throws IOException {
 		// Some proprietary or signed artifacts do not allow any modification
 		// When releasing (with separate sources), we just copy it
 		Path unmodifiedTarget = targetCategoryBase
 				.resolve(fileProps.getProperty(BUNDLE_SYMBOLICNAME.toString()) + "." + artifact.getBranch() + ".jar");
 		Files.createDirectories(unmodifiedTarget.getParent());
 		Files.copy(downloaded, unmodifiedTarget, StandardCopyOption.REPLACE_EXISTING);
+		fingerprint.addOutput(unmodifiedTarget);
 		Path bundleDir = targetCategoryBase
 				.resolve(fileProps.getProperty(BUNDLE_SYMBOLICNAME.toString()) + "." + artifact.getBranch());
-		downloadAndProcessM2Sources(fileProps, artifact, bundleDir, false, true);
 		Manifest manifest;
 		try (JarInputStream jarIn = new JarInputStream(Files.newInputStream(unmodifiedTarget))) {
 			manifest = jarIn.getManifest();
 		}
-		createSourceJar(bundleDir, manifest, fileProps);
+		// the sources are always packaged separately
+		if (sourcesDownloaded == null)
+			return;// already reported
+		try (JarWriter sourceJar = newSourceJar(bundleDir, manifest, fileProps)) {
+			fingerprint.addOutput(sourceJar.getJarPath());
+			processM2SourceJar(sourcesDownloaded, sourceJar, null, true);
+			logger.log(TRACE, () -> "Processed source " + sourcesDownloaded);
+		} catch (Exception e) {
+			logger.log(ERROR, "Cannot process sources of " + artifact, e);
+			addSourcesMissing(artifact, e);
+		}
 	}
 
-	/** Download and integrates sources for a single Maven artifact. */
-	void downloadAndProcessM2Sources(Properties props, M2Artifact artifact, Path targetBundleDir, boolean merging,
-			boolean unmodified) throws IOException {
+	/** Integrates the downloaded sources of a Maven artifact, if available. */
+	void processM2Sources(Path sourcesDownloaded, M2Artifact artifact, JarWriter jar, boolean merging) {
+		if (sourcesDownloaded == null)
+			return;// already reported
 		try {
-			String repoStr = props.containsKey(ARGEO_ORIGIN_M2_REPO.toString())
-					? props.getProperty(ARGEO_ORIGIN_M2_REPO.toString())
-					: null;
-			String alternateUri = props.getProperty(ARGEO_ORIGIN_SOURCES_URI.toString());
-			M2Artifact sourcesArtifact = new M2Artifact(artifact.toM2Coordinates(), "sources");
-			URI sourcesUrl = alternateUri != null ? new URI(alternateUri)
-					: M2ConventionsUtils.mavenRepoUrl(repoStr, sourcesArtifact);
-			Path sourcesDownloaded = downloadMaven(sourcesUrl, sourcesArtifact);
-			processM2SourceJar(sourcesDownloaded, targetBundleDir, merging ? artifact : null, unmodified);
+			processM2SourceJar(sourcesDownloaded, jar, merging ? artifact : null, false);
 			logger.log(TRACE, () -> "Processed source " + sourcesDownloaded);
 		} catch (Exception e) {
-			logger.log(ERROR, () -> "Cannot download source for  " + artifact);
+			logger.log(ERROR, "Cannot process sources of " + artifact, e);
+			addSourcesMissing(artifact, e);
 		}
-
 	}
 
-	/** Integrate sources from a downloaded jar file. */
-	void processM2SourceJar(Path file, Path bundleDir, M2Artifact mergingFrom, boolean unmodified) throws IOException {
+	/**
+	 * Integrate sources from a downloaded jar file, into the bundle or into its
+	 * related source jar.
+	 */
+	void processM2SourceJar(Path file, JarWriter jar, M2Artifact mergingFrom, boolean unmodified)
+			throws IOException {
 		A2Origin origin = new A2Origin();
-		Path sourceDir = separateSources || unmodified ? bundleDir.getParent().resolve(bundleDir.toString() + ".src")
-				: bundleDir.resolve("OSGI-OPT/src");
-		try (JarInputStream jarIn = new JarInputStream(Files.newInputStream(file), false)) {
+		String sourcePrefix = jar.getSourcePrefix();
+		try (ZipIndex index = new ZipIndex(file)) {
 
 			String mergingMsg = "";
 			if (mergingFrom != null)
 				mergingMsg = " of " + mergingFrom;
 
-			Files.createDirectories(sourceDir);
-			JarEntry entry;
-			entries: while ((entry = jarIn.getNextJarEntry()) != null) {
+			JarWriter sourceJar = jar.getSourceJar();
+			entries: for (ZipIndex.Entry entry : index.getEntries()) {
 				String relPath = entry.getName();
 				if (entry.isDirectory())
 					continue entries;
@@ -825,22 +1382,19 @@ public class Repackage {
 						continue entries;
 					}
 				}
-				Path target = sourceDir.resolve(relPath);
-				Files.createDirectories(target.getParent());
-				if (!Files.exists(target)) {
-					Files.copy(jarIn, target);
+				String target = sourcePrefix + relPath;
+				if (!sourceJar.contains(target)) {
+					sourceJar.copy(target, entry);
 					logger.log(TRACE, () -> "Copied source " + target);
 				} else {
 					logger.log(TRACE, () -> target + " already exists, skipping...");
 				}
 			}
-		}
-		// write the changes
-		if (separateSources || unmodified) {
-			origin.appendChanges(sourceDir);
-		} else {
-			origin.added.add("source code under OSGI-OPT/src");
-			origin.appendChanges(bundleDir);
+
+			// record the changes
+			if (!sourcePrefix.equals(""))
+				origin.added.add("source code under OSGI-OPT/src");
+			sourceJar.appendChanges(origin);
 		}
 	}
 
@@ -863,18 +1417,55 @@ public class Repackage {
 		return download(uri, mavenBase, M2ConventionsUtils.artifactPath("", artifact));
 	}
 
+	/**
+	 * Starts downloading the sources of a Maven artifact, so that the download
+	 * proceeds while the binary is being processed.
+	 * 
+	 * @return completes with the downloaded sources, or with null if they are not
+	 *         available, which is added to the summary
+	 */
+	CompletableFuture<Path> downloadMavenSourcesAsync(Properties props, M2Artifact artifact) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return downloadMavenSources(props, artifact);
+			} catch (Exception e) {
+				logger.log(ERROR, () -> "Cannot download sources of " + artifact + ": " + e);
+				addSourcesMissing(artifact, e);
+				return null;
+			}
+		}, executor);
+	}
+
+	/** Download the sources of a Maven artifact. */
+	Path downloadMavenSources(Properties props, M2Artifact artifact) throws IOException {
+		String repoStr = props.containsKey(ARGEO_ORIGIN_M2_REPO.toString())
+				? props.getProperty(ARGEO_ORIGIN_M2_REPO.toString())
+				: null;
+		String alternateUri = props.getProperty(ARGEO_ORIGIN_SOURCES_URI.toString());
+		M2Artifact sourcesArtifact = new M2Artifact(artifact.toM2Coordinates(), "sources");
+		try {
+			URI sourcesUrl = alternateUri != null ? new URI(alternateUri)
+					: M2ConventionsUtils.mavenRepoUrl(repoStr, sourcesArtifact);
+			return downloadMaven(sourcesUrl, sourcesArtifact);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Wrong sources URI", e);
+		}
+	}
+
 	/*
 	 * ECLIPSE ORIGIN
 	 */
-	/** Process an archive in Eclipse format. */
-	void processEclipseArchive(Path duDir) {
+	/**
+	 * Process an archive in Eclipse format. The matching jars nested in the
+	 * archive are listed first, and then processed concurrently.
+	 * 
+	 * @return completes when all the bundles of the archive have been written
+	 */
+	CompletableFuture<Void> processEclipseArchive(Path duDir) {
 		try {
 			Path categoryRelativePath = descriptorsBase.relativize(duDir.getParent());
 			Path targetCategoryBase = a2Base.resolve(categoryRelativePath);
 			Files.createDirectories(targetCategoryBase);
-			// first delete all directories from previous builds
-			for (Path dir : Files.newDirectoryStream(targetCategoryBase, (p) -> Files.isDirectory(p)))
-				deleteDirectory(dir);
 
 			Files.createDirectories(originBase);
 
@@ -883,6 +1474,8 @@ public class Repackage {
 			try (InputStream in = Files.newInputStream(commonBnd)) {
 				commonProps.load(in);
 			}
+			if (commonProps.containsKey(ARGEO_ORIGIN_P2.toString()))
+				return processP2Repository(duDir, targetCategoryBase, commonProps);
 			String url = commonProps.getProperty(ARGEO_ORIGIN_URI.toString());
 			if (url == null) {
 				url = uris.getProperty(duDir.getFileName().toString());
@@ -892,16 +1485,23 @@ public class Repackage {
 			}
 			Path downloaded = tryDownloadArchive(url, originBase);
 
-			FileSystem zipFs = FileSystems.newFileSystem(downloaded, (ClassLoader) null);
+			Fingerprint fingerprint = new Fingerprint(duDir, commonProps);
+			fingerprint.addOrigin(downloaded);
+			fingerprint.addOrigin(duDir.resolve("includes.properties"));
+			fingerprint.addOrigin(duDir.resolve("excludes.properties"));
+			if (fingerprint.isUpToDate()) {
+				logger.log(DEBUG, () -> duDir + " is up to date");
+				return CompletableFuture.completedFuture(null);
+			}
 
-			// filters
+			// filters, evaluated against the paths of the entries
 			List<PathMatcher> includeMatchers = new ArrayList<>();
 			Properties includes = new Properties();
 			try (InputStream in = Files.newInputStream(duDir.resolve("includes.properties"))) {
 				includes.load(in);
 			}
 			for (Object pattern : includes.keySet()) {
-				PathMatcher pathMatcher = zipFs.getPathMatcher("glob:/" + pattern);
+				PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:/" + pattern);
 				includeMatchers.add(pathMatcher);
 			}
 
@@ -913,673 +1513,3856 @@ public class Repackage {
 					excludes.load(in);
 				}
 				for (Object pattern : excludes.keySet()) {
-					PathMatcher pathMatcher = zipFs.getPathMatcher("glob:/" + pattern);
+					PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:/" + pattern);
 					excludeMatchers.add(pathMatcher);
 				}
 			}
 
+			// the entries of the archive are kept next to it, since it never changes
+			ZipIndex archive = new ZipIndex(downloaded,
+					downloaded.resolveSibling(downloaded.getFileName() + ZipIndex.PERSISTED_SUFFIX));
+			// binaries are processed together with their sources, which are found first
+			List<ZipIndex.Entry> binaries = new ArrayList<>();
 			// keys are the bundle directories
-			Map<Path, A2Origin> origins = new HashMap<>();
-			Files.walkFileTree(zipFs.getRootDirectories().iterator().next(), new SimpleFileVisitor<Path>() {
-
-				@Override
-				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+			Map<Path, ZipIndex.Entry> sources = new ConcurrentHashMap<>();
+			List<CompletableFuture<Void>> toDos = new ArrayList<>();
+			try {
+				entries: for (ZipIndex.Entry entry : archive.getEntries()) {
+					if (entry.isDirectory())
+						continue entries;
+					Path file = Paths.get("/" + entry.getName());
 					includeMatchers: for (PathMatcher includeMatcher : includeMatchers) {
 						if (includeMatcher.matches(file)) {
 							for (PathMatcher excludeMatcher : excludeMatchers) {
 								if (excludeMatcher.matches(file)) {
 									logger.log(TRACE, "Skipping excluded " + file);
-									return FileVisitResult.CONTINUE;
+									continue entries;
 								}
 							}
 							if (file.getFileName().toString().contains(".source_")) {
-								processEclipseSourceJar(file, targetCategoryBase);
-								logger.log(DEBUG, () -> "Processed source " + file);
+								sources.put(eclipseSourceBundleDir(archive, entry, targetCategoryBase), entry);
 							} else {
-								Map<String, String> map = new HashMap<>();
-								for (Object key : commonProps.keySet())
-									map.put(key.toString(), commonProps.getProperty(key.toString()));
-								A2Origin origin = new A2Origin();
-								Path bundleDir = processBundleJar(file, targetCategoryBase, map, origin);
-								if (bundleDir == null) {
-									logger.log(WARNING, "No bundle dir created for " + file + ", skipping...");
-									return FileVisitResult.CONTINUE;
-								}
-								origins.put(bundleDir, origin);
-								logger.log(DEBUG, () -> "Processed " + file);
+								binaries.add(entry);
 							}
 							break includeMatchers;
 						}
 					}
-					return FileVisitResult.CONTINUE;
 				}
-			});
 
-			DirectoryStream<Path> dirs = Files.newDirectoryStream(targetCategoryBase, (p) -> Files.isDirectory(p)
-					&& p.getFileName().toString().indexOf('.') >= 0 && !p.getFileName().toString().endsWith(".src"));
-			for (Path bundleDir : dirs) {
-				A2Origin origin = origins.get(bundleDir);
-				Objects.requireNonNull(origin, "No A2 origin found for " + bundleDir);
-				createJar(bundleDir, origin);
+				// the nested jars are read concurrently from the shared archive
+				for (ZipIndex.Entry entry : binaries) {
+					toDos.add(CompletableFuture.runAsync(() -> {
+						Map<String, String> map = new HashMap<>();
+						for (Object key : commonProps.keySet())
+							map.put(key.toString(), commonProps.getProperty(key.toString()));
+						A2Origin origin = new A2Origin();
+						origin.fingerprint = fingerprint;
+						// the download of the archive is shared by its bundles
+						origin.metrics.origin = downloaded.getFileName().toString();
+						try (JarWriter jar = processBundleJar(openNested(archive, entry), targetCategoryBase, map,
+								origin)) {
+							logger.log(DEBUG, () -> "Processed " + entry);
+							ZipIndex.Entry sourceEntry = sources.remove(jar.getBundleDir());
+							if (sourceEntry != null) {
+								processEclipseSourceJar(openNested(archive, sourceEntry), jar);
+								logger.log(DEBUG, () -> "Processed source " + sourceEntry);
+							}
+						} catch (IOException e) {
+							throw new RuntimeException("Cannot process " + entry + " from " + duDir, e);
+						}
+					}, executor));
+				}
+			} catch (IOException | RuntimeException e) {
+				// the archive is otherwise closed once the futures have completed
+				try {
+					archive.close();
+				} catch (IOException ioe) {
+					e.addSuppressed(ioe);
+				}
+				throw e;
 			}
+			return CompletableFuture.allOf(toDos.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+				if (e == null) {
+					for (Path bundleDir : sources.keySet())
+						logger.log(WARNING,
+								"No binary found for sources " + sources.get(bundleDir) + ", skipping...");
+					fingerprint.record();
+				}
+				try {
+					archive.close();
+				} catch (IOException ioe) {
+					logger.log(ERROR, "Cannot close " + downloaded, ioe);
+				}
+			});
 		} catch (IOException e) {
 			throw new RuntimeException("Cannot process " + duDir, e);
 		}
+	}
+
+	/*
+	 * P2 ORIGIN
+	 */
+	/**
+	 * Process an Eclipse distribution unit from a p2 repository. Only the bundles
+	 * matching the includes, and their sources, are downloaded and processed
+	 * concurrently. Since the layout of an archive is not relevant here, the
+	 * patterns are matched against the file names only (that is, their last
+	 * segment against <code>&lt;id&gt;_&lt;version&gt;.jar</code>).
+	 * 
+	 * @return completes when all the bundles have been written
+	 */
+	CompletableFuture<Void> processP2Repository(Path duDir, Path targetCategoryBase, Properties commonProps)
+			throws IOException {
+		String repoUri = commonProps.getProperty(ARGEO_ORIGIN_P2.toString());
+		List<Path> indexes = new ArrayList<>();
+		// keys are the file names of the bundles
+		Map<String, P2Artifact> artifacts = new TreeMap<>();
+		readP2Repository(URI.create(repoUri.endsWith("/") ? repoUri : repoUri + "/"), indexes, artifacts);
+
+		Fingerprint fingerprint = new Fingerprint(duDir, commonProps);
+		for (Path index : indexes)
+			fingerprint.addOrigin(index);
+		fingerprint.addOrigin(duDir.resolve("includes.properties"));
+		fingerprint.addOrigin(duDir.resolve("excludes.properties"));
+		if (fingerprint.isUpToDate()) {
+			logger.log(DEBUG, () -> duDir + " is up to date");
+			return CompletableFuture.completedFuture(null);
+		}
+
+		// filters
+		List<PathMatcher> includeMatchers = new ArrayList<>();
+		for (Object pattern : loadProperties(duDir.resolve("includes.properties")).keySet())
+			includeMatchers.add(p2PathMatcher(pattern.toString()));
+		List<PathMatcher> excludeMatchers = new ArrayList<>();
+		Path excludeFile = duDir.resolve("excludes.properties");
+		if (Files.exists(excludeFile))
+			for (Object pattern : loadProperties(excludeFile).keySet())
+				excludeMatchers.add(p2PathMatcher(pattern.toString()));
+
+		List<CompletableFuture<Void>> toDos = new ArrayList<>();
+		artifacts: for (String fileName : artifacts.keySet()) {
+			P2Artifact artifact = artifacts.get(fileName);
+			if (artifact.id.endsWith(".source"))
+				continue artifacts;// processed with their binaries
+			Path file = Paths.get(fileName);
+			if (!includeMatchers.stream().anyMatch((m) -> m.matches(file)))
+				continue artifacts;
+			if (excludeMatchers.stream().anyMatch((m) -> m.matches(file))) {
+				logger.log(TRACE, "Skipping excluded " + fileName);
+				continue artifacts;
+			}
+			P2Artifact sourceArtifact = artifacts.get(artifact.id + ".source_" + artifact.version + ".jar");
+
+			CompletableFuture<Path> binary = CompletableFuture.supplyAsync(() -> downloadP2(artifact), executor);
+			CompletableFuture<Path> sources = sourceArtifact != null
+					? CompletableFuture.supplyAsync(() -> downloadP2(sourceArtifact), executor)
+					: CompletableFuture.completedFuture(null);
+			toDos.add(binary.thenCombineAsync(sources, (downloaded, sourcesDownloaded) -> {
+				Map<String, String> map = new HashMap<>();
+				for (Object key : commonProps.keySet())
+					map.put(key.toString(), commonProps.getProperty(key.toString()));
+				// described as the origin, like the archive of an Eclipse archive
+				map.put(ARGEO_ORIGIN_URI.toString(), artifact.uri.toString());
+				A2Origin origin = new A2Origin();
+				origin.fingerprint = fingerprint;
+				origin.metrics.origin = artifact.id + "_" + artifact.version;
+				origin.metrics.addDownload(downloader.getTransfer(downloaded));
+				try (JarWriter jar = processBundleJar(downloaded, targetCategoryBase, map, origin)) {
+					logger.log(DEBUG, () -> "Processed " + downloaded);
+					if (sourcesDownloaded != null) {
+						processEclipseSourceJar(sourcesDownloaded, jar);
+						logger.log(DEBUG, () -> "Processed source " + sourcesDownloaded);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException("Cannot process " + downloaded + " from " + duDir, e);
+				}
+				return null;
+			}, executor));
+		}
+		if (toDos.isEmpty())
+			logger.log(WARNING, "No bundle matching the includes of " + duDir + " in " + repoUri);
+		return CompletableFuture.allOf(toDos.toArray(new CompletableFuture<?>[0]))
+				.thenRun(() -> fingerprint.record());
+	}
 
+	/** Matches the file name of a bundle against the last segment of a pattern. */
+	static PathMatcher p2PathMatcher(String pattern) {
+		return FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(pattern.lastIndexOf('/') + 1));
 	}
 
-	/** Process sources in Eclipse format. */
-	void processEclipseSourceJar(Path file, Path targetBase) throws IOException {
+	/**
+	 * Reads the index of the bundles in a p2 repository, following the children
+	 * of composite repositories. XZ compressed indexes are not supported, since
+	 * the JDK cannot decompress them, but p2 repositories also provide them as
+	 * jars.
+	 * 
+	 * @param indexes   the downloaded index files, to which the one of this
+	 *                  repository is added
+	 * @param artifacts the bundles, keyed by file name, to which the ones of this
+	 *                  repository are added
+	 */
+	void readP2Repository(URI repoUri, List<Path> indexes, Map<String, P2Artifact> artifacts) throws IOException {
+		for (String indexName : new String[] { "compositeArtifacts", "artifacts" }) {
+			Document index = downloadP2Index(repoUri, indexName, indexes);
+			if (index == null)
+				continue;
+			if (indexName.startsWith("composite")) {
+				NodeList children = index.getElementsByTagName("child");
+				for (int i = 0; i < children.getLength(); i++) {
+					String location = ((Element) children.item(i)).getAttribute("location");
+					readP2Repository(repoUri.resolve(location.endsWith("/") ? location : location + "/"), indexes,
+							artifacts);
+				}
+				return;
+			}
+
+			// how artifacts are mapped to URLs
+			String repoUrl = repoUri.toString().substring(0, repoUri.toString().length() - 1);
+			String output = "${repoUrl}/plugins/${id}_${version}.jar";
+			NodeList rules = index.getElementsByTagName("rule");
+			for (int i = 0; i < rules.getLength(); i++) {
+				Element rule = (Element) rules.item(i);
+				String filter = rule.getAttribute("filter").replace(" ", "");
+				if (filter.contains("(classifier=osgi.bundle)") && !filter.contains("format=")) {
+					output = rule.getAttribute("output");
+					break;
+				}
+			}
+
+			NodeList artifactElements = index.getElementsByTagName("artifact");
+			artifacts: for (int i = 0; i < artifactElements.getLength(); i++) {
+				Element artifactElement = (Element) artifactElements.item(i);
+				if (!"osgi.bundle".equals(artifactElement.getAttribute("classifier")))
+					continue artifacts;
+				P2Artifact artifact = new P2Artifact();
+				artifact.id = artifactElement.getAttribute("id");
+				artifact.version = artifactElement.getAttribute("version");
+				NodeList properties = artifactElement.getElementsByTagName("property");
+				for (int j = 0; j < properties.getLength(); j++) {
+					Element property = (Element) properties.item(j);
+					if (property.getAttribute("name").equals("download.checksum.sha-256"))
+						artifact.checksum = "sha256:" + property.getAttribute("value");
+					else if (property.getAttribute("name").equals("format"))
+						continue artifacts;// packed variant of a bundle
+				}
+				artifact.uri = URI.create(output.replace("${repoUrl}", repoUrl).replace("${id}", artifact.id)
+						.replace("${version}", artifact.version));
+				artifacts.putIfAbsent(artifact.id + "_" + artifact.version + ".jar", artifact);
+			}
+			return;
+		}
+		throw new FileNotFoundException("No p2 artifacts index (artifacts.jar, artifacts.xml, or their composite"
+				+ " variants) found in " + repoUri);
+	}
+
+	/**
+	 * Downloads and parses the index of a p2 repository, either as jar or as XML.
+	 * 
+	 * @return the index, or null if it is not available
+	 */
+	Document downloadP2Index(URI repoUri, String indexName, List<Path> indexes) throws IOException {
+		for (String extension : new String[] { ".jar", ".xml" }) {
+			URI uri = repoUri.resolve(indexName + extension);
+			Path downloaded;
+			try {
+				downloaded = downloader.download(uri, originBase.resolve(p2LocalPath(uri)), null);
+			} catch (FileNotFoundException e) {
+				continue;
+			}
+			indexes.add(downloaded);
+			try {
+				DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+				if (extension.equals(".xml"))
+					return documentBuilder.parse(downloaded.toFile());
+				try (ZipIndex jar = new ZipIndex(downloaded)) {
+					for (ZipIndex.Entry entry : jar.getEntries())
+						if (entry.getName().equals(indexName + ".xml"))
+							try (InputStream in = jar.getInputStream(entry)) {
+								return documentBuilder.parse(in);
+							}
+				}
+				throw new IOException(downloaded + " does not contain " + indexName + ".xml");
+			} catch (ParserConfigurationException | SAXException e) {
+				throw new IOException("Cannot parse " + downloaded, e);
+			}
+		}
+		return null;
+	}
+
+	/** Downloads a bundle from a p2 repository. */
+	Path downloadP2(P2Artifact artifact) {
 		try {
-			A2Origin origin = new A2Origin();
-			Path bundleDir;
-			try (JarInputStream jarIn = new JarInputStream(Files.newInputStream(file), false)) {
-				Manifest manifest = jarIn.getManifest();
+			return downloader.download(artifact.uri, originBase.resolve(p2LocalPath(artifact.uri)), artifact.checksum);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot download " + artifact.uri, e);
+		}
+	}
+
+	/** Where a file from a p2 repository is stored locally, relative to the origin base. */
+	static String p2LocalPath(URI uri) {
+		String path = (uri.getHost() != null ? uri.getHost() : "") + "/" + uri.getPath();
+		return "p2/" + path.replaceAll("/+", "/").replaceAll("^/", "");
+	}
+
+	/** A bundle in a p2 repository. */
+	static class P2Artifact {
+		String id;
+		String version;
+		URI uri;
+		/** SHA-256 checksum, if published. */
+		String checksum;
+	}
+
+	/** The bundle directory related to sources in Eclipse format. */
+	Path eclipseSourceBundleDir(ZipIndex archive, ZipIndex.Entry entry, Path targetBase) throws IOException {
+		// only the beginning of the nested jar is inflated
+		try (JarInputStream jarIn = new JarInputStream(archive.getInputStream(entry), false)) {
+			Manifest manifest = jarIn.getManifest();
+			String[] relatedBundle = manifest.getMainAttributes().getValue(ECLIPSE_SOURCE_BUNDLE.toString()).split(";");
+			String version = relatedBundle[1].substring("version=\"".length());
+			version = version.substring(0, version.length() - 1);
+			NameVersion nameVersion = new NameVersion(relatedBundle[0], version);
+			return targetBase.resolve(nameVersion.getName() + "." + nameVersion.getBranch());
+		}
+	}
 
-				String[] relatedBundle = manifest.getMainAttributes().getValue(ECLIPSE_SOURCE_BUNDLE.toString())
-						.split(";");
-				String version = relatedBundle[1].substring("version=\"".length());
-				version = version.substring(0, version.length() - 1);
-				NameVersion nameVersion = new NameVersion(relatedBundle[0], version);
-				bundleDir = targetBase.resolve(nameVersion.getName() + "." + nameVersion.getBranch());
+	/**
+	 * Opens an archive nested in another one. It is read in memory, unless memory
+	 * is limited, in which case it is extracted to a temporary file.
+	 */
+	ZipIndex openNested(ZipIndex archive, ZipIndex.Entry entry) throws IOException {
+		if (memoryBudget == null)
+			return new ZipIndex(archive, entry);
+		String fileName = Paths.get(entry.getName()).getFileName().toString();
+		return new ZipIndex(archive, entry, Files.createTempFile("argeo-build-", "-" + fileName));
+	}
 
-				Path sourceDir = separateSources ? bundleDir.getParent().resolve(bundleDir.toString() + ".src")
-						: bundleDir.resolve("OSGI-OPT/src");
+	/** Process sources in Eclipse format. */
+	void processEclipseSourceJar(Path file, JarWriter jar) {
+		try {
+			processEclipseSourceJar(new ZipIndex(file), jar);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot process " + file, e);
+		}
+	}
 
-				Files.createDirectories(sourceDir);
-				JarEntry entry;
-				entries: while ((entry = jarIn.getNextJarEntry()) != null) {
+	/** Process sources in Eclipse format, from an archive which is closed when done. */
+	void processEclipseSourceJar(ZipIndex index, JarWriter jar) {
+		try {
+			A2Origin origin = new A2Origin();
+			String sourcePrefix = jar.getSourcePrefix();
+			try (index) {
+				JarWriter sourceJar = jar.getSourceJar();
+				entries: for (ZipIndex.Entry entry : index.getEntries()) {
 					if (entry.isDirectory())
 						continue entries;
 					if (entry.getName().startsWith("META-INF"))// skip META-INF entries
 						continue entries;
-					Path target = sourceDir.resolve(entry.getName());
-					Files.createDirectories(target.getParent());
-					Files.copy(jarIn, target);
+					String target = sourcePrefix + entry.getName();
+					sourceJar.copy(target, entry);
 					logger.log(TRACE, () -> "Copied source " + target);
 				}
 
-				// write the changes
-				if (separateSources) {
-					origin.appendChanges(sourceDir);
-				} else {
+				// record the changes
+				if (!sourcePrefix.equals(""))
 					origin.added.add("source code under OSGI-OPT/src");
-					origin.appendChanges(bundleDir);
-				}
+				sourceJar.appendChanges(origin);
 			}
 		} catch (IOException e) {
-			throw new IllegalStateException("Cannot process " + file, e);
+			throw new IllegalStateException("Cannot process " + index.getFile(), e);
 		}
 	}
 
 	/*
-	 * COMMON PROCESSING
+	 * PREFETCH
 	 */
-	/** Normalise a single (that is, non-merged) bundle. */
-	Path processBundleJar(Path file, Path targetBase, Map<String, String> entries, A2Origin origin) throws IOException {
-//		boolean embed = Boolean.parseBoolean(entries.getOrDefault(ARGEO_ORIGIN_EMBED.toString(), "false").toString());
-		boolean doNotModify = Boolean
-				.parseBoolean(entries.getOrDefault(ManifestHeader.ARGEO_DO_NOT_MODIFY.toString(), "false").toString());
-		NameVersion nameVersion;
-		Path bundleDir;
-		// singleton
-		boolean isSingleton = false;
-		Manifest manifest;
-		Manifest sourceManifest;
-		try (JarInputStream jarIn = new JarInputStream(Files.newInputStream(file), false)) {
-			sourceManifest = jarIn.getManifest();
-			if (sourceManifest == null)
-				logger.log(WARNING, file + " has no manifest");
-			manifest = sourceManifest != null ? new Manifest(sourceManifest) : new Manifest();
-
-			String rawSourceSymbolicName = manifest.getMainAttributes().getValue(BUNDLE_SYMBOLICNAME.toString());
-			if (rawSourceSymbolicName != null) {
-				// make sure there is no directive
-				String[] arr = rawSourceSymbolicName.split(";");
-				for (int i = 1; i < arr.length; i++) {
-					if (arr[i].trim().equals("singleton:=true"))
-						isSingleton = true;
-					logger.log(DEBUG, file.getFileName() + " is a singleton");
-				}
+	/**
+	 * Starts downloading all the artifacts required by these categories, so that
+	 * processing, which happens in the order of the descriptors, mostly finds
+	 * them already downloaded. Failed prefetches are ignored, since the download
+	 * will be tried again when the artifact is actually processed.
+	 * 
+	 * @return the executor running the downloads, to be shutdown when processing
+	 *         is completed
+	 */
+	ExecutorService prefetch(List<Path> categoryRelativePaths) {
+		ExecutorService executor = Executors.newFixedThreadPool(downloader.getMaxDownloads(), (r) -> {
+			Thread thread = new Thread(r, "Prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// categories are processed in parallel, so we interleave their downloads
+		List<List<Callable<Path>>> plans = new ArrayList<>();
+		int maxPlanSize = 0;
+		for (Path categoryRelativePath : categoryRelativePaths) {
+			List<Callable<Path>> plan = planDownloads(categoryRelativePath);
+			plans.add(plan);
+			maxPlanSize = Math.max(maxPlanSize, plan.size());
+		}
+		int count = 0;
+		for (int i = 0; i < maxPlanSize; i++) {
+			for (List<Callable<Path>> plan : plans) {
+				if (i >= plan.size())
+					continue;
+				Callable<Path> download = plan.get(i);
+				executor.submit(() -> {
+					try {
+						download.call();
+					} catch (Exception e) {
+						logger.log(DEBUG, () -> "Prefetch failed, will be retried when processing: " + e);
+					}
+				});
+				count++;
 			}
-			// remove problematic entries in MANIFEST
-			manifest.getEntries().clear();
-
-			String ourSymbolicName = entries.get(BUNDLE_SYMBOLICNAME.toString());
-			String ourVersion = entries.get(BUNDLE_VERSION.toString());
+		}
+		logger.log(DEBUG, "Prefetching " + count + " artifacts");
+		return executor;
+	}
 
-			if (ourSymbolicName != null && ourVersion != null) {
-				nameVersion = new NameVersion(ourSymbolicName, ourVersion);
-			} else {
-				nameVersion = nameVersionFromManifest(manifest);
-				if (nameVersion == null)
-					throw new IllegalStateException("Could not compute name/version from Manifest");
-				if (ourVersion != null && !nameVersion.getVersion().equals(ourVersion)) {
-					logger.log(WARNING,
-							"Original version is " + nameVersion.getVersion() + " while new version is " + ourVersion);
-					entries.put(BUNDLE_VERSION.toString(), ourVersion);
-				}
-				if (ourSymbolicName != null) {
-					// we always force our symbolic name
-					nameVersion.setName(ourSymbolicName);
+	/**
+	 * Downloads the origins of these categories to the origin store, so that they
+	 * can later be repackaged offline. Origins already in the local caches are
+	 * added to the store as well. Origins which cannot be downloaded (e.g.
+	 * unpublished sources) are reported, but do not fail the seeding.
+	 */
+	void seed(List<Path> categoryRelativePaths) {
+		downloader.setAdoptCached(true);
+		ExecutorService executor = Executors.newFixedThreadPool(downloader.getMaxDownloads());
+		try {
+			List<Future<Path>> downloads = new ArrayList<>();
+			for (Path categoryRelativePath : categoryRelativePaths)
+				for (Callable<Path> download : planDownloads(categoryRelativePath))
+					downloads.add(executor.submit(download));
+			int failed = 0;
+			for (Future<Path> download : downloads) {
+				try {
+					download.get();
+				} catch (ExecutionException e) {
+					logger.log(WARNING, "Cannot seed: " + e.getCause().getMessage());
+					failed++;
 				}
 			}
+			logger.log(INFO, "Seeded " + (downloads.size() - failed) + " origins to the origin store, " + failed
+					+ " not available");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-			bundleDir = targetBase.resolve(nameVersion.getName() + "." + nameVersion.getBranch());
-
-			// copy original MANIFEST
-			if (sourceManifest != null) {
-				Path originalManifest = bundleDir.resolve(ARGEO_ORIGIN).resolve("MANIFEST.MF");
-				Files.createDirectories(originalManifest.getParent());
-				try (OutputStream out = Files.newOutputStream(originalManifest)) {
-					sourceManifest.write(out);
+	/**
+	 * Lists the downloads required by a category, in the order in which they will
+	 * be used. Descriptors which cannot be interpreted are skipped, since the
+	 * related errors will be reported when processing.
+	 */
+	List<Callable<Path>> planDownloads(Path categoryRelativePath) {
+		List<Callable<Path>> plan = new ArrayList<>();
+		Path categoryBase = descriptorsBase.resolve(categoryRelativePath);
+		try (DirectoryStream<Path> bnds = Files.newDirectoryStream(categoryBase,
+				(p) -> p.getFileName().toString().endsWith(".bnd") && !p.getFileName().toString().equals(COMMON_BND)
+						&& !p.getFileName().toString().equals(MERGE_BND))) {
+			for (Path p : bnds) {
+				try {
+					Properties fileProps = loadProperties(p);
+					String m2Coordinates = fileProps.getProperty(ARGEO_ORIGIN_M2.toString());
+					if (m2Coordinates != null)
+						planM2Downloads(plan, fileProps, new M2Artifact(m2Coordinates));
+				} catch (IOException | RuntimeException e) {
+					logger.log(TRACE, () -> "Cannot plan downloads for " + p + ": " + e);
 				}
-				origin.moved.add("original MANIFEST to " + bundleDir.relativize(originalManifest));
-			}
-
-			// force Java 9 module name
-			entries.put(ManifestHeader.AUTOMATIC_MODULE_NAME.toString(), nameVersion.getName());
-
-			boolean isNative = false;
-			String os = null;
-			String arch = null;
-			if (bundleDir.startsWith(a2LibBase)) {
-				isNative = true;
-				Path libRelativePath = a2LibBase.relativize(bundleDir);
-				os = libRelativePath.getName(0).toString();
-				arch = libRelativePath.getName(1).toString();
 			}
+		} catch (IOException e) {
+			logger.log(TRACE, () -> "Cannot plan downloads for " + categoryBase + ": " + e);
+		}
 
-			// copy entries
-			JarEntry entry;
-			entries: while ((entry = jarIn.getNextJarEntry()) != null) {
-				if (entry.isDirectory())
-					continue entries;
-				if (!doNotModify) {
-					if (entry.getName().endsWith(".RSA") || entry.getName().endsWith(".DSA")
-							|| entry.getName().endsWith(".SF")) {
-						origin.deleted.add("cryptographic signatures");
-						continue entries;
-					}
-					if (entry.getName().endsWith("module-info.class")) { // skip Java 9 module info
-						origin.deleted.add("Java module information (module-info.class)");
-						continue entries;
-					}
-					if (entry.getName().startsWith("META-INF/versions/")) { // skip multi-version
-						origin.deleted.add("additional Java versions (META-INF/versions)");
-						continue entries;
-					}
-					if (entry.getName().startsWith("META-INF/maven/")) {
-						origin.deleted.add("Maven information (META-INF/maven)");
-						continue entries;
-					}
-					// skip file system providers as they cause issues with native image
-					if (entry.getName().startsWith("META-INF/services/java.nio.file.spi.FileSystemProvider")) {
-						origin.deleted
-								.add("file system providers (META-INF/services/java.nio.file.spi.FileSystemProvider)");
-						continue entries;
-					}
-				}
-				if (entry.getName().startsWith("OSGI-OPT/src/")) { // skip embedded sources
-					origin.deleted.add("embedded sources");
-					continue entries;
-				}
-				Path target = bundleDir.resolve(entry.getName());
-				Files.createDirectories(target.getParent());
-				Files.copy(jarIn, target);
-
-				// native libraries
-				boolean removeDllFromJar = true;
-				if (isNative && (entry.getName().endsWith(".so") || entry.getName().endsWith(".dll")
-						|| entry.getName().endsWith(".jnilib") || entry.getName().endsWith(".a"))) {
-					Path categoryDir = bundleDir.getParent();
-					boolean copyDll = false;
-					Path targetDll = categoryDir.resolve(bundleDir.relativize(target));
-					if (nameVersion.getName().equals("com.sun.jna")) {
-						if (arch.equals("x86_64"))
-							arch = "x86-64";
-						if (os.equals("macosx"))
-							os = "darwin";
-						if (target.getParent().getFileName().toString().equals(os + "-" + arch)) {
-							copyDll = true;
-						}
-						targetDll = categoryDir.resolve(target.getFileName());
-					} else {
-						copyDll = true;
-					}
-					if (copyDll) {
-						Files.createDirectories(targetDll.getParent());
-						if (Files.exists(targetDll))
-							Files.delete(targetDll);
-						Files.copy(target, targetDll);
+		try (DirectoryStream<Path> dus = Files.newDirectoryStream(categoryBase, (p) -> Files.isDirectory(p))) {
+			for (Path duDir : dus) {
+				try {
+					if (duDir.getFileName().toString().startsWith("eclipse-")) {
+						Properties commonProps = loadProperties(duDir.resolve(COMMON_BND));
+						if (commonProps.containsKey(ARGEO_ORIGIN_P2.toString()))
+							continue;// bundles are only known once the repository has been read
+						String url = commonProps.getProperty(ARGEO_ORIGIN_URI.toString(),
+								uris.getProperty(duDir.getFileName().toString()));
+						if (url != null)
+							plan.add(() -> tryDownloadArchive(url, originBase));
+						continue;
 					}
 
-					if (removeDllFromJar) {
-						Files.delete(target);
-						origin.deleted.add(bundleDir.relativize(target).toString());
+					Path commonBnd = duDir.resolve(COMMON_BND);
+					Path mergeBnd = duDir.resolve(MERGE_BND);
+					if (Files.exists(mergeBnd)) {
+						Properties mergeProps = loadMergeProperties(mergeBnd);
+						String m2Version = commonM2Version(mergeProps);
+						if (m2Version != null)
+							for (M2Artifact artifact : mergedM2Artifacts(mergeBnd, mergeProps, m2Version))
+								planM2Downloads(plan, mergeProps, artifact);
 					}
+
+					if (!Files.exists(commonBnd))
+						continue;
+					Properties commonProps = loadProperties(commonBnd);
+					String m2Version = commonM2Version(commonProps);
+					if (m2Version == null)
+						continue;
+					for (Properties mergedProps : loadM2Descriptors(duDir, commonProps, m2Version, false).values())
+						planM2Downloads(plan, mergedProps,
+								new M2Artifact(mergedProps.getProperty(ARGEO_ORIGIN_M2.toString())));
+				} catch (IOException | RuntimeException e) {
+					logger.log(TRACE, () -> "Cannot plan downloads for " + duDir + ": " + e);
 				}
-				logger.log(TRACE, () -> "Copied " + target);
 			}
+		} catch (IOException e) {
+			logger.log(TRACE, () -> "Cannot plan downloads for " + categoryBase + ": " + e);
 		}
+		return plan;
+	}
 
-		// copy MANIFEST
-		Path manifestPath = bundleDir.resolve("META-INF/MANIFEST.MF");
-		Files.createDirectories(manifestPath.getParent());
+	/** Plans the download of a Maven artifact and of its sources. */
+	void planM2Downloads(List<Callable<Path>> plan, Properties props, M2Artifact artifact) {
+		plan.add(() -> downloadMaven(props, artifact));
+		plan.add(() -> downloadMavenSources(props, artifact));
+	}
 
-		if (isSingleton && entries.containsKey(BUNDLE_SYMBOLICNAME.toString())) {
-			entries.put(BUNDLE_SYMBOLICNAME.toString(),
-					entries.get(BUNDLE_SYMBOLICNAME.toString()) + ";singleton:=true");
+	/** Loads a descriptor. */
+	static Properties loadProperties(Path path) throws IOException {
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(path)) {
+			props.load(in);
 		}
+		return props;
+	}
 
-		// Final MANIFEST decisions
-		// We also check the original OSGi metadata and compare with our changes
-		for (String key : entries.keySet()) {
-			String value = entries.get(key);
-			String previousValue = manifest.getMainAttributes().getValue(key);
-			boolean wasDifferent = previousValue != null && !previousValue.equals(value);
-			boolean keepPrevious = false;
-			if (wasDifferent) {
-				if (SPDX_LICENSE_IDENTIFIER.toString().equals(key) && previousValue != null)
-					keepPrevious = true;
-				else if (BUNDLE_VERSION.toString().equals(key) && wasDifferent)
-					if (previousValue.equals(value + ".0")) // typically a Maven first release
-						keepPrevious = true;
-
-				if (keepPrevious) {
-					if (logger.isLoggable(DEBUG))
-						logger.log(DEBUG, file.getFileName() + ": " + key + " was NOT modified, value kept is "
-								+ previousValue + ", not overriden with " + value);
-					value = previousValue;
-				}
-			}
-
-			manifest.getMainAttributes().putValue(key, value);
-			if (wasDifferent && !keepPrevious) {
-				if (IMPORT_PACKAGE.toString().equals(key) || EXPORT_PACKAGE.toString().equals(key))
-					logger.log(TRACE, () -> file.getFileName() + ": " + key + " was modified");
-				else if (BUNDLE_SYMBOLICNAME.toString().equals(key) || AUTOMATIC_MODULE_NAME.toString().equals(key))
-					logger.log(DEBUG,
-							file.getFileName() + ": " + key + " was " + previousValue + ", overridden with " + value);
-				else
-					logger.log(WARNING,
-							file.getFileName() + ": " + key + " was " + previousValue + ", overridden with " + value);
-				origin.modified.add("MANIFEST header " + key);
-			}
-
-			// !! hack to remove unresolvable
-			if (key.equals("Provide-Capability") || key.equals("Require-Capability"))
-				if (nameVersion.getName().equals("osgi.core") || nameVersion.getName().equals("osgi.cmpn")) {
-					manifest.getMainAttributes().remove(key);
-					origin.deleted.add("MANIFEST header " + key);
-				}
-		}
-
-		// de-pollute MANIFEST
-		for (Iterator<Map.Entry<Object, Object>> manifestEntries = manifest.getMainAttributes().entrySet()
-				.iterator(); manifestEntries.hasNext();) {
-			Map.Entry<Object, Object> manifestEntry = manifestEntries.next();
-			String key = manifestEntry.getKey().toString();
-			// TODO make it more generic
-			if (key.equals(REQUIRE_BUNDLE.toString()) && nameVersion.getName().equals("com.sun.jna.platform"))
-				manifestEntries.remove();
-			switch (key) {
-			case "Archiver-Version":
-			case "Build-By":
-			case "Created-By":
-			case "Originally-Created-By":
-			case "Tool":
-			case "Bnd-LastModified":
-				manifestEntries.remove();
-				origin.deleted.add("MANIFEST header " + manifestEntry.getKey());
-				break;
-			default:
-				if (sourceManifest != null && !sourceManifest.getMainAttributes().containsKey(manifestEntry.getKey()))
-					origin.added.add("MANIFEST header " + manifestEntry.getKey());
-			}
-		}
+	/*
+	 * DESCRIPTORS
+	 */
+	/**
+	 * The version common to the artifacts of a distribution unit, specified as
+	 * <code>:&lt;version&gt;</code> in these properties.
+	 * 
+	 * @return the version, or <code>null</code> if this is not an M2-based
+	 *         distribution unit
+	 */
+	static String commonM2Version(Properties props) {
+		String m2Version = props.getProperty(ARGEO_ORIGIN_M2.toString());
+		if (m2Version == null)
+			return null;
+		if (!m2Version.startsWith(":"))
+			throw new IllegalStateException("Only the M2 version can be specified: " + m2Version);
+		return m2Version.substring(1);
+	}
 
-		processLicense(bundleDir, manifest);
+	/** The properties of a merge, overriding those of its distribution unit. */
+	static Properties loadMergeProperties(Path mergeBnd) throws IOException {
+		Path commonBnd = mergeBnd.resolveSibling(COMMON_BND);
+		Properties mergeProps = Files.exists(commonBnd) ? loadProperties(commonBnd) : new Properties();
+		mergeProps.putAll(loadProperties(mergeBnd));
+		return mergeProps;
+	}
 
-		origin.modified.add("MANIFEST (META-INF/MANIFEST.MF)");
-		// write the MANIFEST
-		try (OutputStream out = Files.newOutputStream(manifestPath)) {
-			manifest.write(out);
+	/** The artifacts of a merge, with the common version if they do not specify one. */
+	static List<M2Artifact> mergedM2Artifacts(Path mergeBnd, Properties mergeProps, String m2Version) {
+		String artifactsStr = mergeProps.getProperty(ARGEO_ORIGIN_M2_MERGE.toString());
+		if (artifactsStr == null)
+			throw new IllegalArgumentException(mergeBnd + ": " + ARGEO_ORIGIN_M2_MERGE + " must be set");
+		List<M2Artifact> artifacts = new ArrayList<>();
+		for (String str : artifactsStr.split(",")) {
+			String m2Coordinates = str.trim();
+			if ("".equals(m2Coordinates))
+				continue;
+			M2Artifact artifact = new M2Artifact(m2Coordinates);
+			if (artifact.getVersion() == null)
+				artifact.setVersion(m2Version);
+			artifacts.add(artifact);
 		}
-		return bundleDir;
+		return artifacts;
 	}
 
-	/** Process SPDX license identifier. */
-	void processLicense(Path bundleDir, Manifest manifest) {
-		String spdxLicenceId = manifest.getMainAttributes().getValue(SPDX_LICENSE_IDENTIFIER.toString());
-		String bundleLicense = manifest.getMainAttributes().getValue(BUNDLE_LICENSE.toString());
-		if (spdxLicenceId == null) {
-			logger.log(ERROR, bundleDir.getFileName() + ": " + SPDX_LICENSE_IDENTIFIER + " not available, "
+	/**
+	 * The descriptors of the artifacts of an M2-based distribution unit (other
+	 * than the merge), with their properties overriding the common ones, and their
+	 * full M2 coordinates in {@link ManifestHeader#ARGEO_ORIGIN_M2}.
+	 * 
+	 * @param report whether overridden properties should be reported, which is
+	 *               done only once, when processing
+	 */
+	static Map<Path, Properties> loadM2Descriptors(Path duDir, Properties commonProps, String m2Version,
+			boolean report) throws IOException {
+		Map<Path, Properties> descriptors = new LinkedHashMap<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(duDir,
+				(p) -> p.getFileName().toString().endsWith(".bnd") && !p.getFileName().toString().equals(COMMON_BND)
+						&& !p.getFileName().toString().equals(MERGE_BND))) {
+			for (Path p : ds) {
+				Properties fileProps = loadProperties(p);
+				M2Artifact artifact = new M2Artifact(fileProps.getProperty(ARGEO_ORIGIN_M2.toString()));
+				if (artifact.getVersion() == null) {
+					artifact.setVersion(m2Version);
+				} else if (report) {
+					logger.log(DEBUG, p.getFileName() + " : Using version " + artifact.getVersion()
+							+ " specified in descriptor rather than " + m2Version + " specified in " + COMMON_BND);
+				}
+
+				// prepare manifest entries
+				Properties mergedProps = new Properties();
+				mergedProps.putAll(commonProps);
+
+				fileEntries: for (Object key : fileProps.keySet()) {
+					if (ARGEO_ORIGIN_M2.toString().equals(key))
+						continue fileEntries;
+					String value = fileProps.getProperty(key.toString());
+					Object previousValue = mergedProps.put(key.toString(), value);
+					if (previousValue != null && report) {
+						logger.log(WARNING, duDir.resolve(COMMON_BND) + ": " + key + " was " + previousValue
+								+ ", overridden with " + value);
+					}
+				}
+				mergedProps.put(ARGEO_ORIGIN_M2.toString(), artifact.toM2Coordinates());
+				if (!mergedProps.containsKey(BUNDLE_SYMBOLICNAME.toString())) {
+					// use file name as symbolic name
+					String symbolicName = p.getFileName().toString();
+					symbolicName = symbolicName.substring(0, symbolicName.length() - ".bnd".length());
+					mergedProps.put(BUNDLE_SYMBOLICNAME.toString(), symbolicName);
+				}
+				descriptors.put(p, mergedProps);
+			}
+		}
+		return descriptors;
+	}
+
+	/*
+	 * INCREMENTAL BUILD
+	 */
+	/**
+	 * The inputs of a unit of work (a standalone artifact, a merge or an
+	 * archive), and the files it has written. The unit does not need to be
+	 * processed again if its outputs are still there and have been produced from
+	 * the same inputs, by the same version of Repackage. Outputs are also kept in
+	 * a machine-wide store (unless disabled with
+	 * {@link #ENV_ARGEO_BUILD_OUTPUT_STORE}), keyed by the descriptor and its
+	 * fingerprint, from which other builds (typically of other branches) can hard
+	 * link them. The hashes of the origins are recorded with their size and
+	 * modification time, so that unchanged origins are not hashed again.
+	 */
+	class Fingerprint {
+		private final String descriptorPath;
+		private final Path recordPath;
+		private final Map<String, String> properties = new TreeMap<>();
+		/** Files whose content is an input, taken into account if they exist. */
+		private final List<Path> origins = new ArrayList<>();
+		/** The files written by this unit. */
+		private final Set<Path> outputs = ConcurrentHashMap.newKeySet();
+		/**
+		 * Computed when first needed, once all the origins have been added, and
+		 * recorded as such. Only inputs which are complete when checking are origins,
+		 * so that sources (downloaded only when processing) are not.
+		 */
+		private String value;
+		/**
+		 * The size, modification time and hash of the origins, by key in the record.
+		 */
+		private final Map<String, String> originHashes = new TreeMap<>();
+		/** The hashes of the origins in the previous record, loaded when needed. */
+		private Properties recordedHashes;
+
+		Fingerprint(Path descriptor, Properties props) {
+			this.descriptorPath = descriptorsBase.relativize(descriptor).toString();
+			this.recordPath = fingerprintsBase.resolve(descriptorPath + ".properties");
+			for (Object key : props.keySet())
+				properties.put(key.toString(), props.getProperty(key.toString()));
+			if (distributedFingerprints != null)
+				distributedFingerprints.computeIfAbsent(descriptor, (k) -> new ConcurrentLinkedQueue<>()).add(this);
+		}
+
+		void addOrigin(Path file) {
+			origins.add(file);
+		}
+
+		void addOutput(Path file) {
+			outputs.add(file);
+		}
+
+		/**
+		 * Whether the outputs are present and have been produced from the same inputs,
+		 * possibly by another build, in which case they are linked from the store.
+		 */
+		boolean isUpToDate() {
+			if (codeVersion == null)
+				return false;
+			try {
+				if (Files.exists(recordPath) && checkRecord())
+					return true;
+				return restoreFromStore();
+			} catch (IOException e) {
+				logger.log(WARNING, "Cannot check " + recordPath + ", processing again", e);
+				return false;
+			}
+		}
+
+		private boolean checkRecord() throws IOException {
+			Properties record = loadProperties(recordPath);
+			if (!compute().equals(record.getProperty("fingerprint")))
+				return false;
+			for (Path output : recordedOutputs(record))
+				if (!Files.exists(output))
+					return false;
+			outputs.addAll(recordedOutputs(record));
+			addLicensesUsed(outputs);
+			return true;
+		}
+
+		/** Records that the outputs have been written, deleting obsolete ones. */
+		void record() {
+			if (codeVersion == null)
+				return;
+			try {
+				writeRecord();
+			} catch (IOException e) {
+				logger.log(WARNING, "Cannot write " + recordPath + ", it will be processed again", e);
+			}
+			try {
+				publishToStore();
+			} catch (IOException e) {
+				logger.log(WARNING, "Cannot store the outputs of " + descriptorPath, e);
+			}
+		}
+
+		private void writeRecord() throws IOException {
+			if (Files.exists(recordPath))
+				for (Path previous : recordedOutputs(loadProperties(recordPath)))
+					if (!outputs.contains(previous) && Files.deleteIfExists(previous))
+						logger.log(DEBUG, () -> "Deleted obsolete " + previous);
+
+			Path outputBase = a2Base.getParent();
+			StringJoiner outputsStr = new StringJoiner(",");
+			for (Path output : new TreeSet<>(outputs))
+				outputsStr.add(outputBase.relativize(output).toString());
+			Properties record = new Properties();
+			record.setProperty("fingerprint", compute());
+			record.setProperty("outputs", outputsStr.toString());
+			for (String key : originHashes.keySet())
+				record.setProperty(key, originHashes.get(key));
+			Files.createDirectories(recordPath.getParent());
+			// written aside and moved, since other processes may be reading it
+			Path tmp = Files.createTempFile(recordPath.getParent(), recordPath.getFileName().toString(), ".tmp");
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				record.store(out, null);
+			}
+			Files.move(tmp, recordPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		private List<Path> recordedOutputs(Properties record) {
+			List<Path> res = new ArrayList<>();
+			for (String str : record.getProperty("outputs", "").split(","))
+				if (!str.isBlank())
+					res.add(a2Base.getParent().resolve(str));
+			return res;
+		}
+
+		private String compute() throws IOException {
+			if (value != null)
+				return value;
+			StringBuilder sb = new StringBuilder();
+			sb.append("repackage=" + codeVersion + "\n");
+			sb.append("separateSources=" + separateSources + "\n");
+			if (runtimeLayout)
+				sb.append("runtimeLayout=true\n");
+			for (String key : properties.keySet())
+				sb.append(key + "=" + properties.get(key) + "\n");
+			for (Path origin : new TreeSet<>(origins))
+				if (Files.exists(origin))
+					sb.append(origin.getFileName() + "=" + originHash(origin) + "\n");
+			value = sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
+			return value;
+		}
+
+		/**
+		 * The SHA-256 hash of an origin, computed only if its size or modification
+		 * time have changed since it was recorded.
+		 */
+		private String originHash(Path origin) throws IOException {
+			BasicFileAttributes attrs = Files.readAttributes(origin, BasicFileAttributes.class);
+			String stamp = attrs.size() + "," + attrs.lastModifiedTime().toMillis() + ",";
+			String key = "origin." + origin.getFileName();
+			String known = originHashes.get(key);
+			if (known == null) {
+				if (recordedHashes == null)
+					recordedHashes = Files.exists(recordPath) ? loadProperties(recordPath) : new Properties();
+				known = recordedHashes.getProperty(key);
+			}
+			if (known == null || !known.startsWith(stamp))
+				known = stamp + Downloader.checksum(origin, "sha256");
+			originHashes.put(key, known);
+			return known.substring(stamp.length());
+		}
+
+		/** The directory of the store where the outputs of this unit are kept. */
+		private Path storeEntry() throws IOException {
+			return storeBase.resolve(sha256((descriptorPath + "\n" + compute()).getBytes(StandardCharsets.UTF_8)));
+		}
+
+		/** Links the outputs from the store, if another build has produced them. */
+		private boolean restoreFromStore() throws IOException {
+			if (storeBase == null)
+				return false;
+			Path entry = storeEntry();
+			if (!Files.isDirectory(entry))
+				return false;
+			Files.walkFileTree(entry, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Path relative = entry.relativize(file);
+					Path base = relative.getName(0).toString().equals("sources") ? a2SrcBase : a2Base;
+					Path output = base.resolve(relative.subpath(1, relative.getNameCount()).toString());
+					Files.createDirectories(output.getParent());
+					Files.deleteIfExists(output);
+					linkOrCopy(file, output);
+					outputs.add(output);
+					return CONTINUE;
+				}
+			});
+			addLicensesUsed(outputs);
+			record();
+			// touched, so that the entries which are not used anymore can be pruned
+			try {
+				Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			} catch (IOException e) {
+				logger.log(TRACE, () -> "Cannot touch " + entry + ": " + e);
+			}
+			logger.log(DEBUG, () -> "Linked outputs of " + descriptorPath + " from " + entry);
+			return true;
+		}
+
+		/**
+		 * Links the outputs to the store, unless they are already there, or they
+		 * cannot be hard linked (since copying them would double the disk space).
+		 */
+		private void publishToStore() throws IOException {
+			if (storeBase == null || !storeLinkable)
+				return;
+			Path entry = storeEntry();
+			if (Files.exists(entry))
+				return;
+			Files.createDirectories(storeBase);
+			// prepared aside, so that other builds only see complete entries
+			Path tmp = Files.createTempDirectory(storeBase, entry.getFileName() + ".");
+			try {
+				for (Path output : outputs) {
+					Path stored;
+					if (output.startsWith(a2Base))
+						stored = tmp.resolve("binaries").resolve(a2Base.relativize(output).toString());
+					else if (output.startsWith(a2SrcBase))
+						stored = tmp.resolve("sources").resolve(a2SrcBase.relativize(output).toString());
+					else
+						throw new IllegalStateException(output + " is neither under " + a2Base + " nor " + a2SrcBase);
+					Files.createDirectories(stored.getParent());
+					try {
+						Files.createLink(stored, output);
+					} catch (IOException | UnsupportedOperationException e) {
+						if (storeLinkable) {
+							storeLinkable = false;
+							logger.log(WARNING, "Outputs cannot be hard linked to " + storeBase + " (" + e
+									+ "), they will not be stored; set " + ENV_ARGEO_BUILD_OUTPUT_STORE
+									+ " to a directory on the same file system, or to 'none'");
+						}
+						return;
+					}
+				}
+				Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+				logger.log(DEBUG, () -> "Stored outputs of " + descriptorPath + " in " + entry);
+			} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+				// stored concurrently by another build
+			} finally {
+				deleteDirectory(tmp);
+			}
+		}
+	}
+
+	/**
+	 * A hash of the code of Repackage, or null if it cannot be computed, in which
+	 * case all artifacts are always processed.
+	 */
+	static String codeVersion() {
+		try {
+			Path code = Paths.get(Repackage.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (!Files.isRegularFile(code)) {
+				logger.log(DEBUG, "Code of Repackage is not a file, all artifacts will be processed");
+				return null;
+			}
+			return Downloader.checksum(code, "sha256");
+		} catch (Exception e) {
+			logger.log(WARNING, "Cannot compute the version of the Repackage code, all artifacts will be processed",
+					e);
+			return null;
+		}
+	}
+
+	/*
+	 * BND ANALYSIS
+	 */
+	/**
+	 * Computes the MANIFEST headers of a jar with BND. The result depends only on
+	 * the content of the jar and on the BND properties, so it is cached and reused
+	 * when the same content is analysed again with the same properties. The
+	 * headers changing from one run to the other (Tool, Bnd-LastModified,
+	 * Created-By) are not kept. The jar is closed.
+	 * 
+	 * @param contentHash a hash of the content of the jar
+	 */
+	Map<String, String> analyze(Jar jar, String contentHash, Properties bndProps, A2Origin origin)
+			throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append("bnd=" + About.CURRENT + "\n");
+		sb.append("name=" + jar.getName() + "\n");
+		sb.append("content=" + contentHash + "\n");
+		for (String key : new TreeSet<>(bndProps.stringPropertyNames()))
+			sb.append(key + "=" + bndProps.getProperty(key) + "\n");
+		String cacheKey = sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
+		Path cached = bndCacheBase != null ? bndCacheBase.resolve(cacheKey + ".properties") : null;
+		long start = System.nanoTime();
+		boolean reused = true;
+
+		Map<String, String> headers = null;
+		if (cached != null && Files.exists(cached)) {
+			try {
+				Properties cachedHeaders = loadProperties(cached);
+				headers = new TreeMap<>();
+				for (String key : cachedHeaders.stringPropertyNames())
+					headers.put(key, cachedHeaders.getProperty(key));
+				jar.close();
+				logger.log(DEBUG, () -> "Reused BND analysis of " + jar.getName() + " from " + cached);
+			} catch (IOException e) {
+				logger.log(WARNING, "Cannot read " + cached + ", analysing " + jar.getName() + " again", e);
+				headers = null;
+			}
+		}
+
+		if (headers == null) {
+			reused = false;
+			headers = new TreeMap<>();
+			// bnd keeps the parsed classes until the analysis is complete
+			int granted = 0;
+			if (memoryBudget != null) {
+				long classesSize = 0;
+				for (Map.Entry<String, Resource> resource : jar.getResources().entrySet())
+					if (resource.getKey().endsWith(".class"))
+						classesSize += resource.getValue().size();
+				long waitStart = System.nanoTime();
+				granted = memoryBudget.acquire(classesSize);
+				long waited = System.nanoTime() - waitStart;
+				logger.log(TRACE, () -> "Waited " + toMillis(waited) + " ms for memory to analyse " + jar.getName());
+			}
+			try (Analyzer bndAnalyzer = new Analyzer()) {
+				bndAnalyzer.setProperties(bndProps);
+				bndAnalyzer.setJar(jar);
+				Manifest manifest = bndAnalyzer.calcManifest();
+
+				keys: for (Object key : manifest.getMainAttributes().keySet()) {
+					Object value = manifest.getMainAttributes().get(key);
+
+					switch (key.toString()) {
+					case "Tool":
+					case "Bnd-LastModified":
+					case "Created-By":
+						continue keys;
+					}
+					headers.put(key.toString(), value.toString());
+				}
+			} finally {
+				if (memoryBudget != null)
+					memoryBudget.release(granted);
+			}
+			// written aside and then moved, since other tasks may be reading it
+			if (cached != null)
+				try {
+					Files.createDirectories(bndCacheBase);
+					Path tmp = Files.createTempFile(bndCacheBase, cacheKey, ".tmp");
+					Properties toCache = new Properties();
+					toCache.putAll(headers);
+					try (OutputStream out = Files.newOutputStream(tmp)) {
+						toCache.store(out, null);
+					}
+					Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					logger.log(WARNING, "Cannot cache the BND analysis of " + jar.getName(), e);
+				}
+		}
+		origin.metrics.addAnalysis(System.nanoTime() - start, reused);
+
+		String requireCapability = headers.get("Require-Capability");
+		if (requireCapability != null
+				&& requireCapability.equals("osgi.ee;filter:=\"(&(osgi.ee=JavaSE)(version=1.1))\"")) {
+			headers.remove("Require-Capability");
+			origin.deleted.add("MANIFEST header Require-Capability");// hack for very old classes
+		}
+		return headers;
+	}
+
+	/** A hash of the names and content of resources, in their iteration order. */
+	static String contentHash(Map<String, Resource> resources) throws Exception {
+		MessageDigest digest = newSha256();
+		for (Map.Entry<String, Resource> resource : resources.entrySet()) {
+			digest.update(resource.getKey().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			try (InputStream in = resource.getValue().openInputStream()) {
+				in.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * A bnd jar whose entries are read from an archive when needed, with the same
+	 * name and content as if it had been opened directly.
+	 */
+	static Jar newJar(ZipIndex index) throws IOException {
+		String fileName = index.getFile().getFileName().toString();
+		Jar jar = new Jar(fileName.endsWith(".jar") ? fileName.substring(0, fileName.length() - 4) : fileName);
+		if (index.getManifestEntry() != null)
+			jar.putResource(index.getManifestEntry().getName(), new EntryResource(index.getManifestEntry()));
+		for (ZipIndex.Entry entry : index.getEntries())
+			if (!entry.isDirectory())
+				jar.putResource(entry.getName(), new EntryResource(entry));
+		return jar;
+	}
+
+	/** The SHA-256 of these bytes, as an hexadecimal string. */
+	static String sha256(byte[] bytes) {
+		return HexFormat.of().formatHex(newSha256().digest(bytes));
+	}
+
+	static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/*
+	 * COMMON PROCESSING
+	 */
+	/**
+	 * Normalise a single (that is, non-merged) bundle.
+	 * 
+	 * @return the jar being written, to which sources can be added before it is
+	 *         closed
+	 */
+	JarWriter processBundleJar(Path file, Path targetBase, Map<String, String> entries, A2Origin origin)
+			throws IOException {
+		return processBundleJar(new ZipIndex(file), targetBase, entries, origin);
+	}
+
+	/**
+	 * Normalise a single (that is, non-merged) bundle, from an archive which is
+	 * closed when done.
+	 * 
+	 * @return the jar being written, to which sources can be added before it is
+	 *         closed
+	 */
+	JarWriter processBundleJar(ZipIndex index, Path targetBase, Map<String, String> entries, A2Origin origin)
+			throws IOException {
+		Path file = index.getFile();
+//		boolean embed = Boolean.parseBoolean(entries.getOrDefault(ARGEO_ORIGIN_EMBED.toString(), "false").toString());
+		boolean doNotModify = Boolean
+				.parseBoolean(entries.getOrDefault(ManifestHeader.ARGEO_DO_NOT_MODIFY.toString(), "false").toString());
+		NameVersion nameVersion;
+		Path bundleDir;
+		// singleton
+		boolean isSingleton = false;
+		Manifest manifest;
+		Manifest sourceManifest;
+		try (index) {
+			origin.metrics.entries += index.getEntries().size();
+			origin.metrics.originBytes += index.getSize();
+			sourceManifest = index.getManifest();
+			if (sourceManifest == null)
+				logger.log(WARNING, file + " has no manifest");
+			manifest = sourceManifest != null ? new Manifest(sourceManifest) : new Manifest();
+
+			String rawSourceSymbolicName = manifest.getMainAttributes().getValue(BUNDLE_SYMBOLICNAME.toString());
+			if (rawSourceSymbolicName != null) {
+				// make sure there is no directive
+				String[] arr = rawSourceSymbolicName.split(";");
+				for (int i = 1; i < arr.length; i++) {
+					if (arr[i].trim().equals("singleton:=true"))
+						isSingleton = true;
+					logger.log(DEBUG, file.getFileName() + " is a singleton");
+				}
+			}
+			// remove problematic entries in MANIFEST
+			manifest.getEntries().clear();
+
+			String ourSymbolicName = entries.get(BUNDLE_SYMBOLICNAME.toString());
+			String ourVersion = entries.get(BUNDLE_VERSION.toString());
+
+			if (ourSymbolicName != null && ourVersion != null) {
+				nameVersion = new NameVersion(ourSymbolicName, ourVersion);
+			} else {
+				nameVersion = nameVersionFromManifest(manifest);
+				if (nameVersion == null)
+					throw new IllegalStateException("Could not compute name/version from Manifest");
+				if (ourVersion != null && !nameVersion.getVersion().equals(ourVersion)) {
+					logger.log(WARNING,
+							"Original version is " + nameVersion.getVersion() + " while new version is " + ourVersion);
+					entries.put(BUNDLE_VERSION.toString(), ourVersion);
+				}
+				if (ourSymbolicName != null) {
+					// we always force our symbolic name
+					nameVersion.setName(ourSymbolicName);
+				}
+			}
+
+			bundleDir = targetBase.resolve(nameVersion.getName() + "." + nameVersion.getBranch());
+
+			// force Java 9 module name
+			entries.put(ManifestHeader.AUTOMATIC_MODULE_NAME.toString(), nameVersion.getName());
+
+			// the MANIFEST is computed first, since it is the first entry of the jar
+			if (isSingleton && entries.containsKey(BUNDLE_SYMBOLICNAME.toString())) {
+				entries.put(BUNDLE_SYMBOLICNAME.toString(),
+						entries.get(BUNDLE_SYMBOLICNAME.toString()) + ";singleton:=true");
+			}
+
+			// Final MANIFEST decisions
+			// We also check the original OSGi metadata and compare with our changes
+			for (String key : entries.keySet()) {
+				String value = entries.get(key);
+				String previousValue = manifest.getMainAttributes().getValue(key);
+				boolean wasDifferent = previousValue != null && !previousValue.equals(value);
+				boolean keepPrevious = false;
+				if (wasDifferent) {
+					if (SPDX_LICENSE_IDENTIFIER.toString().equals(key) && previousValue != null)
+						keepPrevious = true;
+					else if (BUNDLE_VERSION.toString().equals(key) && wasDifferent)
+						if (previousValue.equals(value + ".0")) // typically a Maven first release
+							keepPrevious = true;
+
+					if (keepPrevious) {
+						if (logger.isLoggable(DEBUG))
+							logger.log(DEBUG, file.getFileName() + ": " + key + " was NOT modified, value kept is "
+									+ previousValue + ", not overriden with " + value);
+						value = previousValue;
+					}
+				}
+
+				manifest.getMainAttributes().putValue(key, value);
+				if (wasDifferent && !keepPrevious) {
+					if (IMPORT_PACKAGE.toString().equals(key) || EXPORT_PACKAGE.toString().equals(key))
+						logger.log(TRACE, () -> file.getFileName() + ": " + key + " was modified");
+					else if (BUNDLE_SYMBOLICNAME.toString().equals(key)
+							|| AUTOMATIC_MODULE_NAME.toString().equals(key))
+						logger.log(DEBUG, file.getFileName() + ": " + key + " was " + previousValue
+								+ ", overridden with " + value);
+					else
+						logger.log(WARNING, file.getFileName() + ": " + key + " was " + previousValue
+								+ ", overridden with " + value);
+					origin.modified.add("MANIFEST header " + key);
+				}
+
+				// !! hack to remove unresolvable
+				if (key.equals("Provide-Capability") || key.equals("Require-Capability"))
+					if (nameVersion.getName().equals("osgi.core") || nameVersion.getName().equals("osgi.cmpn")) {
+						manifest.getMainAttributes().remove(key);
+						origin.deleted.add("MANIFEST header " + key);
+					}
+			}
+
+			// de-pollute MANIFEST
+			for (Iterator<Map.Entry<Object, Object>> manifestEntries = manifest.getMainAttributes().entrySet()
+					.iterator(); manifestEntries.hasNext();) {
+				Map.Entry<Object, Object> manifestEntry = manifestEntries.next();
+				String key = manifestEntry.getKey().toString();
+				// TODO make it more generic
+				if (key.equals(REQUIRE_BUNDLE.toString()) && nameVersion.getName().equals("com.sun.jna.platform"))
+					manifestEntries.remove();
+				switch (key) {
+				case "Archiver-Version":
+				case "Build-By":
+				case "Created-By":
+				case "Originally-Created-By":
+				case "Tool":
+				case "Bnd-LastModified":
+					manifestEntries.remove();
+					origin.deleted.add("MANIFEST header " + manifestEntry.getKey());
+					break;
+				default:
+					if (sourceManifest != null
+							&& !sourceManifest.getMainAttributes().containsKey(manifestEntry.getKey()))
+						origin.added.add("MANIFEST header " + manifestEntry.getKey());
+				}
+			}
+
+			processLicense(bundleDir, manifest);
+
+			origin.modified.add("MANIFEST (META-INF/MANIFEST.MF)");
+
+			JarWriter jar = new JarWriter(bundleDir, manifest, origin);
+			try {
+				// copy original MANIFEST
+				if (sourceManifest != null) {
+					String originalManifest = ARGEO_ORIGIN + "/MANIFEST.MF";
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					sourceManifest.write(out);
+					jar.write(originalManifest, out.toByteArray());
+					origin.moved.add("original MANIFEST to " + originalManifest);
+				}
+
+				// the categories to which native libraries are extracted
+				Map<Path, Fingerprint> nativeCategories = new LinkedHashMap<>();
+				if (bundleDir.startsWith(a2LibBase)) {
+					nativeCategories.put(bundleDir.getParent(), origin.fingerprint);
+					nativeCategories.putAll(origin.nativeFanOut);
+				}
+
+				// copy entries
+				entries: for (ZipIndex.Entry entry : index.getEntries()) {
+					if (entry.isDirectory())
+						continue entries;
+					if (!doNotModify) {
+						if (entry.getName().endsWith(".RSA") || entry.getName().endsWith(".DSA")
+								|| entry.getName().endsWith(".SF")) {
+							origin.deleted.add("cryptographic signatures");
+							continue entries;
+						}
+						if (entry.getName().endsWith("module-info.class")) { // skip Java 9 module info
+							origin.deleted.add("Java module information (module-info.class)");
+							continue entries;
+						}
+						if (entry.getName().startsWith("META-INF/versions/")) { // skip multi-version
+							origin.deleted.add("additional Java versions (META-INF/versions)");
+							continue entries;
+						}
+						if (entry.getName().startsWith("META-INF/maven/")) {
+							origin.deleted.add("Maven information (META-INF/maven)");
+							continue entries;
+						}
+						// skip file system providers as they cause issues with native image
+						if (entry.getName().startsWith("META-INF/services/java.nio.file.spi.FileSystemProvider")) {
+							origin.deleted.add(
+									"file system providers (META-INF/services/java.nio.file.spi.FileSystemProvider)");
+							continue entries;
+						}
+					}
+					if (entry.getName().startsWith("OSGI-OPT/src/")) { // skip embedded sources
+						origin.deleted.add("embedded sources");
+						continue entries;
+					}
+
+					// native libraries are extracted next to the bundle, not kept in the jar
+					if (!nativeCategories.isEmpty() && (entry.getName().endsWith(".so")
+							|| entry.getName().endsWith(".dll") || entry.getName().endsWith(".jnilib")
+							|| entry.getName().endsWith(".a"))) {
+						for (Path categoryDir : nativeCategories.keySet())
+							extractNative(index, entry, nameVersion.getName(),
+									categoryDir.resolve(bundleDir.getFileName()), nativeCategories.get(categoryDir));
+						origin.deleted.add(bundleDir.relativize(bundleDir.resolve(entry.getName())).toString());
+						continue entries;
+					}
+
+					String target = entry.getName();
+					jar.copy(target, entry);
+					logger.log(TRACE, () -> "Copied " + target);
+				}
+			} catch (IOException | RuntimeException e) {
+				jar.abort();
+				throw e;
+			}
+			return jar;
+		}
+	}
+
+	/**
+	 * Extracts a native library next to a bundle, if it is relevant to the os and
+	 * arch of its category.
+	 */
+	void extractNative(ZipIndex index, ZipIndex.Entry entry, String bundleName, Path bundleDir,
+			Fingerprint fingerprint) throws IOException {
+		Path libRelativePath = a2LibBase.relativize(bundleDir);
+		String os = libRelativePath.getName(0).toString();
+		String arch = libRelativePath.getName(1).toString();
+		Path target = bundleDir.resolve(entry.getName());
+		Path categoryDir = bundleDir.getParent();
+		boolean copyDll = false;
+		Path targetDll = categoryDir.resolve(bundleDir.relativize(target));
+		if (bundleName.equals("com.sun.jna")) {
+			if (arch.equals("x86_64"))
+				arch = "x86-64";
+			if (os.equals("macosx"))
+				os = "darwin";
+			if (target.getParent().getFileName().toString().equals(os + "-" + arch)) {
+				copyDll = true;
+			}
+			targetDll = categoryDir.resolve(target.getFileName());
+		} else {
+			copyDll = true;
+		}
+		if (copyDll) {
+			Files.createDirectories(targetDll.getParent());
+			try (InputStream in = index.getInputStream(entry)) {
+				Files.copy(in, targetDll, StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (fingerprint != null)
+				fingerprint.addOutput(targetDll);
+		}
+	}
+
+	/** Process SPDX license identifier. */
+	void processLicense(Path bundleDir, Manifest manifest) {
+		String spdxLicenceId = manifest.getMainAttributes().getValue(SPDX_LICENSE_IDENTIFIER.toString());
+		String bundleLicense = manifest.getMainAttributes().getValue(BUNDLE_LICENSE.toString());
+		if (spdxLicenceId == null) {
+			logger.log(ERROR, bundleDir.getFileName() + ": " + SPDX_LICENSE_IDENTIFIER + " not available, "
 					+ BUNDLE_LICENSE + " is " + bundleLicense);
 		} else {
-			// only use the first licensing option
-			int orIndex = spdxLicenceId.indexOf(" OR ");
-			if (orIndex >= 0)
-				spdxLicenceId = spdxLicenceId.substring(0, orIndex).trim();
+			// only use the first licensing option
+			int orIndex = spdxLicenceId.indexOf(" OR ");
+			if (orIndex >= 0)
+				spdxLicenceId = spdxLicenceId.substring(0, orIndex).trim();
+
+			String bundleDirName = bundleDir.getFileName().toString();
+			// force licenses of some well-known components
+			// even if we say otherwise (typically because from an Eclipse archive)
+			if (bundleDirName.startsWith("org.apache."))
+				spdxLicenceId = "Apache-2.0";
+			if (bundleDirName.startsWith("com.sun.jna."))
+				spdxLicenceId = "Apache-2.0";
+			if (bundleDirName.startsWith("com.ibm.icu."))
+				spdxLicenceId = "ICU";
+			if (bundleDirName.startsWith("javax.annotation."))
+				spdxLicenceId = "GPL-2.0-only WITH Classpath-exception-2.0";
+			if (bundleDirName.startsWith("javax.inject."))
+				spdxLicenceId = "Apache-2.0";
+			if (bundleDirName.startsWith("org.osgi."))
+				spdxLicenceId = "Apache-2.0";
+
+			manifest.getMainAttributes().putValue(SPDX_LICENSE_IDENTIFIER.toString(), spdxLicenceId);
+			addLicenseUsed(spdxLicenceId, bundleDir);
+		}
+	}
+
+	/** Rebuilds the license summary from bundles which have not been processed. */
+	void addLicensesUsed(Collection<Path> outputs) throws IOException {
+		for (Path output : outputs) {
+			if (!output.startsWith(a2Base) || !output.getFileName().toString().endsWith(".jar"))
+				continue;
+			try (JarInputStream jarIn = new JarInputStream(Files.newInputStream(output), false)) {
+				Manifest manifest = jarIn.getManifest();
+				String spdxLicenceId = manifest != null
+						? manifest.getMainAttributes().getValue(SPDX_LICENSE_IDENTIFIER.toString())
+						: null;
+				if (spdxLicenceId != null) {
+					String fileName = output.getFileName().toString();
+					addLicenseUsed(spdxLicenceId,
+							output.resolveSibling(fileName.substring(0, fileName.length() - ".jar".length())));
+				}
+			}
+		}
+	}
+
+	/** Adds a bundle to the license summary. */
+	static void addLicenseUsed(String spdxLicenceId, Path bundleDir) {
+		Summary.collector().licensesUsed.computeIfAbsent(spdxLicenceId, (k) -> new HashSet<>())
+				.add(bundleDir.getParent().getFileName() + "/" + bundleDir.getFileName());
+	}
+
+	/** Adds the metrics of a bundle to the report. */
+	static void addMetrics(Metrics bundleMetrics) {
+		Summary.collector().metrics.add(bundleMetrics);
+	}
+
+	/**
+	 * Writes the metrics of the bundles produced by this process as JSON next to
+	 * the incremental records, and logs them as a table, slowest first.
+	 */
+	void reportMetrics(Summary summary, String reportName) {
+		List<Metrics> sorted = summary.metrics;
+		if (sorted.isEmpty())
+			return;
+
+		StringJoiner json = new StringJoiner(",\n", "[\n", "\n]\n");
+		StringBuilder table = new StringBuilder();
+		table.append(String.format("%8s %8s %10s %6s %8s %8s %7s %11s %10s  %s\n", "total", "download", "bytes",
+				"cached", "bnd", "write", "entries", "+/~/>/-", "output", "bundle"));
+		for (Metrics m : sorted) {
+			json.add(m.toJson());
+			table.append(String.format("%8d %8d %10d %6s %8s %8d %7d %11s %10d  %s\n", toMillis(m.getTotalNanos()),
+					toMillis(m.downloadNanos), m.downloadBytes, m.cached != null ? (m.cached ? "hit" : "miss") : "-",
+					m.analysisCached != null ? toMillis(m.analysisNanos) + (m.analysisCached ? "*" : "") : "-",
+					toMillis(m.writeNanos), m.entries,
+					m.added + "/" + m.modified + "/" + m.moved + "/" + m.deleted, m.outputBytes, m.bundle));
+		}
+		logger.log(INFO, "# Metrics (times in ms, slowest first, * when reused from cache):\n" + table);
+
+		Path reportPath = fingerprintsBase.resolve(reportName);
+		try {
+			Files.createDirectories(fingerprintsBase);
+			Files.writeString(reportPath, json.toString());
+		} catch (IOException e) {
+			logger.log(ERROR, "Cannot write metrics report " + reportPath, e);
+		}
+	}
+
+	/** Adds an artifact to the summary of missing sources. */
+	static void addSourcesMissing(M2Artifact artifact, Exception e) {
+		Summary.collector().sourcesMissing.put(artifact.toString(), e.toString());
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	/**
+	 * Hard links a file, so that the disk space is shared, or copies it if it is
+	 * not on the same file system.
+	 */
+	static void linkOrCopy(Path existing, Path link) throws IOException {
+		try {
+			Files.createLink(link, existing);
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(existing, link, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * A new file next to this one, to which it can be written aside before being
+	 * moved, distinct for each writer. It has the permissions of a file created
+	 * directly, rather than the restricted ones of temporary files.
+	 */
+	static Path createTempSibling(Path path) throws IOException {
+		if (!path.getFileSystem().supportedFileAttributeViews().contains("posix"))
+			return Files.createTempFile(path.getParent(), path.getFileName() + ".", ".tmp");
+		return Files.createTempFile(path.getParent(), path.getFileName() + ".", ".tmp",
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-rw-rw-")));
+	}
+
+	/** Nanoseconds as milliseconds. */
+	static long toMillis(long nanos) {
+		return nanos / 1_000_000;
+	}
+
+	/** A string as a JSON literal. */
+	static String jsonString(String str) {
+		if (str == null)
+			return "null";
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : str.toCharArray()) {
+			switch (c) {
+			case '"':
+			case '\\':
+				sb.append('\\').append(c);
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/** Parses a size in bytes, possibly with a k, m or g suffix. */
+	static long parseSize(String size) {
+		String str = size.trim().toLowerCase();
+		int shift = switch (str.charAt(str.length() - 1)) {
+		case 'k' -> 10;
+		case 'm' -> 20;
+		case 'g' -> 30;
+		default -> 0;
+		};
+		if (shift != 0)
+			str = str.substring(0, str.length() - 1);
+		return Long.parseLong(str) << shift;
+	}
+
+	/** Recursively deletes a directory. */
+	static void deleteDirectory(Path path) throws IOException {
+		if (!Files.exists(path))
+			return;
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				if (e != null)
+					throw e;
+				Files.delete(directory);
+				return CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return CONTINUE;
+			}
+		});
+	}
+
+	/** Extract name/version from a MANIFEST. */
+	NameVersion nameVersionFromManifest(Manifest manifest) {
+		Attributes attrs = manifest.getMainAttributes();
+		// symbolic name
+		String symbolicName = attrs.getValue(ManifestHeader.BUNDLE_SYMBOLICNAME.toString());
+		if (symbolicName == null)
+			return null;
+		// make sure there is no directive
+		symbolicName = symbolicName.split(";")[0];
+
+		String version = attrs.getValue(ManifestHeader.BUNDLE_VERSION.toString());
+		return new NameVersion(symbolicName, version);
+	}
+
+	/** Try to download from an URI. */
+	Path tryDownloadArchive(String uriStr, Path dir) throws IOException {
+		// find mirror
+		List<String> urlBases = null;
+		String uriPrefix = null;
+		uriPrefixes: for (String uriPref : mirrors.keySet()) {
+			if (uriStr.startsWith(uriPref)) {
+				if (mirrors.get(uriPref).size() > 0) {
+					urlBases = mirrors.get(uriPref);
+					uriPrefix = uriPref;
+					break uriPrefixes;
+				}
+			}
+		}
+		if (urlBases == null)
+			try {
+				return downloadArchive(new URI(uriStr), dir);
+			} catch (FileNotFoundException | URISyntaxException e) {
+				throw new FileNotFoundException("Cannot find " + uriStr);
+			}
+
+		// try to download, from the fastest mirror first
+		String relativePath = uriStr.substring(uriPrefix.length());
+		List<URI> candidates = new ArrayList<>();
+		for (String urlBase : urlBases) {
+			String uStr = urlBase + relativePath;
+			try {
+				URI uri = new URI(uStr);
+				if (Files.exists(dir.resolve(archiveName(uri))))
+					return downloadArchive(uri, dir);
+				candidates.add(uri);
+			} catch (URISyntaxException e) {
+				logger.log(WARNING, "Ignoring invalid mirror URI " + uStr);
+			}
+		}
+		FileNotFoundException notFound = new FileNotFoundException("Cannot find " + uriStr);
+		for (URI uri : downloader.rank(candidates)) {
+			try {
+				// a partial download from another mirror will be resumed
+				return downloadArchive(uri, dir);
+			} catch (IOException e) {
+				logger.log(WARNING, "Cannot download " + uri + ", trying another mirror (" + e.getMessage() + ")");
+				notFound.addSuppressed(e);
+			}
+		}
+		throw notFound;
+	}
+
+	/**
+	 * Effectively download an archive.
+	 */
+	Path downloadArchive(URI uri, Path dir) throws IOException {
+		return download(uri, dir, (String) null);
+	}
+
+	/**
+	 * Effectively download. Concurrent downloads of the same file are taken care of
+	 * by the {@link Downloader}.
+	 */
+	Path download(URI uri, Path dir, String name) throws IOException {
+		if (name == null)
+			name = archiveName(uri);
+		String[] segments = uri.getPath().split("/");
+		String checksum = checksums.getProperty(segments[segments.length - 1]);
+		return downloader.download(uri, dir.resolve(name), checksum);
+	}
+
+	/** The name under which an archive is stored locally. */
+	static String archiveName(URI uri) {
+		// We use also use parent directory in case the archive itself has a fixed name
+		String[] segments = uri.getPath().split("/");
+		return segments.length > 1 ? segments[segments.length - 2] + '-' + segments[segments.length - 1]
+				: segments[segments.length - 1];
+	}
+
+	/**
+	 * Creates the jar containing the sources of a bundle, in the Eclipse-SourceBundle
+	 * format.
+	 */
+	JarWriter newSourceJar(Path bundleDir, Manifest manifest, Object mapping) throws IOException {
+		Path bundleCategoryDir = bundleDir.getParent();
+		Path sourceDir = bundleCategoryDir.resolve(bundleDir.toString() + ".src");
+
+		Path relPath = a2Base.relativize(bundleCategoryDir);
+		Path srcCategoryDir = a2SrcBase.resolve(relPath);
+		Path srcJarP = srcCategoryDir.resolve(sourceDir.getFileName() + ".jar");
+
+		String bundleSymbolicName = manifest.getMainAttributes().getValue("Bundle-SymbolicName").toString();
+		// in case there are additional directives
+		bundleSymbolicName = bundleSymbolicName.split(";")[0];
+		Manifest srcManifest = new Manifest();
+		srcManifest.getMainAttributes().put(MANIFEST_VERSION, "1.0");
+		BUNDLE_SYMBOLICNAME.put(srcManifest, bundleSymbolicName + ".src");
+		BUNDLE_VERSION.put(srcManifest, BUNDLE_VERSION.get(manifest));
+		ECLIPSE_SOURCE_BUNDLE.put(srcManifest,
+				bundleSymbolicName + ";version=\"" + BUNDLE_VERSION.get(manifest) + "\"");
+		return new JarWriter(srcJarP, sourceDir, srcManifest, mapping, null);
+	}
+
+	/**
+	 * Generate a readme clarifying and prominently notifying of the repackaging and
+	 * modifications.
+	 */
+	String createReadMe(Path jarDir, Object mapping, boolean withChanges) {
+		StringWriter writer = new StringWriter();
+		boolean merged = ARGEO_ORIGIN_M2_MERGE.get(mapping) != null;
+		if (merged)
+			writer.append("This component is a merging of third party components"
+					+ " in order to comply with A2 packaging standards.\n");
+		else
+			writer.append("This component is a repackaging of a third party component"
+					+ " in order to comply with A2 packaging standards.\n");
+
+		// license
+		String spdxLicenseId = SPDX_LICENSE_IDENTIFIER.get(mapping);
+		if (spdxLicenseId == null)
+			throw new IllegalStateException("An SPDX license id must have beend defined at this stage.");
+		writer.append("\nIt is redistributed under the following license:\n\n");
+		writer.append("SPDX-Identifier: " + spdxLicenseId + "\n\n");
+
+		if (!spdxLicenseId.startsWith("LicenseRef")) {// standard
+			int withIndex = spdxLicenseId.indexOf(" WITH ");
+			if (withIndex >= 0) {
+				String simpleId = spdxLicenseId.substring(0, withIndex).trim();
+				String exception = spdxLicenseId.substring(withIndex + " WITH ".length());
+				writer.append("which are available here: https://spdx.org/licenses/" + simpleId
+						+ "\nand here: https://spdx.org/licenses/" + exception + "\n");
+			} else {
+				writer.append("which is available here: https://spdx.org/licenses/" + spdxLicenseId + "\n");
+			}
+		} else {
+			String url = BUNDLE_LICENSE.get(mapping);
+			if (url != null) {
+				writer.write("which is available here: " + url + "\n");
+			} else {
+				logger.log(ERROR, "No licence URL for " + jarDir);
+			}
+		}
+
+		// origin
+		String originDesc = ARGEO_ORIGIN_URI.get(mapping);
+		if (originDesc != null)
+			writer.append("\nThe original component comes from " + originDesc + ".\n");
+		else {
+			String m2Repo = ARGEO_ORIGIN_M2_REPO.get(mapping);
+			originDesc = ARGEO_ORIGIN_M2.get(mapping);
+			if (originDesc != null)
+				writer.append("\nThe original component has M2 coordinates:\n" + originDesc.replace(',', '\n')
+						+ "\n" + (m2Repo != null ? "\nin M2 repository " + m2Repo + "\n" : ""));
+			else
+				logger.log(ERROR, "Cannot find origin information in " + jarDir);
+		}
+		String originSources = ARGEO_ORIGIN_SOURCES_URI.get(mapping);
+		if (originSources != null)
+			writer.append("\nThe original sources come from " + originSources + ".\n");
+
+		if (withChanges)
+			writer.append("\nA detailed list of changes is available under " + CHANGES + ".\n");
+
+		if (!jarDir.getFileName().toString().endsWith(".src")) {// binary archive
+			if (separateSources) // not the path, since the bundle may be shared with other builds
+				writer.append("Corresponding sources are available in the related archive named "
+						+ jarDir.getFileName() + ".src.jar.\n");
+			else
+				writer.append("Corresponding sources are available under OSGI-OPT/src.\n");
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * Gathers modifications performed on the original binaries and sources,
+	 * especially in order to comply with their license requirements.
+	 */
+	class A2Origin {
+		A2Origin() {
+
+		}
+
+		// sorted, and safe to be added to by the tasks contributing to a same bundle
+		Set<String> modified = new ConcurrentSkipListSet<>();
+		Set<String> deleted = new ConcurrentSkipListSet<>();
+		Set<String> added = new ConcurrentSkipListSet<>();
+		Set<String> moved = new ConcurrentSkipListSet<>();
+
+		/** The unit of work this bundle belongs to, which records its outputs. */
+		Fingerprint fingerprint;
+		/** Measures of the production of this bundle. */
+		final Metrics metrics = new Metrics();
+		/**
+		 * The units of the other native categories this bundle is processed for, by
+		 * target category, to which native libraries are extracted as well.
+		 */
+		Map<Path, Fingerprint> nativeFanOut = Collections.emptyMap();
+
+		/** Append changes to the content of the A2-ORIGIN/changes file. */
+		void appendChanges(StringBuilder changes) {
+			for (String msg : added)
+				changes.append("- Added " + msg + ".\n");
+			for (String msg : modified)
+				changes.append("- Modified " + msg + ".\n");
+			for (String msg : moved)
+				changes.append("- Moved " + msg + ".\n");
+			for (String msg : deleted)
+				changes.append("- Deleted " + msg + ".\n");
+		}
+	}
+
+	/**
+	 * The order of the entries in the runtime layout: the MANIFEST first, then the
+	 * other metadata (<code>META-INF</code>, <code>OSGI-INF</code>), then the classes and resources grouped by package,
+	 * starting with the package of the activator, then the files at the root
+	 * (typically legal notices) and the repackaging information, and the embedded
+	 * sources last.
+	 * 
+	 * @param activator the class name of the bundle activator, or null
+	 */
+	static Comparator<String> runtimeLayout(String activator) {
+		String activatorPackage = activator != null ? packageDirectory(activator.strip().replace('.', '/') + ".class")
+				: null;
+		return Comparator.comparingInt(Repackage::layoutGroup)
+				.thenComparing((name) -> !packageDirectory(name).equals(activatorPackage))
+				.thenComparing(Repackage::packageDirectory).thenComparing(Comparator.naturalOrder());
+	}
+
+	private static int layoutGroup(String name) {
+		if (name.equalsIgnoreCase("META-INF/"))
+			return 0;
+		else if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME))
+			return 1;
+		else if (name.startsWith("META-INF/") || name.startsWith("OSGI-INF/"))
+			return 2;
+		else if (name.startsWith("OSGI-OPT/"))
+			return 5;
+		else if ((name.indexOf('/') < 0 && !name.endsWith(".class")) || name.startsWith(ARGEO_ORIGIN + "/"))
+			return 4;
+		else
+			return 3;
+	}
+
+	/** The directory of an entry, or an empty string if it is at the root. */
+	static String packageDirectory(String name) {
+		int index = name.lastIndexOf('/');
+		return index < 0 ? "" : name.substring(0, index);
+	}
+
+	/** Measures of the production of a bundle. */
+	static class Metrics {
+		/** The produced jar, relative to the A2 base. */
+		String bundle;
+		/** The origin artifact or archive. */
+		String origin;
+		/**
+		 * Whether the origin files were all in the local cache, or
+		 * <code>null</code> if the origin is shared with other bundles.
+		 */
+		Boolean cached;
+		long downloadNanos;
+		long downloadBytes;
+		/** Whether the bnd analysis was reused, or <code>null</code> if none was needed. */
+		Boolean analysisCached;
+		long analysisNanos;
+		/** Number of entries in the origin archives. */
+		int entries;
+		/** Size of the origin archives, in bytes. */
+		long originBytes;
+		int added;
+		int modified;
+		int moved;
+		int deleted;
+		long outputBytes;
+		long writeNanos;
+
+		/** Adds an origin file, which may have been found in the local cache. */
+		void addDownload(Downloader.Transfer transfer) {
+			if (transfer == null) {
+				if (cached == null)
+					cached = true;
+			} else {
+				cached = false;
+				downloadNanos += transfer.nanos;
+				downloadBytes += transfer.bytes;
+			}
+		}
+
+		void addAnalysis(long nanos, boolean reused) {
+			analysisNanos += nanos;
+			analysisCached = analysisCached == null ? reused : analysisCached && reused;
+		}
+
+		long getTotalNanos() {
+			return downloadNanos + analysisNanos + writeNanos;
+		}
+
+		String toJson() {
+			return "{\"bundle\":" + jsonString(bundle) + ",\"origin\":" + jsonString(origin) + ",\"cached\":"
+					+ cached + ",\"downloadMillis\":" + toMillis(downloadNanos) + ",\"downloadBytes\":"
+					+ downloadBytes + ",\"analysisCached\":" + analysisCached + ",\"analysisMillis\":"
+					+ toMillis(analysisNanos) + ",\"entries\":" + entries + ",\"originBytes\":" + originBytes
+					+ ",\"added\":" + added + ",\"modified\":" + modified + ",\"moved\":" + moved + ",\"deleted\":"
+					+ deleted + ",\"outputBytes\":" + outputBytes + ",\"writeMillis\":" + toMillis(writeNanos)
+					+ ",\"totalMillis\":" + toMillis(getTotalNanos()) + "}";
+		}
+	}
+
+	/**
+	 * The summaries of the build. Each thread adds to its own collector, without
+	 * locking, and the collectors are merged in a deterministic order once all the
+	 * tasks have completed.
+	 */
+	static class Summary {
+		/** All the collectors, registered when first used by their thread. */
+		private final static Queue<Summary> collectors = new ConcurrentLinkedQueue<>();
+		private final static ThreadLocal<Summary> collector = ThreadLocal.withInitial(() -> {
+			Summary summary = new Summary();
+			collectors.add(summary);
+			return summary;
+		});
+
+		/** Bundles by SPDX license identifier. */
+		final Map<String, Set<String>> licensesUsed;
+		/** Artifacts whose sources could not be integrated, with the reason. */
+		final Map<String, String> sourcesMissing;
+		/** Metrics of the bundles produced by this process. */
+		final List<Metrics> metrics = new ArrayList<>();
+
+		private Summary() {
+			this(new HashMap<>(), new HashMap<>());
+		}
+
+		private Summary(Map<String, Set<String>> licensesUsed, Map<String, String> sourcesMissing) {
+			this.licensesUsed = licensesUsed;
+			this.sourcesMissing = sourcesMissing;
+		}
+
+		/** The collector of the current thread. */
+		static Summary collector() {
+			return collector.get();
+		}
+
+		/** Forgets the licenses collected so far, once all the tasks have completed. */
+		static void clearLicensesUsed() {
+			for (Summary summary : collectors)
+				summary.licensesUsed.clear();
+		}
+
+		/**
+		 * Merges all the collectors, which must not be added to anymore. Licenses and
+		 * missing sources are sorted by name, metrics are sorted slowest first.
+		 */
+		static Summary merge() {
+			Summary merged = new Summary(new TreeMap<>(), new TreeMap<>());
+			for (Summary summary : collectors) {
+				for (String licenseId : summary.licensesUsed.keySet())
+					merged.licensesUsed.computeIfAbsent(licenseId, (k) -> new TreeSet<>())
+							.addAll(summary.licensesUsed.get(licenseId));
+				merged.sourcesMissing.putAll(summary.sourcesMissing);
+				merged.metrics.addAll(summary.metrics);
+			}
+			merged.metrics.sort(Comparator.comparingLong(Metrics::getTotalNanos).reversed()
+					.thenComparing((m) -> m.bundle));
+			return merged;
+		}
+	}
+
+	/**
+	 * A budget of heap memory shared by the concurrent tasks, counted in KiB. Tasks
+	 * are admitted in the order in which they asked, so that large artifacts are
+	 * delayed rather than starved, and a task needing more than the whole budget is
+	 * admitted alone.
+	 */
+	static class MemoryBudget {
+		private final int total;
+		private final Semaphore available;
+
+		MemoryBudget(long bytes) {
+			total = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes >> 10));
+			available = new Semaphore(total, true);
+		}
+
+		/**
+		 * Waits until the requested memory is available.
+		 * 
+		 * @return the reservation, to be released
+		 */
+		int acquire(long bytes) throws InterruptedException {
+			int granted = (int) Math.min(total, (bytes + 1023) >> 10);
+			available.acquire(granted);
+			return granted;
+		}
+
+		void release(int granted) {
+			available.release(granted);
+		}
+	}
+
+	/**
+	 * An entry of an archive as a bnd resource, read each time it is needed
+	 * instead of being kept in memory.
+	 */
+	static class EntryResource implements Resource {
+		private final ZipIndex.Entry entry;
+		private String extra;
+
+		EntryResource(ZipIndex.Entry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public InputStream openInputStream() throws IOException {
+			return entry.index.getInputStream(entry);
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException {
+			try (InputStream in = openInputStream()) {
+				in.transferTo(out);
+			}
+		}
+
+		@Override
+		public ByteBuffer buffer() throws IOException {
+			return ByteBuffer.wrap(entry.index.readAllBytes(entry));
+		}
+
+		@Override
+		public long size() {
+			return entry.size;
+		}
+
+		@Override
+		public long lastModified() {
+			return 0;
+		}
+
+		@Override
+		public String getExtra() {
+			return extra;
+		}
+
+		@Override
+		public void setExtra(String extra) {
+			this.extra = extra;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * A jar written directly from the origin archives, without intermediate
+	 * directory. The MANIFEST is written first, while small generated files which
+	 * depend on the whole content (list of changes, README) are kept in memory and
+	 * written when the jar is closed.
+	 */
+	class JarWriter implements Closeable {
+		/** The directory the jar would be expanded to, from which its name derives. */
+		private final Path jarDir;
+		private final Path jarPath;
+		/** Where the jar is written, next to it. */
+		private final Path tmpPath;
+		private final Manifest manifest;
+		/** The metadata used to generate the README. */
+		private final Object mapping;
+		/** The changes to the binaries, if this is not a source jar. */
+		private final A2Origin origin;
+
+		private final ZipWriter zip;
+		private final Set<String> names = new HashSet<>();
+		private final StringBuilder changes = new StringBuilder();
+
+		/** Sources, when packaged separately, created when first needed. */
+		private JarWriter sourceJar;
+		/** The generated README, once the jar has been closed. */
+		private String readMe;
+		private final long start = System.nanoTime();
+
+		/** A bundle, named after its expanded directory. */
+		JarWriter(Path bundleDir, Manifest manifest, A2Origin origin) throws IOException {
+			this(bundleDir.getParent().resolve(bundleDir.getFileName() + ".jar"), bundleDir, manifest, manifest,
+					origin);
+		}
+
+		JarWriter(Path jarPath, Path jarDir, Manifest manifest, Object mapping, A2Origin origin) throws IOException {
+			this.jarPath = jarPath;
+			this.jarDir = jarDir;
+			this.manifest = manifest;
+			this.mapping = mapping;
+			this.origin = origin;
+			if (origin != null && origin.fingerprint != null)
+				origin.fingerprint.addOutput(jarPath);
+			Files.createDirectories(jarPath.getParent());
+			// written aside and moved when complete, so that a partial jar is never
+			// visible, and a hard link to the shared store is replaced, not modified
+			tmpPath = createTempSibling(jarPath);
+			if (runtimeLayout && origin != null)// the entries being held in another file until ordered
+				zip = new ZipWriter(Files.newOutputStream(tmpPath), Deflater.DEFAULT_COMPRESSION,
+						runtimeLayout(BUNDLE_ACTIVATOR.get(manifest)), createTempSibling(jarPath));
+			else
+				zip = new ZipWriter(Files.newOutputStream(tmpPath), Deflater.DEFAULT_COMPRESSION);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			manifest.write(out);
+			write(JarFile.MANIFEST_NAME, out.toByteArray());
+		}
+
+		/** Whether this entry has already been written. */
+		boolean contains(String name) {
+			return names.contains(name);
+		}
+
+		/** Write an entry, from the current position of this stream. */
+		void write(String name, InputStream in) throws IOException {
+			if (!names.add(name))
+				throw new IllegalStateException("Entry " + name + " already exists in " + jarPath);
+			zip.write(name, in);
+		}
+
+		/** Write an entry. */
+		void write(String name, byte[] content) throws IOException {
+			write(name, new ByteArrayInputStream(content));
+		}
+
+		/** Copy an unmodified entry from another archive, without recompressing it. */
+		void copy(String name, ZipIndex.Entry entry) throws IOException {
+			if (!names.add(name))
+				throw new IllegalStateException("Entry " + name + " already exists in " + jarPath);
+			zip.copy(name, entry);
+		}
+
+		/** Append changes, which will be written when the jar is closed. */
+		void appendChanges(A2Origin origin) {
+			origin.appendChanges(changes);
+		}
+
+		/**
+		 * The jar to which sources should be written: this jar, or the related source
+		 * jar if sources are packaged separately.
+		 */
+		JarWriter getSourceJar() throws IOException {
+			if (origin == null || !separateSources)
+				return this;
+			if (sourceJar == null) {
+				sourceJar = newSourceJar(jarDir, manifest, manifest);
+				if (origin.fingerprint != null)
+					origin.fingerprint.addOutput(sourceJar.getJarPath());
+			}
+			return sourceJar;
+		}
+
+		/** The separate source jar, if it has been written. */
+		Path getSeparateSourceJarPath() {
+			return sourceJar != null ? sourceJar.getJarPath() : null;
+		}
+
+		/** The path under which sources should be written in the source jar. */
+		String getSourcePrefix() {
+			return origin == null || separateSources ? "" : "OSGI-OPT/src/";
+		}
+
+		Path getBundleDir() {
+			return jarDir;
+		}
+
+		Path getJarPath() {
+			return jarPath;
+		}
+
+		/** Write the generated files, and the related source jar, if any. */
+		@Override
+		public void close() throws IOException {
+			if (origin != null)
+				appendChanges(origin);
+			// legal requirements
+			boolean withChanges = changes.length() != 0;
+			if (withChanges)
+				write(CHANGES, changes.toString().getBytes(StandardCharsets.UTF_8));
+			readMe = createReadMe(jarDir, mapping, withChanges);
+			write(README_REPACKAGED, readMe.getBytes(StandardCharsets.UTF_8));
+			zip.close();
+			Files.move(tmpPath, jarPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if (sourceJar != null)
+				sourceJar.close();
+			if (origin != null) {
+				Metrics metrics = origin.metrics;
+				metrics.bundle = a2Base.relativize(jarPath).toString();
+				metrics.writeNanos = System.nanoTime() - start;
+				metrics.outputBytes = Files.size(jarPath);
+				metrics.added = origin.added.size();
+				metrics.modified = origin.modified.size();
+				metrics.moved = origin.moved.size();
+				metrics.deleted = origin.deleted.size();
+				addMetrics(metrics);
+			}
+		}
+
+		/**
+		 * Provides this jar, once closed, under another bundle directory. It is linked
+		 * if its content would be the same, otherwise its entries are copied as is,
+		 * except for the README, which is generated again.
+		 * 
+		 * @return the path of the other jar
+		 */
+		Path copyTo(Path otherJarDir) throws IOException {
+			Path otherJarPath = otherJarDir.getParent().resolve(otherJarDir.getFileName() + ".jar");
+			Files.createDirectories(otherJarPath.getParent());
+			Files.deleteIfExists(otherJarPath);
+			String otherReadMe = createReadMe(otherJarDir, mapping, changes.length() != 0);
+			if (otherReadMe.equals(readMe)) {
+				linkOrCopy(jarPath, otherJarPath);
+				return otherJarPath;
+			}
+			Path otherTmpPath = createTempSibling(otherJarPath);
+			try (ZipIndex index = new ZipIndex(jarPath);
+					ZipWriter otherZip = new ZipWriter(Files.newOutputStream(otherTmpPath),
+							Deflater.DEFAULT_COMPRESSION)) {
+				otherZip.copy(JarFile.MANIFEST_NAME, index.getManifestEntry());
+				for (ZipIndex.Entry entry : index.getEntries()) {
+					if (entry.getName().equals(README_REPACKAGED))
+						otherZip.write(README_REPACKAGED,
+								new ByteArrayInputStream(otherReadMe.getBytes(StandardCharsets.UTF_8)));
+					else
+						otherZip.copy(entry.getName(), entry);
+				}
+			}
+			Files.move(otherTmpPath, otherJarPath, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return otherJarPath;
+		}
+
+		/** Discard this jar and the related source jar, after a failure. */
+		void abort() {
+			try {
+				zip.close();
+				Files.deleteIfExists(tmpPath);
+				if (sourceJar != null)
+					sourceJar.abort();
+			} catch (IOException e) {
+				logger.log(ERROR, "Cannot delete " + jarPath, e);
+			}
+		}
+	}
+}
+
+/**
+ * Downloads files to local caches (typically the local Maven repository), so
+ * that they can be shared by multiple threads and multiple processes. HTTP
+ * connections are reused and the number of concurrent downloads is limited. A
+ * file is downloaded to a partial file next to its final location, which is
+ * resumed if the transfer has been interrupted and the remote file has not
+ * changed, verified against its checksum when one is available, and then
+ * atomically moved, so that a partial or corrupted download is never
+ * considered as cached.
+ * <p>
+ * Downloaded files are kept in an origin store, addressed by their SHA-256
+ * hash, with a mapping from the URIs they have been downloaded from. The local
+ * caches link to the store, so that the same content is stored once, whatever
+ * the URI and the location it is requested for. Content is verified before
+ * being moved atomically to the store, so that its name is trusted afterwards
+ * and it is not hashed again when provided. Files which were already in a local
+ * cache are only added to the store when seeding. In offline mode, a file which
+ * is neither in a local cache nor in the store fails without any network
+ * access.
+ */
+class Downloader {
+	final static Logger logger = System.getLogger(Downloader.class.getName());
+
+	/** Default maximum number of concurrent downloads. */
+	final static int DEFAULT_MAX_DOWNLOADS = 4;
+
+	/**
+	 * Suffix of the lock files, used to coordinate with other processes. They are
+	 * kept in a directory of their own, named after the hash of the destination,
+	 * so that the local caches (e.g. the local Maven repository) are not littered.
+	 * They are never deleted, since a process may be waiting on a lock file while
+	 * it is being deleted, and would then not exclude a process locking a new one.
+	 */
+	final static String LOCK_SUFFIX = ".lock";
+	/** Suffix of the partial downloads, which will be resumed if possible. */
+	final static String PART_SUFFIX = ".part";
+	/**
+	 * Suffix of the validator (ETag or Last-Modified) of a partial download,
+	 * without which it is not resumed, since the remote file may have changed.
+	 */
+	final static String VALIDATOR_SUFFIX = ".validator";
+
+	/**
+	 * Checksum files published next to the downloaded files, in order of
+	 * preference.
+	 */
+	final static String[] REMOTE_CHECKSUMS = { "sha512", "sha1" };
+
+	/** How many bytes are downloaded in order to measure throughput. */
+	final static int PROBE_SIZE = 256 * 1024;
+	/** How long a probe may take. */
+	final static Duration PROBE_TIMEOUT = Duration.ofSeconds(10);
+
+	/** Directory of the origin store with the content, by SHA-256 hash. */
+	final static String STORE_CONTENT = "sha256";
+	/** Directory of the origin store with the hashes, by SHA-256 hash of the URI. */
+	final static String STORE_URIS = "uris";
+
+	private final HttpClient httpClient;
+	private final int maxDownloads;
+	private final Semaphore downloadSlots;
+	/** The content-addressed store of the downloaded files. */
+	private final Path store;
+	/** The directory of the lock files. */
+	private final Path lockDir;
+	/** Whether files which are not available locally should fail. */
+	private final boolean offline;
+	/** Whether files already in the local caches should be added to the store. */
+	private volatile boolean adoptCached = false;
+	/**
+	 * Locks by destination, in order to coordinate threads of this process. They
+	 * are kept, since there are not more of them than files used by the build.
+	 */
+	private final Map<Path, ReentrantLock> locks = new ConcurrentHashMap<>();
+	/** The transfers performed by this process, by destination. */
+	private final Map<Path, Transfer> transfers = new ConcurrentHashMap<>();
+	/** The throughputs measured by this process, by scheme and authority. */
+	private final Map<String, CompletableFuture<Double>> throughputs = new ConcurrentHashMap<>();
+
+	Downloader(HttpClient httpClient, int maxDownloads, Path store, Path lockDir, boolean offline) {
+		Objects.requireNonNull(httpClient);
+		Objects.requireNonNull(store);
+		Objects.requireNonNull(lockDir);
+		if (maxDownloads <= 0)
+			throw new IllegalArgumentException("Maximum number of downloads must be positive");
+		this.httpClient = httpClient;
+		this.maxDownloads = maxDownloads;
+		this.downloadSlots = new Semaphore(maxDownloads);
+		this.store = store;
+		this.lockDir = lockDir;
+		this.offline = offline;
+	}
+
+	/** Download to this destination, unless it already exists. */
+	Path download(URI uri, Path dest) throws IOException {
+		return download(uri, dest, null);
+	}
+
+	/**
+	 * Download to this destination, unless it already exists.
+	 * 
+	 * @param checksum the expected checksum, in the form
+	 *                 <code>&lt;algorithm&gt;:&lt;hex value&gt;</code> (e.g.
+	 *                 <code>sha256:...</code>), or <code>null</code> if the
+	 *                 checksum published next to the file should be used, if
+	 *                 any. A file which already exists is verified against it.
+	 */
+	Path download(URI uri, Path dest, String checksum) throws IOException {
+		// files are moved atomically, so this is safe without lock
+		if (Files.exists(dest) && matchesPinned(dest, checksum)) {
+			logger.log(TRACE, () -> "File " + dest + " already exists for " + uri + ", not downloading again");
+			if (adoptCached && !Files.exists(uriPath(uri)))
+				adopt(uri, dest);
+			return dest;
+		}
+		ReentrantLock lock = lock(dest);
+		lock.lock();
+		try {
+			Files.createDirectories(dest.getParent());
+			// coordinate with other processes sharing the same cache
+			Path lockFile = lockFile(dest);
+			try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE)) {
+				channel.lock();// released when the channel is closed
+				if (Files.exists(dest)) {
+					if (matchesPinned(dest, checksum)) {
+						logger.log(TRACE, () -> "File " + dest + " has been downloaded in the meantime");
+						return dest;
+					}
+					logger.log(WARNING, "Cached " + dest + " does not match " + checksum + ", downloading it again");
+					Files.delete(dest);
+				}
+				Path stored = fromStore(uri, checksum);
+				if (stored != null) {
+					provide(stored, dest);
+					logger.log(DEBUG, () -> "Provided " + dest + " from the origin store");
+					return dest;
+				}
+				if (offline)
+					throw new FileNotFoundException(uri + " is not in the origin store " + store + " (offline)");
+				downloadSlots.acquire();
+				try {
+					long start = System.nanoTime();
+					transfer(uri, dest, checksum);
+					transfers.put(dest, new Transfer(System.nanoTime() - start, Files.size(dest)));
+				} finally {
+					downloadSlots.release();
+				}
+				return dest;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while downloading " + uri);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Whether this cached file matches its pinned checksum, if any. */
+	static boolean matchesPinned(Path dest, String checksum) throws IOException {
+		return checksum == null
+				|| checksum(dest, checksum.substring(0, checksum.indexOf(':'))).equalsIgnoreCase(checksum);
+	}
+
+	/** The lock of the threads of this process for this destination. */
+	private ReentrantLock lock(Path dest) {
+		return locks.computeIfAbsent(dest.toAbsolutePath(), (p) -> new ReentrantLock());
+	}
+
+	/** The file locked by the processes downloading to this destination. */
+	Path lockFile(Path dest) throws IOException {
+		String hash = Repackage.sha256(dest.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+		return Files.createDirectories(lockDir.resolve(hash.substring(0, 2))).resolve(hash + LOCK_SUFFIX);
+	}
+
+	/**
+	 * The transfer of this file by this process, or <code>null</code> if it was
+	 * already in the local cache.
+	 */
+	Transfer getTransfer(Path dest) {
+		return transfers.get(dest);
+	}
+
+	/** The duration and size of a completed transfer. */
+	static class Transfer {
+		final long nanos;
+		final long bytes;
+
+		Transfer(long nanos, long bytes) {
+			this.nanos = nanos;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Transfer to a partial file, which is verified and atomically moved when
+	 * complete.
+	 */
+	void transfer(URI uri, Path dest, String checksum) throws IOException, InterruptedException {
+		Path part = dest.resolveSibling(dest.getFileName() + PART_SUFFIX);
+		if (isHttp(uri)) {
+			// the published checksum is retrieved during the transfer
+			CompletableFuture<String> remoteChecksum = checksum == null ? remoteChecksum(uri, 0)
+					: CompletableFuture.completedFuture(checksum);
+			transferHttp(uri, part);
+			checksum = remoteChecksum.join();
+		} else {// other URL schemes, typically file:
+			try (InputStream in = uri.toURL().openStream()) {
+				Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		Files.deleteIfExists(validatorPath(part));
+		if (checksum != null) {
+			String actual = checksum(part, checksum.substring(0, checksum.indexOf(':')));
+			if (!actual.equalsIgnoreCase(checksum)) {
+				Files.delete(part);
+				throw new IOException("Checksum of " + uri + " is " + actual + ", while " + checksum + " was expected");
+			}
+		} else {
+			logger.log(DEBUG, () -> "No checksum available for " + uri + ", download not verified");
+		}
+
+		Path stored = toStore(uri, part, checksum);
+		provide(stored, dest);
+		logger.log(DEBUG, () -> "Downloaded " + dest + " from " + uri);
+	}
+
+	/*
+	 * ORIGIN STORE
+	 */
+	/**
+	 * The content in the store for this URI or this checksum, or
+	 * <code>null</code> if it is not available. Its content-addressed name is
+	 * trusted, and a checksum with another algorithm is only computed if it has
+	 * not been recorded with the URI when the content was stored.
+	 */
+	Path fromStore(URI uri, String checksum) throws IOException {
+		String hash = null;
+		List<String> verified = List.of();
+		if (checksum != null && checksum.startsWith(STORE_CONTENT + ":")) {
+			hash = checksum.substring(STORE_CONTENT.length() + 1).toLowerCase();
+		} else if (Files.exists(uriPath(uri))) {
+			// the hash, followed by the other checksums verified when storing
+			List<String> lines = Files.readAllLines(uriPath(uri));
+			hash = lines.get(0).strip();
+			verified = lines.subList(1, lines.size());
+		}
+		if (hash == null)
+			return null;
+		Path stored = contentPath(hash);
+		if (!Files.exists(stored))
+			return null;
+		if (checksum != null && !checksum.startsWith(STORE_CONTENT + ":")
+				&& !verified.stream().anyMatch((v) -> v.strip().equalsIgnoreCase(checksum))
+				&& !checksum(stored, checksum.substring(0, checksum.indexOf(':'))).equalsIgnoreCase(checksum)) {
+			logger.log(WARNING, "Content " + stored + " for " + uri + " does not match " + checksum + ", ignoring it");
+			return null;
+		}
+		return stored;
+	}
+
+	/**
+	 * Moves a verified file to the store, unless the same content is already
+	 * there, and maps this URI to it, together with the checksum it has been
+	 * verified against.
+	 * 
+	 * @return the content in the store
+	 */
+	Path toStore(URI uri, Path file, String checksum) throws IOException {
+		String hash = checksum != null && checksum.startsWith(STORE_CONTENT + ":")
+				? checksum.substring(STORE_CONTENT.length() + 1).toLowerCase()
+				: checksum(file, STORE_CONTENT).substring(STORE_CONTENT.length() + 1);
+		Path stored = contentPath(hash);
+		if (Files.exists(stored)) {
+			Files.delete(file);
+		} else {
+			Files.createDirectories(stored.getParent());
+			try {
+				Files.move(file, stored, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {// other file system
+				Path tmp = Files.createTempFile(stored.getParent(), hash, ".tmp");
+				Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(tmp, stored, StandardCopyOption.ATOMIC_MOVE);
+				Files.delete(file);
+			}
+		}
+		Path uriPath = uriPath(uri);
+		Files.createDirectories(uriPath.getParent());
+		Path tmp = Files.createTempFile(uriPath.getParent(), uriPath.getFileName().toString(), ".tmp");
+		boolean otherChecksum = checksum != null && !checksum.startsWith(STORE_CONTENT + ":");
+		Files.writeString(tmp, hash + "\n" + (otherChecksum ? checksum.toLowerCase() + "\n" : ""));
+		Files.move(tmp, uriPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return stored;
+	}
+
+	/**
+	 * Adds a file which was already in a local cache to the store, so that it can
+	 * be provided offline elsewhere (e.g. after having copied the store).
+	 */
+	void adopt(URI uri, Path dest) {
+		ReentrantLock lock = lock(dest);
+		lock.lock();
+		try {
+			if (Files.exists(uriPath(uri)))
+				return;
+			Path tmp = Files.createTempFile(dest.getParent(), dest.getFileName().toString(), PART_SUFFIX);
+			Files.delete(tmp);// so that it can be linked
+			Repackage.linkOrCopy(dest, tmp);
+			toStore(uri, tmp, null);
+			logger.log(TRACE, () -> "Added " + dest + " to the origin store");
+		} catch (IOException e) {// the store may be read-only
+			logger.log(DEBUG, () -> "Cannot add " + dest + " to the origin store: " + e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Links content from the store to a local cache, atomically. */
+	void provide(Path stored, Path dest) throws IOException {
+		Path part = dest.resolveSibling(dest.getFileName() + PART_SUFFIX);
+		Files.deleteIfExists(part);
+		Repackage.linkOrCopy(stored, part);
+		try {
+			Files.move(part, dest, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(part, dest, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	Path contentPath(String hash) {
+		return store.resolve(STORE_CONTENT).resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	Path uriPath(URI uri) {
+		String hash = Repackage.sha256(uri.toString().getBytes(StandardCharsets.UTF_8));
+		return store.resolve(STORE_URIS).resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	boolean isOffline() {
+		return offline;
+	}
+
+	/**
+	 * Sets whether files already in the local caches should be added to the store
+	 * when they are requested. This hashes them, so it is only done when seeding.
+	 */
+	void setAdoptCached(boolean adoptCached) {
+		this.adoptCached = adoptCached;
+	}
+
+	/**
+	 * HTTP transfer, resuming the partial file if it exists and if the remote file
+	 * has not changed since it was started.
+	 */
+	void transferHttp(URI uri, Path part) throws IOException, InterruptedException {
+		Path validatorPath = validatorPath(part);
+		if (Files.exists(part) && !Files.exists(validatorPath)) {
+			logger.log(DEBUG, () -> "Cannot check whether " + uri + " has changed, not resuming its download");
+			Files.delete(part);
+		}
+		long offset = Files.exists(part) ? Files.size(part) : 0;
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri).GET();
+		if (offset > 0) {
+			// the whole file is sent instead, if it has changed
+			request.header("Range", "bytes=" + offset + "-");
+			request.header("If-Range", Files.readString(validatorPath).strip());
+			logger.log(DEBUG, () -> "Resuming download of " + uri + " from byte " + offset);
+		}
+		HttpResponse<Path> response = httpClient.send(request.build(), (info) -> {
+			if (isResumed(info, offset))
+				return BodySubscribers.ofFile(part, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			else if (info.statusCode() == 200) {
+				saveValidator(info.headers(), validatorPath);
+				return BodySubscribers.ofFile(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+			} else
+				return BodySubscribers.replacing(part);
+		});
+		int status = response.statusCode();
+		if (isResumed(response, offset) || status == 200)
+			return;
+		if (offset > 0 && status == 416
+				&& response.headers().firstValue("Content-Range").orElse("").equals("bytes */" + offset)) {
+			logger.log(DEBUG, () -> "Download of " + uri + " was already complete");
+			return;
+		}
+		if (offset > 0 && (status == 206 || status == 416)) {// cannot resume, start again
+			logger.log(DEBUG, () -> "Cannot resume download of " + uri + " (HTTP status " + status + ")");
+			Files.delete(part);
+			Files.deleteIfExists(validatorPath);
+			transferHttp(uri, part);
+		} else if (status == 404 || status == 410) {
+			throw new FileNotFoundException(uri.toString());
+		} else {
+			throw new IOException("Cannot download " + uri + ": HTTP status " + status);
+		}
+	}
+
+	/** The file where the validator of this partial download is kept. */
+	static Path validatorPath(Path part) {
+		return part.resolveSibling(part.getFileName() + VALIDATOR_SUFFIX);
+	}
+
+	/**
+	 * Keeps the validator of a full response, a strong ETag or else the
+	 * Last-Modified date, so that the partial download can be resumed safely.
+	 */
+	static void saveValidator(HttpHeaders headers, Path validatorPath) {
+		String validator = headers.firstValue("ETag").filter((etag) -> !etag.startsWith("W/"))
+				.or(() -> headers.firstValue("Last-Modified")).orElse(null);
+		try {
+			if (validator != null)
+				Files.writeString(validatorPath, validator);
+			else
+				Files.deleteIfExists(validatorPath);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot write " + validatorPath, e);
+		}
+	}
+
+	/** Whether this response continues a partial download from this offset. */
+	static boolean isResumed(ResponseInfo info, long offset) {
+		return isResumed(info.statusCode(), info.headers(), offset);
+	}
+
+	/** Whether this response continues a partial download from this offset. */
+	static boolean isResumed(HttpResponse<?> response, long offset) {
+		return isResumed(response.statusCode(), response.headers(), offset);
+	}
+
+	private static boolean isResumed(int status, HttpHeaders headers, long offset) {
+		if (offset == 0 || status != 206)
+			return false;
+		String contentRange = headers.firstValue("Content-Range").orElse("");
+		return contentRange.startsWith("bytes " + offset + "-");
+	}
+
+	/**
+	 * The checksum published next to this file, or <code>null</code> if there is
+	 * none.
+	 * 
+	 * @param index the index in {@link #REMOTE_CHECKSUMS} of the first algorithm
+	 *              to try
+	 */
+	CompletableFuture<String> remoteChecksum(URI uri, int index) {
+		if (index >= REMOTE_CHECKSUMS.length)
+			return CompletableFuture.completedFuture(null);
+		String algorithm = REMOTE_CHECKSUMS[index];
+		// the suffix applies to the path, the query (if any) is kept
+		URI checksumUri = URI.create(uri.getScheme() + "://" + uri.getRawAuthority() + uri.getRawPath() + "."
+				+ algorithm + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : ""));
+		return httpClient.sendAsync(HttpRequest.newBuilder(checksumUri).GET().build(), BodyHandlers.ofString())
+				.handle((response, e) -> {
+					if (e != null) {
+						logger.log(TRACE, () -> "Cannot retrieve " + checksumUri + ": " + e);
+						return null;
+					}
+					if (response.statusCode() != 200)
+						return null;
+					// the file name may follow the checksum, e.g. with sha512sum
+					String[] tokens = response.body().strip().split("\\s+");
+					return tokens[0].matches("[0-9a-fA-F]+") ? algorithm + ":" + tokens[0] : null;
+				}).thenCompose((checksum) -> checksum != null ? CompletableFuture.completedFuture(checksum)
+						: remoteChecksum(uri, index + 1));
+	}
+
+	/**
+	 * Computes the checksum of a file.
+	 * 
+	 * @param algorithm e.g. sha1, sha256 or sha512
+	 * @return the checksum, in the form
+	 *         <code>&lt;algorithm&gt;:&lt;hex value&gt;</code>
+	 */
+	static String checksum(Path file, String algorithm) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(algorithm.toUpperCase().replace("-", "").replace("SHA", "SHA-"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unsupported checksum algorithm " + algorithm, e);
+		}
+		try (InputStream in = Files.newInputStream(file)) {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		}
+		return algorithm + ":" + HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * Sorts these candidate sources of the same file from the fastest to the
+	 * slowest, by downloading the beginning of the file from the hosts which have
+	 * not been measured yet, in parallel. The throughput of a host is then reused
+	 * for the other files. Sources which are not available come last.
+	 */
+	List<URI> rank(List<URI> candidates) {
+		if (offline || candidates.size() <= 1)
+			return candidates;
+		ExecutorService executor = Executors.newFixedThreadPool(candidates.size());
+		try {
+			Map<URI, CompletableFuture<Double>> measured = new HashMap<>();
+			for (URI candidate : candidates) {
+				String host = candidate.getScheme() + "://" + candidate.getRawAuthority();
+				measured.put(candidate, throughputs.computeIfAbsent(host,
+						(h) -> CompletableFuture.supplyAsync(() -> probe(candidate), executor)));
+			}
+			// completed before this executor is shut down, since they may be its own
+			CompletableFuture.allOf(measured.values().toArray(new CompletableFuture<?>[0])).join();
+			List<URI> ranked = new ArrayList<>(candidates);
+			// stable sort, so that the original order is kept for unavailable sources
+			ranked.sort((u1, u2) -> Double.compare(measured.get(u2).join(), measured.get(u1).join()));
+			logger.log(DEBUG, () -> {
+				StringBuilder sb = new StringBuilder("Ranked sources:");
+				for (URI uri : ranked)
+					sb.append("\n" + uri + "\t" + Math.round(measured.get(uri).join() / 1024) + " KiB/s");
+				return sb.toString();
+			});
+			return ranked;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Measures the throughput of a source by downloading the beginning of the
+	 * file.
+	 * 
+	 * @return the throughput in bytes per second, or -1 if the source is not
+	 *         available
+	 */
+	double probe(URI uri) {
+		if (!isHttp(uri))
+			return -1;
+		HttpRequest request = HttpRequest.newBuilder(uri).GET() //
+				.header("Range", "bytes=0-" + (PROBE_SIZE - 1)) //
+				.timeout(PROBE_TIMEOUT) //
+				.build();
+		long begin = System.nanoTime();
+		try {
+			HttpResponse<InputStream> response = httpClient.send(request, BodyHandlers.ofInputStream());
+			try (InputStream in = response.body()) {
+				if (response.statusCode() != 200 && response.statusCode() != 206)
+					return -1;
+				// the range may be ignored, so we stop reading after the probe size
+				long read = in.readNBytes(PROBE_SIZE).length;
+				double seconds = (System.nanoTime() - begin) / 1e9;
+				return read / seconds;
+			}
+		} catch (IOException e) {
+			logger.log(TRACE, () -> "Cannot probe " + uri + ": " + e);
+			return -1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+
+	static boolean isHttp(URI uri) {
+		return "http".equals(uri.getScheme()) || "https".equals(uri.getScheme());
+	}
+
+	int getMaxDownloads() {
+		return maxDownloads;
+	}
+
+	/** An HTTP client suitable for downloads. */
+	static HttpClient newHttpClient() {
+		return HttpClient.newBuilder() //
+				.followRedirects(Redirect.NORMAL) //
+				.connectTimeout(Duration.ofSeconds(30)) //
+				.build();
+	}
+}
+
+/**
+ * A queue of units of work shared by several processes through a directory,
+ * possibly on a network file system. A unit is claimed by atomically creating
+ * a lease file, whose content is renewed by its worker, and which can be taken
+ * over by another worker once its content has not changed for a while. This is
+ * measured with the clock of the worker taking over, so that the clocks of the
+ * machines do not need to be in sync. A unit is complete when its result has
+ * been written, whether it has succeeded or failed.
+ * <p>
+ * Each plan has its own generation directory, and the current one is
+ * designated by a file replaced atomically. Workers can therefore be started
+ * before the queue is planned, and they follow the plan when it is replaced.
+ * Once its results have been collected, the plan is ended, and the workers
+ * which have followed it stop.
+ * <p>
+ * Each worker keeps the units it has not seen complete in memory, so that a
+ * unit is only checked again when nothing else can be claimed.
+ */
+class WorkQueue implements Closeable {
+	private final static Logger logger = System.getLogger(WorkQueue.class.getName());
+
+	/** How often the queue is checked while there is nothing to claim. */
+	final static Duration POLL_INTERVAL = Duration.ofSeconds(1);
+	/** How often the leases of the units in progress are renewed. */
+	final static Duration LEASE_RENEWAL = Duration.ofSeconds(20);
+	/** After how long a lease which has not been renewed can be taken over. */
+	final static Duration LEASE_EXPIRY = Duration.ofMinutes(2);
+
+	final static String RESULT_OK = "OK";
+
+	/** File with the generation of the current plan. */
+	final static String PLANNED = "planned";
+	/** Prefix of the generation directories. */
+	final static String PLAN_ = "plan-";
+	final static String TASKS = "tasks";
+	final static String LEASES = "leases";
+	final static String DONE = "done";
+
+	private final Path workDir;
+	private final Path plannedPath;
+	private final Duration leaseExpiry;
+
+	private final String workerId;
+	/** The leases held by this worker, by unit. */
+	private final Map<String, Path> leased = new ConcurrentHashMap<>();
+	/** How many times the leases have been renewed, written in them. */
+	private long renewals = 0;
+	/** The leases held by other workers, as last seen by this one. */
+	private final Map<Path, LeaseObservation> observed = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService renewal;
+
+	/** The current plan, once the queue has been planned. */
+	private volatile Plan plan;
+
+	WorkQueue(Path workDir) {
+		this(workDir, LEASE_RENEWAL, LEASE_EXPIRY);
+	}
+
+	WorkQueue(Path workDir, Duration leaseRenewal, Duration leaseExpiry) {
+		this.workDir = workDir;
+		this.leaseExpiry = leaseExpiry;
+		plannedPath = workDir.resolve(PLANNED);
+
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "localhost";
+		}
+		workerId = ProcessHandle.current().pid() + "@" + host;
+
+		renewal = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread thread = new Thread(r, "Lease renewal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		renewal.scheduleWithFixedDelay(this::renewLeases, leaseRenewal.toMillis(), leaseRenewal.toMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/** Plans these units in a new generation, replacing a previous plan. */
+	void plan(List<String> units) throws IOException {
+		String generation = PLAN_ + Instant.now().toEpochMilli() + "-" + UUID.randomUUID();
+		Path generationDir = workDir.resolve(generation);
+		for (String dir : new String[] { TASKS, LEASES, DONE })
+			Files.createDirectories(generationDir.resolve(dir));
+		for (String unit : units)
+			Files.writeString(generationDir.resolve(TASKS).resolve(id(unit)), unit);
+		// designated last, so that workers only see a complete plan
+		Path tmp = Files.createTempFile(workDir, PLANNED, ".tmp");
+		Files.writeString(tmp, generation);
+		Files.move(tmp, plannedPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// the state of previous plans, whose workers will follow this one
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(workDir, PLAN_ + "*")) {
+			for (Path dir : ds)
+				if (!dir.equals(generationDir))
+					Repackage.deleteDirectory(dir);
+		}
+		logger.log(INFO, "Planned " + units.size() + " unit(s) in " + generationDir);
+	}
+
+	/**
+	 * Ends the current plan, once its results have been collected, so that the
+	 * workers which have followed it stop, and workers started afterwards wait for
+	 * the next one.
+	 */
+	void end() throws IOException {
+		Plan current = loadPlan();
+		Files.deleteIfExists(plannedPath);
+		if (current != null)
+			Repackage.deleteDirectory(current.dir);
+	}
+
+	/**
+	 * Claims a unit which is neither complete nor leased by another worker.
+	 *
+	 * @return the claimed unit, or <code>null</code> if there is nothing to claim
+	 *         for the time being
+	 */
+	synchronized String claim() throws IOException {
+		Plan current = loadPlan();
+		if (current == null)
+			return null;
+		try {
+			// each pending unit is tried at most once, those claimed by others being tried again last
+			for (int i = current.pending.size(); i > 0; i--) {
+				String id = current.pending.poll();
+				if (Files.exists(current.dir.resolve(DONE).resolve(id)))
+					continue;
+				Path lease = current.dir.resolve(LEASES).resolve(id);
+				if (!createLease(lease) && !(takeOverExpired(lease) && createLease(lease))) {
+					current.pending.add(id);// claimed by another worker
+					continue;
+				}
+				if (Files.exists(current.dir.resolve(DONE).resolve(id))) {// completed in the meantime
+					Files.deleteIfExists(lease);
+					continue;
+				}
+				String unit = current.tasks.get(id);
+				leased.put(unit, lease);
+				return unit;
+			}
+		} catch (NoSuchFileException e) {// planned again or ended in the meantime
+			logger.log(DEBUG, () -> "Plan " + current.generation + " has been replaced");
+		}
+		return null;
+	}
+
+	/**
+	 * Records the result of a unit and releases its lease. The result is
+	 * discarded if the plan in which the unit has been claimed has been replaced.
+	 * If it cannot be recorded, the unit can be claimed again once its lease has
+	 * expired.
+	 * 
+	 * @param outputs the files written by the unit, if it has succeeded
+	 */
+	void complete(String unit, Throwable failure, Collection<String> outputs) throws IOException {
+		String result;
+		if (failure == null) {
+			StringBuilder sb = new StringBuilder(RESULT_OK + "\n");
+			for (String output : outputs)
+				sb.append(output + "\n");
+			result = sb.toString();
+		} else {
+			if (failure instanceof CompletionException && failure.getCause() != null)
+				failure = failure.getCause();
+			StringWriter writer = new StringWriter();
+			failure.printStackTrace(new PrintWriter(writer));
+			result = writer.toString();
+			logger.log(ERROR, "Unit " + unit + " failed", failure);
+		}
+		Path lease = leased.remove(unit);
+		if (lease == null)
+			throw new IllegalStateException("Unit " + unit + " has not been claimed by " + workerId);
+		Path generationDir = lease.getParent().getParent();
+		try {
+			// written aside and moved, so that a result is always complete
+			Path tmp = Files.createTempFile(generationDir, lease.getFileName().toString(), ".tmp");
+			Files.writeString(tmp, result);
+			Files.move(tmp, generationDir.resolve(DONE).resolve(lease.getFileName()),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(lease);
+		} catch (NoSuchFileException e) {
+			logger.log(DEBUG, () -> "Plan of " + unit + " has been replaced, discarding its result");
+		} catch (IOException e) {
+			synchronized (this) {
+				if (plan != null && plan.dir.equals(generationDir))
+					plan.pending.add(lease.getFileName().toString());
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Whether the plan followed by this worker is complete or has been ended. It
+	 * is not if the queue has not been planned yet.
+	 */
+	synchronized boolean isFinished() throws IOException {
+		Plan current = loadPlan();
+		if (current == null)
+			return plan != null;// ended
+		for (Path lease : leased.values())
+			if (lease.startsWith(current.dir))
+				return false;
+		// the units seen complete are not checked again
+		while (!current.pending.isEmpty()) {
+			if (!Files.exists(current.dir.resolve(DONE).resolve(current.pending.peek())))
+				return false;
+			current.pending.poll();
+		}
+		return true;
+	}
+
+	/** The failed units of the current plan, with the related stack traces. */
+	Map<String, String> getFailures() throws IOException {
+		Map<String, String> failures = new TreeMap<>();
+		Map<String, String> results = loadResults();
+		for (String unit : results.keySet())
+			if (!isSuccess(results.get(unit)))
+				failures.put(unit, results.get(unit));
+		return failures;
+	}
+
+	/** The files written by the units of the current plan which have succeeded. */
+	List<String> getOutputs() throws IOException {
+		List<String> outputs = new ArrayList<>();
+		for (String result : loadResults().values())
+			if (isSuccess(result))
+				result.lines().skip(1).forEach(outputs::add);
+		return outputs;
+	}
+
+	@Override
+	public void close() {
+		renewal.shutdownNow();
+	}
+
+	/**
+	 * Loads the current plan, again if it has been replaced.
+	 * 
+	 * @return the current plan, or <code>null</code> if there is none
+	 */
+	private synchronized Plan loadPlan() throws IOException {
+		String generation;
+		try {
+			generation = Files.readString(plannedPath).strip();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (plan != null && plan.generation.equals(generation))
+			return plan;
+		Path generationDir = workDir.resolve(generation);
+		Map<String, String> tasks = new TreeMap<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(generationDir.resolve(TASKS))) {
+			for (Path task : ds)
+				tasks.put(task.getFileName().toString(), Files.readString(task));
+		} catch (NoSuchFileException e) {// replaced in the meantime
+			return null;
+		}
+		if (plan != null)
+			logger.log(INFO, "Plan has been replaced, following " + generationDir);
+		plan = new Plan(generation, generationDir, tasks);
+		return plan;
+	}
 
-			String bundleDirName = bundleDir.getFileName().toString();
-			// force licenses of some well-known components
-			// even if we say otherwise (typically because from an Eclipse archive)
-			if (bundleDirName.startsWith("org.apache."))
-				spdxLicenceId = "Apache-2.0";
-			if (bundleDirName.startsWith("com.sun.jna."))
-				spdxLicenceId = "Apache-2.0";
-			if (bundleDirName.startsWith("com.ibm.icu."))
-				spdxLicenceId = "ICU";
-			if (bundleDirName.startsWith("javax.annotation."))
-				spdxLicenceId = "GPL-2.0-only WITH Classpath-exception-2.0";
-			if (bundleDirName.startsWith("javax.inject."))
-				spdxLicenceId = "Apache-2.0";
-			if (bundleDirName.startsWith("org.osgi."))
-				spdxLicenceId = "Apache-2.0";
+	/** The results of the complete units of the current plan, by unit. */
+	private Map<String, String> loadResults() throws IOException {
+		Map<String, String> results = new TreeMap<>();
+		Plan current = loadPlan();
+		if (current == null)
+			return results;
+		for (String id : current.tasks.keySet()) {
+			Path result = current.dir.resolve(DONE).resolve(id);
+			if (Files.exists(result))
+				results.put(current.tasks.get(id), Files.readString(result));
+		}
+		return results;
+	}
 
-			manifest.getMainAttributes().putValue(SPDX_LICENSE_IDENTIFIER.toString(), spdxLicenceId);
-			if (!licensesUsed.containsKey(spdxLicenceId))
-				licensesUsed.put(spdxLicenceId, new TreeSet<>());
-			licensesUsed.get(spdxLicenceId).add(bundleDir.getParent().getFileName() + "/" + bundleDir.getFileName());
+	private static boolean isSuccess(String result) {
+		return result.lines().findFirst().orElse("").equals(RESULT_OK);
+	}
+
+	/** Creates a lease for this worker, unless it already exists. */
+	private boolean createLease(Path lease) throws IOException {
+		try {
+			Files.writeString(lease, workerId + "\n", StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
 		}
 	}
 
-	/*
-	 * UTILITIES
+	/**
+	 * Removes this lease if its content has not changed for longer than the
+	 * expiry, since this worker has first seen it. It is moved away first, so that
+	 * only one worker can take it over.
 	 */
-	/** Recursively deletes a directory. */
-	static void deleteDirectory(Path path) throws IOException {
-		if (!Files.exists(path))
-			return;
-		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-			@Override
-			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
-				if (e != null)
-					throw e;
-				Files.delete(directory);
-				return CONTINUE;
+	private boolean takeOverExpired(Path lease) throws IOException {
+		try {
+			String content = Files.readString(lease);
+			long now = System.nanoTime();
+			LeaseObservation observation = observed.get(lease);
+			if (observation == null || !observation.content.equals(content)) {
+				observed.put(lease, new LeaseObservation(content, now));
+				return false;
 			}
+			if (now - observation.since < leaseExpiry.toNanos())
+				return false;
+			observed.remove(lease);
+			Path expired = lease.resolveSibling(lease.getFileName() + ".expired." + workerId);
+			Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+			logger.log(WARNING, "Lease " + lease.getFileName() + " held by "
+					+ Files.readString(expired).lines().findFirst().orElse("?") + " has expired, taking it over");
+			Files.delete(expired);
+			return true;
+		} catch (NoSuchFileException e) {
+			return true;// released or taken over in the meantime
+		}
+	}
 
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-				Files.delete(file);
-				return CONTINUE;
+	/** Writes a new counter in the leases still held by this worker. */
+	private void renewLeases() {
+		renewals++;
+		for (Path lease : leased.values()) {
+			try {
+				// not if it has been taken over by another worker
+				if (!Files.readString(lease).startsWith(workerId + "\n"))
+					continue;
+				Files.writeString(lease, workerId + "\n" + renewals + "\n", StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+			} catch (IOException e) {
+				logger.log(WARNING, "Cannot renew lease " + lease.getFileName() + ": " + e);
 			}
-		});
+		}
 	}
 
-	/** Extract name/version from a MANIFEST. */
-	NameVersion nameVersionFromManifest(Manifest manifest) {
-		Attributes attrs = manifest.getMainAttributes();
-		// symbolic name
-		String symbolicName = attrs.getValue(ManifestHeader.BUNDLE_SYMBOLICNAME.toString());
-		if (symbolicName == null)
-			return null;
-		// make sure there is no directive
-		symbolicName = symbolicName.split(";")[0];
+	/** A unit identifier usable as a file name. */
+	private static String id(String unit) {
+		return URLEncoder.encode(unit, StandardCharsets.UTF_8);
+	}
 
-		String version = attrs.getValue(ManifestHeader.BUNDLE_VERSION.toString());
-		return new NameVersion(symbolicName, version);
+	/** The units of a plan, and the directory of its state. */
+	static class Plan {
+		final String generation;
+		final Path dir;
+		/** The planned units, by their identifier. */
+		final Map<String, String> tasks;
+		/**
+		 * The identifiers of the units which this worker has neither seen complete
+		 * nor claimed, in the order in which they are tried.
+		 */
+		final Deque<String> pending;
+
+		Plan(String generation, Path dir, Map<String, String> tasks) {
+			this.generation = generation;
+			this.dir = dir;
+			this.tasks = tasks;
+			this.pending = new ArrayDeque<>(tasks.keySet());
+		}
 	}
 
-	/** Try to download from an URI. */
-	Path tryDownloadArchive(String uriStr, Path dir) throws IOException {
-		// find mirror
-		List<String> urlBases = null;
-		String uriPrefix = null;
-		uriPrefixes: for (String uriPref : mirrors.keySet()) {
-			if (uriStr.startsWith(uriPref)) {
-				if (mirrors.get(uriPref).size() > 0) {
-					urlBases = mirrors.get(uriPref);
-					uriPrefix = uriPref;
-					break uriPrefixes;
-				}
-			}
+	/** The content of a lease held by another worker, and since when it is the same. */
+	static class LeaseObservation {
+		final String content;
+		/** As measured by {@link System#nanoTime()}. */
+		final long since;
+
+		LeaseObservation(String content, long since) {
+			this.content = content;
+			this.since = since;
 		}
-		if (urlBases == null)
-			try {
-				return downloadArchive(new URI(uriStr), dir);
-			} catch (FileNotFoundException | URISyntaxException e) {
-				throw new FileNotFoundException("Cannot find " + uriStr);
-			}
+	}
+}
 
-		// try to download
-		for (String urlBase : urlBases) {
-			String relativePath = uriStr.substring(uriPrefix.length());
-			String uStr = urlBase + relativePath;
-			try {
-				return downloadArchive(new URI(uStr), dir);
-			} catch (FileNotFoundException | URISyntaxException e) {
-				logger.log(WARNING, "Cannot download " + uStr + ", trying another mirror");
-			}
+/**
+ * The entries of a ZIP archive, as listed in its central directory, so that
+ * their compressed data can be copied as is. As with {@link JarInputStream},
+ * the MANIFEST is only considered if it is at the beginning of the archive, and
+ * is then not listed among the entries.
+ */
+class ZipIndex implements Closeable {
+	final static Logger logger = System.getLogger(ZipIndex.class.getName());
+
+	final static int LOCAL_HEADER = 0x04034b50;
+	final static int LOCAL_HEADER_SIZE = 30;
+	final static int CENTRAL_HEADER = 0x02014b50;
+	final static int CENTRAL_HEADER_SIZE = 46;
+	final static int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	final static int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	final static int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+	final static int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+	final static int ZIP64_EXTRA = 0x0001;
+
+	final static int FLAG_ENCRYPTED = 0x0001;
+
+	/** Suffix of the index files persisted next to the archives. */
+	final static String PERSISTED_SUFFIX = ".index";
+	/** Version of the format of the persisted index files. */
+	final static String PERSISTED_FORMAT = "zipindex-1";
+
+	private final Path file;
+	/** The archive, if it is on the default file system. */
+	private final FileChannel channel;
+	/** The whole archive, if it could not be accessed randomly (e.g. nested). */
+	private final byte[] bytes;
+	private final long size;
+	/** The temporary file a nested archive has been extracted to, if any. */
+	private final Path extracted;
+
+	/** The entries, in the order in which they appear in the archive. */
+	private final List<Entry> entries;
+	private final Entry manifestEntry;
+
+	ZipIndex(Path file) throws IOException {
+		this(file, null);
+	}
+
+	/**
+	 * An archive whose entries are persisted to an index file, so that its
+	 * central directory is not read again as long as it is unchanged.
+	 * 
+	 * @param persisted the index file, or null if entries should not be persisted
+	 */
+	ZipIndex(Path file, Path persisted) throws IOException {
+		this.file = file;
+		this.extracted = null;
+		if (file.getFileSystem().equals(FileSystems.getDefault())) {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			bytes = null;
+			size = channel.size();
+		} else {
+			channel = null;
+			bytes = Files.readAllBytes(file);
+			size = bytes.length;
 		}
-		throw new FileNotFoundException("Cannot find " + uriStr);
+		try {
+			List<Entry> entries = persisted != null ? readPersisted(persisted) : readCentralDirectory();
+			this.manifestEntry = removeManifest(entries);
+			this.entries = Collections.unmodifiableList(entries);
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/** An archive nested in another one, which is read in memory. */
+	ZipIndex(ZipIndex outer, Entry entry) throws IOException {
+		this.file = outer.file.resolve(entry.name);
+		this.extracted = null;
+		this.channel = null;
+		this.bytes = outer.readAllBytes(entry);
+		this.size = bytes.length;
+		List<Entry> entries = readCentralDirectory();
+		this.manifestEntry = removeManifest(entries);
+		this.entries = Collections.unmodifiableList(entries);
 	}
 
 	/**
-	 * Effectively download an archive.
+	 * An archive nested in another one, which is extracted to a temporary file, so
+	 * that it is not held in memory. The file is deleted when this index is closed.
 	 */
-	Path downloadArchive(URI uri, Path dir) throws IOException {
-		return download(uri, dir, (String) null);
+	ZipIndex(ZipIndex outer, Entry entry, Path extracted) throws IOException {
+		this.file = outer.file.resolve(entry.name);
+		this.extracted = extracted;
+		try (InputStream in = outer.getInputStream(entry)) {
+			Files.copy(in, extracted, StandardCopyOption.REPLACE_EXISTING);
+			channel = FileChannel.open(extracted, StandardOpenOption.READ);
+		} catch (IOException e) {
+			Files.deleteIfExists(extracted);
+			throw e;
+		}
+		this.bytes = null;
+		this.size = channel.size();
+		try {
+			List<Entry> entries = readCentralDirectory();
+			this.manifestEntry = removeManifest(entries);
+			this.entries = Collections.unmodifiableList(entries);
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
 	}
 
 	/**
-	 * Effectively download. Synchronised in order to avoid downloading twice in
-	 * parallel.
+	 * Sorts the entries in the order of the archive, and removes the MANIFEST,
+	 * with the same logic as {@link JarInputStream}.
+	 * 
+	 * @return the MANIFEST entry, or null if there is none at the beginning
 	 */
-	synchronized Path download(URI uri, Path dir, String name) throws IOException {
+	private static Entry removeManifest(List<Entry> entries) {
+		entries.sort((e1, e2) -> Long.compare(e1.offset, e2.offset));
+		int first = 0;
+		if (entries.size() > first && entries.get(first).name.equalsIgnoreCase("META-INF/"))
+			first++;
+		if (entries.size() > first && entries.get(first).name.equalsIgnoreCase(JarFile.MANIFEST_NAME))
+			return entries.remove(first);
+		return null;
+	}
+
+	/** The archive, or its path within the outer archive if it is nested. */
+	Path getFile() {
+		return file;
+	}
+
+	/** The entries, in the order in which they appear in the archive. */
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	/** The size of the archive, in bytes. */
+	long getSize() {
+		return size;
+	}
 
-		Path dest;
-		if (name == null) {
-			// We use also use parent directory in case the archive itself has a fixed name
-			String[] segments = uri.getPath().split("/");
-			name = segments.length > 1 ? segments[segments.length - 2] + '-' + segments[segments.length - 1]
-					: segments[segments.length - 1];
+	/** The MANIFEST, or null if there is none at the beginning of the archive. */
+	Manifest getManifest() throws IOException {
+		if (manifestEntry == null)
+			return null;
+		try (InputStream in = getInputStream(manifestEntry)) {
+			return new Manifest(in);
 		}
+	}
 
-		dest = dir.resolve(name);
-		if (Files.exists(dest)) {
-			logger.log(TRACE, () -> "File " + dest + " already exists for " + uri + ", not downloading again");
-			return dest;
-		} else {
-			Files.createDirectories(dest.getParent());
+	/** The MANIFEST entry, or null if there is none at the beginning of the archive. */
+	Entry getManifestEntry() {
+		return manifestEntry;
+	}
+
+	/** The uncompressed content of this entry. */
+	InputStream getInputStream(Entry entry) throws IOException {
+		long dataPosition = getDataPosition(entry);
+		InputStream in = channel != null ? new ChannelInputStream(dataPosition, entry.compressedSize)
+				: new ByteArrayInputStream(bytes, (int) dataPosition, (int) entry.compressedSize);
+		if (entry.method == ZipEntry.STORED)
+			return in;
+		Inflater inflater = new Inflater(true);
+		// the inflater may expect an additional dummy byte when not wrapped
+		InputStream padded = new SequenceInputStream(in, new ByteArrayInputStream(new byte[1]));
+		return new InflaterInputStream(padded, inflater, ZipWriter.BUFFER_SIZE) {
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				inflater.end();
+			}
+		};
+	}
+
+	/** The uncompressed content of this entry. */
+	byte[] readAllBytes(Entry entry) throws IOException {
+		try (InputStream in = getInputStream(entry)) {
+			return in.readAllBytes();
 		}
+	}
 
-		try (InputStream in = uri.toURL().openStream()) {
-			Files.copy(in, dest);
-			logger.log(DEBUG, () -> "Downloaded " + dest + " from " + uri);
+	/** Copies the compressed content of this entry, as is. */
+	void copyData(Entry entry, OutputStream out) throws IOException {
+		long dataPosition = getDataPosition(entry);
+		if (channel != null) {
+			try (InputStream in = new ChannelInputStream(dataPosition, entry.compressedSize)) {
+				in.transferTo(out);
+			}
+		} else {
+			out.write(bytes, (int) dataPosition, (int) entry.compressedSize);
 		}
-		return dest;
 	}
 
-	/** Create a JAR file from a directory. */
-	Path createJar(Path bundleDir, A2Origin origin) throws IOException {
-		Path manifestPath = bundleDir.resolve("META-INF/MANIFEST.MF");
-		Manifest manifest;
-		try (InputStream in = Files.newInputStream(manifestPath)) {
-			manifest = new Manifest(in);
+	/** Where the compressed content of this entry starts, after its local header. */
+	private long getDataPosition(Entry entry) throws IOException {
+		if (entry.index != this)
+			throw new IllegalArgumentException(entry.name + " is not an entry of " + file);
+		if ((entry.flags & FLAG_ENCRYPTED) != 0)
+			throw new ZipException("Encrypted entry " + entry.name + " in " + file + " is not supported");
+		if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED)
+			throw new ZipException("Compression method " + entry.method + " of " + entry.name + " in " + file
+					+ " is not supported");
+		ByteBuffer header = read(entry.offset, LOCAL_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_HEADER)
+			throw new ZipException("Invalid local header for " + entry.name + " in " + file);
+		int nameLength = Short.toUnsignedInt(header.getShort(26));
+		int extraLength = Short.toUnsignedInt(header.getShort(28));
+		long dataPosition = entry.offset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+		if (dataPosition + entry.compressedSize > size)
+			throw new ZipException("Truncated entry " + entry.name + " in " + file);
+		return dataPosition;
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		// the end of central directory record is followed by a comment of at most 64 KiB
+		int tailLength = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+		long tailPosition = size - tailLength;
+		ByteBuffer tail = read(tailPosition, tailLength);
+		int end = -1;
+		for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+				end = i;
+				break;
+			}
 		}
-		// legal requirements
-		origin.appendChanges(bundleDir);
-		createReadMe(bundleDir, manifest);
+		if (end < 0)
+			throw new ZipException(file + " is not a ZIP archive");
+		long count = Short.toUnsignedLong(tail.getShort(end + 10));
+		long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+		long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+		if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+			ByteBuffer locator = read(tailPosition + end - 20, 20);
+			if (locator.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR)
+				throw new ZipException("No ZIP64 end of central directory locator in " + file);
+			ByteBuffer end64 = read(locator.getLong(8), 56);
+			if (end64.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY)
+				throw new ZipException("Invalid ZIP64 end of central directory in " + file);
+			count = end64.getLong(32);
+			directorySize = end64.getLong(40);
+			directoryOffset = end64.getLong(48);
+		}
+		if (directorySize > Integer.MAX_VALUE)
+			throw new ZipException("Central directory of " + file + " is too large");
+
+		ByteBuffer directory = read(directoryOffset, (int) directorySize);
+		List<Entry> res = new ArrayList<>();
+		int p = 0;
+		for (long i = 0; i < count; i++) {
+			if (p + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(p) != CENTRAL_HEADER)
+				throw new ZipException("Invalid central directory in " + file);
+			int flags = Short.toUnsignedInt(directory.getShort(p + 8));
+			int method = Short.toUnsignedInt(directory.getShort(p + 10));
+			int dosTime = directory.getInt(p + 12);
+			int crc = directory.getInt(p + 16);
+			long compressedSize = Integer.toUnsignedLong(directory.getInt(p + 20));
+			long uncompressedSize = Integer.toUnsignedLong(directory.getInt(p + 24));
+			int nameLength = Short.toUnsignedInt(directory.getShort(p + 28));
+			int extraLength = Short.toUnsignedInt(directory.getShort(p + 30));
+			int commentLength = Short.toUnsignedInt(directory.getShort(p + 32));
+			long offset = Integer.toUnsignedLong(directory.getInt(p + 42));
+			byte[] name = new byte[nameLength];
+			directory.get(p + CENTRAL_HEADER_SIZE, name);
+
+			// ZIP64 values are only present for the fields which overflowed
+			int extraStart = p + CENTRAL_HEADER_SIZE + nameLength;
+			for (int e = extraStart; e + 4 <= extraStart + extraLength;) {
+				int id = Short.toUnsignedInt(directory.getShort(e));
+				int length = Short.toUnsignedInt(directory.getShort(e + 2));
+				if (id == ZIP64_EXTRA) {
+					int q = e + 4;
+					if (uncompressedSize == 0xFFFFFFFFL) {
+						uncompressedSize = directory.getLong(q);
+						q = q + 8;
+					}
+					if (compressedSize == 0xFFFFFFFFL) {
+						compressedSize = directory.getLong(q);
+						q = q + 8;
+					}
+					if (offset == 0xFFFFFFFFL)
+						offset = directory.getLong(q);
+				}
+				e = e + 4 + length;
+			}
 
-		// create the jar
-		Path jarPath = bundleDir.getParent().resolve(bundleDir.getFileName() + ".jar");
-		try (JarOutputStream jarOut = new JarOutputStream(Files.newOutputStream(jarPath), manifest)) {
-			jarOut.setLevel(Deflater.DEFAULT_COMPRESSION);
-			Files.walkFileTree(bundleDir, new SimpleFileVisitor<Path>() {
+			res.add(new Entry(this, new String(name, StandardCharsets.UTF_8), flags, method, dosTime, crc,
+					compressedSize, uncompressedSize, offset));
+			p = p + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return res;
+	}
 
-				@Override
-				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-					if (file.getFileName().toString().equals("MANIFEST.MF"))
-						return super.visitFile(file, attrs);
-					JarEntry entry = new JarEntry(
-							bundleDir.relativize(file).toString().replace(File.separatorChar, '/'));
-					jarOut.putNextEntry(entry);
-					Files.copy(file, jarOut);
-					return super.visitFile(file, attrs);
+	/**
+	 * Reads the entries from a persisted index file if it describes this archive,
+	 * otherwise from the central directory, persisting them.
+	 */
+	private List<Entry> readPersisted(Path persisted) throws IOException {
+		String header = PERSISTED_FORMAT + " " + size + " " + Files.getLastModifiedTime(file).toMillis();
+		if (Files.exists(persisted)) {
+			try (BufferedReader reader = Files.newBufferedReader(persisted, StandardCharsets.UTF_8)) {
+				if (header.equals(reader.readLine())) {
+					List<Entry> res = new ArrayList<>();
+					String line;
+					while ((line = reader.readLine()) != null) {
+						// the name is last, since it could contain tabs
+						String[] fields = line.split("\t", 8);
+						res.add(new Entry(this, fields[7], Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+								Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4]),
+								Long.parseLong(fields[5]), Long.parseLong(fields[6])));
+					}
+					return res;
 				}
+			} catch (RuntimeException e) {
+				logger.log(WARNING, "Cannot read " + persisted + ", reading " + file + " again", e);
+			}
+		}
 
-			});
+		List<Entry> entries = readCentralDirectory();
+		StringBuilder sb = new StringBuilder(header + "\n");
+		for (Entry entry : entries) {
+			if (entry.name.indexOf('\n') >= 0 || entry.name.indexOf('\r') >= 0)
+				return entries;// cannot be persisted
+			sb.append(entry.flags + "\t" + entry.method + "\t" + entry.dosTime + "\t" + entry.crc + "\t"
+					+ entry.compressedSize + "\t" + entry.size + "\t" + entry.offset + "\t" + entry.name + "\n");
+		}
+		// written aside and moved, since other builds may be reading it
+		try {
+			Path tmp = Files.createTempFile(persisted.getParent(), persisted.getFileName().toString(), ".tmp");
+			Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+			Files.move(tmp, persisted, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.log(WARNING, "Cannot persist the index of " + file + " to " + persisted, e);
 		}
-		deleteDirectory(bundleDir);
+		return entries;
+	}
 
-		if (separateSources)
-			createSourceJar(bundleDir, manifest, null);
+	/** Reads a part of the archive. */
+	private ByteBuffer read(long position, int length) throws IOException {
+		if (position < 0 || position + length > size)
+			throw new ZipException("Truncated archive " + file);
+		ByteBuffer buf;
+		if (channel != null) {
+			buf = ByteBuffer.allocate(length);
+			while (buf.hasRemaining())
+				if (channel.read(buf, position + buf.position()) < 0)
+					throw new EOFException("Unexpected end of " + file);
+			buf.flip();
+		} else {
+			buf = ByteBuffer.wrap(bytes, (int) position, length).slice();
+		}
+		return buf.order(ByteOrder.LITTLE_ENDIAN);
+	}
 
-		return jarPath;
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+		if (extracted != null)
+			Files.deleteIfExists(extracted);
 	}
 
-	/** Package sources separately, in the Eclipse-SourceBundle format. */
-	void createSourceJar(Path bundleDir, Manifest manifest, Properties props) throws IOException {
-		boolean unmodified = props != null;
-		Path bundleCategoryDir = bundleDir.getParent();
-		Path sourceDir = bundleCategoryDir.resolve(bundleDir.toString() + ".src");
-		if (!Files.exists(sourceDir)) {
-			logger.log(WARNING, sourceDir + " does not exist, skipping...");
-			return;
+	/** An entry, as described in the central directory. */
+	static class Entry {
+		/** The archive this entry belongs to, or null if it is being written. */
+		final ZipIndex index;
+		final String name;
+		final int flags;
+		final int method;
+		final int dosTime;
+		final int crc;
+		final long compressedSize;
+		final long size;
+		/** Offset of the local header. */
+		final long offset;
+
+		Entry(ZipIndex index, String name, int flags, int method, int dosTime, int crc, long compressedSize,
+				long size, long offset) {
+			this.index = index;
+			this.name = name;
+			this.flags = flags;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.offset = offset;
 		}
 
-		Path relPath = a2Base.relativize(bundleCategoryDir);
-		Path srcCategoryDir = a2SrcBase.resolve(relPath);
-		Path srcJarP = srcCategoryDir.resolve(sourceDir.getFileName() + ".jar");
-		Files.createDirectories(srcJarP.getParent());
+		String getName() {
+			return name;
+		}
 
-		String bundleSymbolicName = manifest.getMainAttributes().getValue("Bundle-SymbolicName").toString();
-		// in case there are additional directives
-		bundleSymbolicName = bundleSymbolicName.split(";")[0];
-		Manifest srcManifest = new Manifest();
-		srcManifest.getMainAttributes().put(MANIFEST_VERSION, "1.0");
-		BUNDLE_SYMBOLICNAME.put(srcManifest, bundleSymbolicName + ".src");
-		BUNDLE_VERSION.put(srcManifest, BUNDLE_VERSION.get(manifest));
-		ECLIPSE_SOURCE_BUNDLE.put(srcManifest,
-				bundleSymbolicName + ";version=\"" + BUNDLE_VERSION.get(manifest) + "\"");
+		boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
 
-		// metadata
-		createReadMe(sourceDir, unmodified ? props : manifest);
-		// create jar
-		try (JarOutputStream srcJarOut = new JarOutputStream(Files.newOutputStream(srcJarP), srcManifest)) {
-			// srcJarOut.setLevel(Deflater.BEST_COMPRESSION);
-			Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
+	/** Reads a part of the archive, without changing the position of the channel. */
+	private class ChannelInputStream extends InputStream {
+		private long position;
+		private long remaining;
 
-				@Override
-				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-					if (file.getFileName().toString().equals("MANIFEST.MF"))
-						return super.visitFile(file, attrs);
-					JarEntry entry = new JarEntry(
-							sourceDir.relativize(file).toString().replace(File.separatorChar, '/'));
-					srcJarOut.putNextEntry(entry);
-					Files.copy(file, srcJarOut);
-					return super.visitFile(file, attrs);
-				}
+		ChannelInputStream(long position, long length) {
+			this.position = position;
+			this.remaining = length;
+		}
 
-			});
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : Byte.toUnsignedInt(b[0]);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if (n < 0)
+				throw new EOFException("Unexpected end of " + file);
+			position = position + n;
+			remaining = remaining - n;
+			return n;
 		}
-		deleteDirectory(sourceDir);
 	}
+}
 
+/**
+ * Writes a ZIP archive, compressing new entries, or copying the compressed data
+ * of unmodified entries from other archives, together with their CRC. The
+ * entries are written as they come, or held compressed in a spill file and
+ * written in a given order when the archive is closed, so that only their
+ * metadata stays in memory. The ZIP64 extensions are used only for the entries,
+ * and the central directory, which exceed the limits of the ZIP format, as
+ * ZipOutputStream does.
+ */
+class ZipWriter implements Closeable {
+	final static int BUFFER_SIZE = 64 * 1024;
+
+	final static int FLAG_DATA_DESCRIPTOR = 0x0008;
+	final static int FLAG_UTF8 = 0x0800;
+	final static int DATA_DESCRIPTOR = 0x08074b50;
+	/** Extra field identifying a jar, set on its first entry. */
+	final static int JAR_MAGIC = 0xCAFE;
+	/** Value of the sizes and offsets which are in the ZIP64 extensions. */
+	final static long ZIP64_MAGIC = 0xFFFFFFFFL;
+	/** Value of the number of entries which is in the ZIP64 extensions. */
+	final static int ZIP64_MAGIC_COUNT = 0xFFFF;
+	final static int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+	final static int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+
+	private final CountingOutputStream out;
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	/** Modification time of new entries, in MS-DOS format. */
+	private final int dosTime;
+
+	/** The entries written so far, for the central directory. */
+	private final List<ZipIndex.Entry> written = new ArrayList<>();
 	/**
-	 * Generate a readme clarifying and prominently notifying of the repackaging and
-	 * modifications.
+	 * The entries held until the archive is closed, if they are ordered, with the
+	 * offset of their compressed data in the spill file.
 	 */
-	void createReadMe(Path jarDir, Object mapping) throws IOException {
-		// write repackaged README
-		try (BufferedWriter writer = Files.newBufferedWriter(jarDir.resolve(README_REPACKAGED))) {
-			boolean merged = ARGEO_ORIGIN_M2_MERGE.get(mapping) != null;
-			if (merged)
-				writer.append("This component is a merging of third party components"
-						+ " in order to comply with A2 packaging standards.\n");
-			else
-				writer.append("This component is a repackaging of a third party component"
-						+ " in order to comply with A2 packaging standards.\n");
-
-			// license
-			String spdxLicenseId = SPDX_LICENSE_IDENTIFIER.get(mapping);
-			if (spdxLicenseId == null)
-				throw new IllegalStateException("An SPDX license id must have beend defined at this stage.");
-			writer.append("\nIt is redistributed under the following license:\n\n");
-			writer.append("SPDX-Identifier: " + spdxLicenseId + "\n\n");
-
-			if (!spdxLicenseId.startsWith("LicenseRef")) {// standard
-				int withIndex = spdxLicenseId.indexOf(" WITH ");
-				if (withIndex >= 0) {
-					String simpleId = spdxLicenseId.substring(0, withIndex).trim();
-					String exception = spdxLicenseId.substring(withIndex + " WITH ".length());
-					writer.append("which are available here: https://spdx.org/licenses/" + simpleId
-							+ "\nand here: https://spdx.org/licenses/" + exception + "\n");
-				} else {
-					writer.append("which is available here: https://spdx.org/licenses/" + spdxLicenseId + "\n");
-				}
-			} else {
-				String url = BUNDLE_LICENSE.get(mapping);
-				if (url != null) {
-					writer.write("which is available here: " + url + "\n");
-				} else {
-					logger.log(ERROR, "No licence URL for " + jarDir);
+	private final Map<String, ZipIndex.Entry> held;
+	private final Path spillPath;
+	private final CountingOutputStream spill;
+
+	ZipWriter(OutputStream out, int level) {
+		this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		this.deflater = new Deflater(level, true);
+		this.dosTime = dosTime(LocalDateTime.now());
+		this.held = null;
+		this.spillPath = null;
+		this.spill = null;
+	}
+
+	/**
+	 * @param order     the order in which the entries are written when the archive
+	 *                  is closed
+	 * @param spillPath where the held entries are written until then, deleted when
+	 *                  the archive is closed
+	 */
+	ZipWriter(OutputStream out, int level, Comparator<String> order, Path spillPath) throws IOException {
+		this.spill = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(spillPath), BUFFER_SIZE));
+		this.spillPath = spillPath;
+		this.held = new TreeMap<>(order);
+		this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		this.deflater = new Deflater(level, true);
+		this.dosTime = dosTime(LocalDateTime.now());
+	}
+
+	/** Compresses a new entry. */
+	void write(String name, InputStream in) throws IOException {
+		if (held != null) {
+			long spillOffset = spill.count;
+			deflate(in, spill);
+			hold(new ZipIndex.Entry(null, name, FLAG_UTF8, ZipEntry.DEFLATED, dosTime, (int) crc.getValue(),
+					deflater.getBytesWritten(), deflater.getBytesRead(), spillOffset));
+			return;
+		}
+		int flags = FLAG_DATA_DESCRIPTOR | FLAG_UTF8;
+		long offset = out.count;
+		writeLocalHeader(name, flags, ZipEntry.DEFLATED, dosTime, 0, 0, 0);
+
+		deflate(in, out);
+		int crcValue = (int) crc.getValue();
+		long compressedSize = deflater.getBytesWritten();
+		long size = deflater.getBytesRead();
+
+		// the sizes were not known when writing the local header
+		ByteBuffer descriptor;
+		if (compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC)
+			descriptor = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN).putInt(DATA_DESCRIPTOR)
+					.putInt(crcValue).putLong(compressedSize).putLong(size);
+		else
+			descriptor = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putInt(DATA_DESCRIPTOR)
+					.putInt(crcValue).putInt((int) compressedSize).putInt((int) size);
+		out.write(descriptor.array());
+		written.add(new ZipIndex.Entry(null, name, flags, ZipEntry.DEFLATED, dosTime, crcValue, compressedSize, size,
+				offset));
+	}
+
+	/** Copies an entry from another archive, without decompressing it. */
+	void copy(String name, ZipIndex.Entry entry) throws IOException {
+		if (held != null) {
+			long spillOffset = spill.count;
+			entry.index.copyData(entry, spill);
+			hold(new ZipIndex.Entry(null, name, FLAG_UTF8, entry.method, entry.dosTime, entry.crc,
+					entry.compressedSize, entry.size, spillOffset));
+			return;
+		}
+		int flags = FLAG_UTF8;
+		long offset = out.count;
+		writeLocalHeader(name, flags, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size);
+		entry.index.copyData(entry, out);
+		written.add(new ZipIndex.Entry(null, name, flags, entry.method, entry.dosTime, entry.crc,
+				entry.compressedSize, entry.size, offset));
+	}
+
+	/** Compresses to this stream, the CRC and the sizes being then available. */
+	private void deflate(InputStream in, OutputStream target) throws IOException {
+		crc.reset();
+		deflater.reset();
+		DeflaterOutputStream deflaterOut = new DeflaterOutputStream(target, deflater, BUFFER_SIZE);
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			crc.update(buffer, 0, n);
+			deflaterOut.write(buffer, 0, n);
+		}
+		deflaterOut.finish();
+	}
+
+	private void hold(ZipIndex.Entry entry) throws ZipException {
+		if (held.putIfAbsent(entry.name, entry) != null)
+			throw new ZipException("duplicate entry: " + entry.name);
+	}
+
+	/** Copies the compressed data of a held entry from the spill file. */
+	private void unspill(FileChannel channel, ZipIndex.Entry entry) throws IOException {
+		long position = entry.offset;
+		long remaining = entry.compressedSize;
+		while (remaining > 0) {
+			int n = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining)), position);
+			if (n < 0)
+				throw new EOFException("Unexpected end of " + spillPath);
+			out.write(buffer, 0, n);
+			position = position + n;
+			remaining = remaining - n;
+		}
+	}
+
+	private void writeLocalHeader(String name, int flags, int method, int time, int crcValue, long compressedSize,
+			long size) throws IOException {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		// both sizes are in the ZIP64 extra field if one of them is too large
+		boolean zip64 = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+		byte[] extra = extra(zip64 ? new long[] { size, compressedSize } : new long[0]);
+		ByteBuffer header = ByteBuffer.allocate(ZipIndex.LOCAL_HEADER_SIZE + nameBytes.length + extra.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(ZipIndex.LOCAL_HEADER);
+		header.putShort(versionNeeded(method, zip64));
+		header.putShort((short) flags);
+		header.putShort((short) method);
+		header.putInt(time);
+		header.putInt(crcValue);
+		header.putInt(zip64 ? (int) ZIP64_MAGIC : (int) compressedSize);
+		header.putInt(zip64 ? (int) ZIP64_MAGIC : (int) size);
+		header.putShort((short) nameBytes.length);
+		header.putShort((short) extra.length);
+		header.put(nameBytes);
+		header.put(extra);
+		out.write(header.array());
+	}
+
+	/** Writes the held entries, if any, and the central directory. */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (held != null) {
+				spill.close();
+				try (FileChannel channel = FileChannel.open(spillPath, StandardOpenOption.READ)) {
+					for (ZipIndex.Entry entry : held.values()) {
+						long offset = out.count;
+						writeLocalHeader(entry.name, entry.flags, entry.method, entry.dosTime, entry.crc,
+								entry.compressedSize, entry.size);
+						unspill(channel, entry);
+						written.add(new ZipIndex.Entry(null, entry.name, entry.flags, entry.method, entry.dosTime,
+								entry.crc, entry.compressedSize, entry.size, offset));
+					}
 				}
 			}
-
-			// origin
-			String originDesc = ARGEO_ORIGIN_URI.get(mapping);
-			if (originDesc != null)
-				writer.append("\nThe original component comes from " + originDesc + ".\n");
-			else {
-				String m2Repo = ARGEO_ORIGIN_M2_REPO.get(mapping);
-				originDesc = ARGEO_ORIGIN_M2.get(mapping);
-				if (originDesc != null)
-					writer.append("\nThe original component has M2 coordinates:\n" + originDesc.replace(',', '\n')
-							+ "\n" + (m2Repo != null ? "\nin M2 repository " + m2Repo + "\n" : ""));
-				else
-					logger.log(ERROR, "Cannot find origin information in " + jarDir);
+			long directoryOffset = out.count;
+			for (ZipIndex.Entry entry : written) {
+				byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+				// only the values which are too large are in the ZIP64 extra field, in this order
+				long[] zip64Values = Arrays.stream(new long[] { entry.size, entry.compressedSize, entry.offset })
+						.filter((value) -> value >= ZIP64_MAGIC).toArray();
+				boolean zip64 = zip64Values.length != 0;
+				byte[] extra = zip64Extra(zip64Values);
+				ByteBuffer header = ByteBuffer
+						.allocate(ZipIndex.CENTRAL_HEADER_SIZE + nameBytes.length + extra.length)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(ZipIndex.CENTRAL_HEADER);
+				header.putShort(versionNeeded(entry.method, zip64)); // version made by
+				header.putShort(versionNeeded(entry.method, zip64));
+				header.putShort((short) entry.flags);
+				header.putShort((short) entry.method);
+				header.putInt(entry.dosTime);
+				header.putInt(entry.crc);
+				header.putInt((int) Math.min(entry.compressedSize, ZIP64_MAGIC));
+				header.putInt((int) Math.min(entry.size, ZIP64_MAGIC));
+				header.putShort((short) nameBytes.length);
+				header.putShort((short) extra.length);
+				header.putShort((short) 0); // comment length
+				header.putShort((short) 0); // disk number
+				header.putShort((short) 0); // internal attributes
+				header.putInt(0); // external attributes
+				header.putInt((int) Math.min(entry.offset, ZIP64_MAGIC));
+				header.put(nameBytes);
+				header.put(extra);
+				out.write(header.array());
+			}
+			long directorySize = out.count - directoryOffset;
+
+			if (written.size() >= ZIP64_MAGIC_COUNT || directorySize >= ZIP64_MAGIC
+					|| directoryOffset >= ZIP64_MAGIC) {
+				long end64Offset = out.count;
+				ByteBuffer end64 = ByteBuffer.allocate(ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				end64.putInt(ZipIndex.ZIP64_END_OF_CENTRAL_DIRECTORY);
+				end64.putLong(ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE - 12); // size of the rest of the record
+				end64.putShort((short) 45); // version made by
+				end64.putShort((short) 45);
+				end64.putInt(0); // disk number
+				end64.putInt(0); // disk with the central directory
+				end64.putLong(written.size());
+				end64.putLong(written.size());
+				end64.putLong(directorySize);
+				end64.putLong(directoryOffset);
+				out.write(end64.array());
+
+				ByteBuffer locator = ByteBuffer.allocate(ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				locator.putInt(ZipIndex.ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR);
+				locator.putInt(0); // disk with the ZIP64 end of central directory
+				locator.putLong(end64Offset);
+				locator.putInt(1); // number of disks
+				out.write(locator.array());
 			}
-			String originSources = ARGEO_ORIGIN_SOURCES_URI.get(mapping);
-			if (originSources != null)
-				writer.append("\nThe original sources come from " + originSources + ".\n");
-
-			if (Files.exists(jarDir.resolve(CHANGES)))
-				writer.append("\nA detailed list of changes is available under " + CHANGES + ".\n");
 
-			if (!jarDir.getFileName().toString().endsWith(".src")) {// binary archive
-				if (separateSources)
-					writer.append("Corresponding sources are available in the related archive named "
-							+ jarDir.toString() + ".src.jar.\n");
-				else
-					writer.append("Corresponding sources are available under OSGI-OPT/src.\n");
+			ByteBuffer end = ByteBuffer.allocate(ZipIndex.END_OF_CENTRAL_DIRECTORY_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(ZipIndex.END_OF_CENTRAL_DIRECTORY);
+			end.putShort((short) 0); // disk number
+			end.putShort((short) 0); // disk with the central directory
+			end.putShort((short) Math.min(written.size(), ZIP64_MAGIC_COUNT));
+			end.putShort((short) Math.min(written.size(), ZIP64_MAGIC_COUNT));
+			end.putInt((int) Math.min(directorySize, ZIP64_MAGIC));
+			end.putInt((int) Math.min(directoryOffset, ZIP64_MAGIC));
+			end.putShort((short) 0); // comment length
+			out.write(end.array());
+		} finally {
+			deflater.end();
+			try {
+				out.close();
+			} finally {
+				if (spill != null) {
+					spill.close();
+					Files.deleteIfExists(spillPath);
+				}
 			}
 		}
 	}
 
 	/**
-	 * Gathers modifications performed on the original binaries and sources,
-	 * especially in order to comply with their license requirements.
+	 * The extra field of the entry about to be written, with these ZIP64 values,
+	 * if any.
 	 */
-	class A2Origin {
-		A2Origin() {
+	private byte[] extra(long[] zip64Values) {
+		if (out.count != 0)
+			return zip64Extra(zip64Values);
+		// JAR magic number with no data, as written by JarOutputStream
+		ByteBuffer extra = ByteBuffer.allocate(4 + (zip64Values.length != 0 ? 4 + 8 * zip64Values.length : 0))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		extra.putShort((short) JAR_MAGIC).putShort((short) 0);
+		return extra.put(zip64Extra(zip64Values)).array();
+	}
+
+	/** The ZIP64 extra field with these values, or nothing if there are none. */
+	private static byte[] zip64Extra(long[] values) {
+		if (values.length == 0)
+			return new byte[0];
+		ByteBuffer extra = ByteBuffer.allocate(4 + 8 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+		extra.putShort((short) ZipIndex.ZIP64_EXTRA).putShort((short) (8 * values.length));
+		for (long value : values)
+			extra.putLong(value);
+		return extra.array();
+	}
+
+	private static short versionNeeded(int method, boolean zip64) {
+		return (short) (zip64 ? 45 : method == ZipEntry.STORED ? 10 : 20);
+	}
 
+	/** Time in MS-DOS format, as used by ZIP. */
+	static int dosTime(LocalDateTime time) {
+		if (time.getYear() < 1980)
+			return (1 << 21) | (1 << 16);
+		return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+				| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+
+	/** Keeps track of the position in the archive, or in the spill file. */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
 		}
 
-		Set<String> modified = new TreeSet<>();
-		Set<String> deleted = new TreeSet<>();
-		Set<String> added = new TreeSet<>();
-		Set<String> moved = new TreeSet<>();
-
-		/** Append changes to the A2-ORIGIN/changes file. */
-		void appendChanges(Path baseDirectory) throws IOException {
-			if (modified.isEmpty() && deleted.isEmpty() && added.isEmpty() && moved.isEmpty())
-				return; // no changes
-			Path changesFile = baseDirectory.resolve(CHANGES);
-			Files.createDirectories(changesFile.getParent());
-			try (BufferedWriter writer = Files.newBufferedWriter(changesFile, APPEND, CREATE)) {
-				for (String msg : added)
-					writer.write("- Added " + msg + ".\n");
-				for (String msg : modified)
-					writer.write("- Modified " + msg + ".\n");
-				for (String msg : moved)
-					writer.write("- Moved " + msg + ".\n");
-				for (String msg : deleted)
-					writer.write("- Deleted " + msg + ".\n");
-			}
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count = count + len;
 		}
 	}
 }
@@ -0,0 +1,273 @@
+package org.argeo.build;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests {@link Downloader} against a local HTTP server, which supports range
+ * requests and publishes checksums next to the files.
+ */
+public class DownloaderTest {
+	final static String ETAG = "\"v1\"";
+
+	private final byte[] content = new byte[300 * 1024];
+	/** The number of requests, by path. */
+	private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+	/** The Range headers which have been received. */
+	private final List<String> ranges = new CopyOnWriteArrayList<>();
+
+	private HttpServer server;
+	private Path base;
+	private Downloader downloader;
+
+	public static void main(String[] args) throws Exception {
+		DownloaderTest test = new DownloaderTest();
+		test.setUp();
+		try {
+			test.testDownload();
+			test.testResume();
+			test.testNotFound();
+			test.testChecksumMismatch();
+			test.testConcurrentDownloads();
+			test.testStore();
+			test.testQuery();
+			test.testPinnedCached();
+			test.testRank();
+		} finally {
+			test.tearDown();
+		}
+		System.out.println(DownloaderTest.class.getSimpleName() + ": all tests passed");
+	}
+
+	void setUp() throws IOException {
+		new Random(0).nextBytes(content);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		base = Files.createTempDirectory("argeo-build-test-");
+		downloader = new Downloader(Downloader.newHttpClient(), 4, base.resolve("store"), base.resolve("locks"),
+				false);
+	}
+
+	void tearDown() throws IOException {
+		server.stop(0);
+		Repackage.deleteDirectory(base);
+	}
+
+	/** A plain download, verified against the published checksum. */
+	void testDownload() throws IOException {
+		Path dest = base.resolve("m2/file.jar");
+		downloader.download(uri("/file.jar"), dest);
+		check(Arrays.equals(content, Files.readAllBytes(dest)), "Downloaded content differs");
+		checkNoLitter(dest.getParent());
+		requests.clear();
+		downloader.download(uri("/file.jar"), dest);
+		check(requests.isEmpty(), "Cached file has been downloaded again");
+	}
+
+	/** A partial download with a validator is resumed. */
+	void testResume() throws IOException {
+		Path dest = base.resolve("m2/resumed.jar");
+		Files.createDirectories(dest.getParent());
+		Path part = dest.resolveSibling(dest.getFileName() + Downloader.PART_SUFFIX);
+		Files.write(part, Arrays.copyOf(content, 100_000));
+		Files.writeString(Downloader.validatorPath(part), ETAG);
+		ranges.clear();
+		downloader.download(uri("/resumed.jar"), dest);
+		check(ranges.contains("bytes=100000-"), "Download has not been resumed: " + ranges);
+		check(Arrays.equals(content, Files.readAllBytes(dest)), "Resumed content differs");
+		checkNoLitter(dest.getParent());
+	}
+
+	/** A missing remote file fails, and leaves nothing behind. */
+	void testNotFound() throws IOException {
+		Path dest = base.resolve("m2/missing-sources.jar");
+		try {
+			downloader.download(uri("/missing-sources.jar"), dest);
+			throw new AssertionError("Missing file has been downloaded");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+		check(!Files.exists(dest), "Missing file exists");
+		checkNoLitter(dest.getParent());
+	}
+
+	/** A download which does not match the published checksum fails. */
+	void testChecksumMismatch() throws IOException {
+		Path dest = base.resolve("m2/corrupted.jar");
+		try {
+			downloader.download(uri("/corrupted.jar"), dest);
+			throw new AssertionError("Corrupted file has been accepted");
+		} catch (FileNotFoundException e) {
+			throw new AssertionError("Unexpected failure", e);
+		} catch (IOException e) {
+			check(e.getMessage().contains("Checksum"), "Unexpected failure: " + e);
+		}
+		check(!Files.exists(dest), "Corrupted file exists");
+		checkNoLitter(dest.getParent());
+	}
+
+	/** The same file requested concurrently is transferred once. */
+	void testConcurrentDownloads() throws Exception {
+		Path dest = base.resolve("m2/concurrent.jar");
+		Callable<Path> download = () -> downloader.download(uri("/slow/concurrent.jar"), dest);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<Path>> results = new ArrayList<>();
+			for (int i = 0; i < 2; i++)
+				results.add(executor.submit(download));
+			for (Future<Path> result : results)
+				check(result.get().equals(dest), "Unexpected destination " + result.get());
+		} finally {
+			executor.shutdownNow();
+		}
+		check(requests.get("/slow/concurrent.jar").get() == 1,
+				"Concurrent downloads transferred " + requests.get("/slow/concurrent.jar") + " times");
+		check(Arrays.equals(content, Files.readAllBytes(dest)), "Downloaded content differs");
+	}
+
+	/** A file already in the store is provided to another location, with its pinned checksum. */
+	void testStore() throws IOException {
+		Path dest = base.resolve("m2/stored.jar");
+		String checksum = Downloader.checksum(writeContent(), "sha512");
+		downloader.download(uri("/stored.jar"), dest, checksum);
+		check(Files.readAllLines(downloader.uriPath(uri("/stored.jar"))).contains(checksum),
+				"Verified checksum has not been recorded");
+		requests.clear();
+		Path other = base.resolve("other/stored.jar");
+		downloader.download(uri("/stored.jar"), other, checksum);
+		check(requests.isEmpty(), "Stored file has been downloaded again");
+		check(Arrays.equals(content, Files.readAllBytes(other)), "Provided content differs");
+		try {
+			downloader.download(uri("/stored.jar"), base.resolve("other/mismatch.jar"), "sha512:" + "0".repeat(128));
+			throw new AssertionError("Stored file not matching the pinned checksum has been provided");
+		} catch (IOException e) {
+			check(e.getMessage().contains("Checksum"), "Unexpected failure: " + e);
+		}
+	}
+
+	/** The published checksum of a URI with a query is next to its path. */
+	void testQuery() throws IOException {
+		Path dest = base.resolve("m2/query.jar");
+		requests.clear();
+		downloader.download(uri("/query.jar?token=secret#fragment"), dest);
+		check(requests.containsKey("/query.jar.sha512"), "Checksum not requested next to the path: " + requests);
+		check(Arrays.equals(content, Files.readAllBytes(dest)), "Downloaded content differs");
+	}
+
+	/** A cached file which does not match its pinned checksum is downloaded again. */
+	void testPinnedCached() throws IOException {
+		Path dest = base.resolve("m2/pinned.jar");
+		Files.writeString(dest, "corrupted");
+		downloader.download(uri("/pinned.jar"), dest, Downloader.checksum(writeContent(), "sha512"));
+		check(Arrays.equals(content, Files.readAllBytes(dest)), "Corrupted cached file has been kept");
+	}
+
+	/** The sources on the same host are probed once, and only once per process. */
+	void testRank() {
+		String probeRange = "bytes=0-" + (Downloader.PROBE_SIZE - 1);
+		ranges.clear();
+		List<URI> candidates = List.of(uri("/mirror1/file.jar"), uri("/mirror2/file.jar"));
+		check(downloader.rank(candidates).equals(candidates), "Sources on the same host have been reordered");
+		downloader.rank(List.of(uri("/mirror1/other.jar"), uri("/mirror2/other.jar")));
+		check(ranges.stream().filter(probeRange::equals).count() == 1, "Unexpected probes " + ranges);
+	}
+
+	/*
+	 * HTTP SERVER
+	 */
+	void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		requests.computeIfAbsent(path, (p) -> new AtomicInteger()).incrementAndGet();
+		try (exchange) {
+			if (path.startsWith("/slow/"))
+				Thread.sleep(500);
+			if (path.startsWith("/missing")) {
+				exchange.sendResponseHeaders(404, -1);
+			} else if (path.endsWith(".sha512")) {
+				byte[] checksum = (path.startsWith("/corrupted") ? "0".repeat(128)
+						: Downloader.checksum(writeContent(), "sha512").substring("sha512:".length()))
+						.getBytes();
+				exchange.sendResponseHeaders(200, checksum.length);
+				exchange.getResponseBody().write(checksum);
+			} else if (path.endsWith(".sha1")) {
+				exchange.sendResponseHeaders(404, -1);
+			} else {
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+				exchange.getResponseHeaders().add("ETag", ETAG);
+				if (range != null) {
+					ranges.add(range);
+					if (ETAG.equals(ifRange)) {
+						int offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+						exchange.getResponseHeaders().add("Content-Range",
+								"bytes " + offset + "-" + (content.length - 1) + "/" + content.length);
+						exchange.sendResponseHeaders(206, content.length - offset);
+						exchange.getResponseBody().write(content, offset, content.length - offset);
+						return;
+					}
+				}
+				exchange.sendResponseHeaders(200, content.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(content);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** The served content, as a file, in order to compute its checksum. */
+	private Path writeContent() throws IOException {
+		Path file = base.resolve("served-" + HexFormat.of().toHexDigits(content.hashCode()));
+		if (!Files.exists(file))
+			Files.write(file, content);
+		return file;
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	URI uri(String path) {
+		return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+	}
+
+	/** Checks that only complete downloads are left in this directory. */
+	static void checkNoLitter(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			files.forEach((file) -> {
+				String name = file.getFileName().toString();
+				check(!name.endsWith(Downloader.LOCK_SUFFIX) && !name.endsWith(Downloader.PART_SUFFIX)
+						&& !name.endsWith(Downloader.VALIDATOR_SUFFIX), "Unexpected file " + file);
+			});
+		}
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
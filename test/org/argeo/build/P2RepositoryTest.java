@@ -0,0 +1,130 @@
+package org.argeo.build;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * Tests the repackaging of the bundles of a p2 repository, against a local
+ * repository referenced with a <code>file:</code> URI.
+ */
+public class P2RepositoryTest {
+	final static String CATEGORY = "org.example.p2.test";
+
+	private Path base;
+	private Path repo;
+
+	public static void main(String[] args) throws Exception {
+		P2RepositoryTest test = new P2RepositoryTest();
+		test.setUp();
+		try {
+			test.testIncludesAndExcludes();
+		} finally {
+			test.tearDown();
+		}
+		System.out.println(P2RepositoryTest.class.getSimpleName() + ": all tests passed");
+	}
+
+	void setUp() throws IOException {
+		base = Files.createTempDirectory("argeo-build-test-");
+		// the caches are kept within the fixture
+		System.setProperty("user.home", base.resolve("home").toString());
+
+		repo = base.resolve("p2");
+		writeBundle("org.example.p2.one", "1.0.0", null);
+		writeBundle("org.example.p2.one.source", "1.0.0", "org.example.p2.one;version=\"1.0.0\"");
+		writeBundle("org.example.p2.two", "1.0.0", null);
+		writeBundle("org.example.other", "1.0.0", null);
+		StringBuilder artifacts = new StringBuilder();
+		artifacts.append("<?xml version='1.0' encoding='UTF-8'?>\n");
+		artifacts.append("<repository name='Test' type='org.eclipse.equinox.p2.artifact.repository"
+				+ ".simpleRepository' version='1'>\n");
+		artifacts.append("<mappings size='1'>\n");
+		artifacts.append("<rule filter='(&amp; (classifier=osgi.bundle))'"
+				+ " output='${repoUrl}/plugins/${id}_${version}.jar'/>\n");
+		artifacts.append("</mappings>\n");
+		artifacts.append("<artifacts>\n");
+		for (String id : new String[] { "org.example.p2.one", "org.example.p2.one.source", "org.example.p2.two",
+				"org.example.other" }) {
+			String checksum = Repackage.sha256(Files.readAllBytes(repo.resolve("plugins/" + id + "_1.0.0.jar")));
+			artifacts.append("<artifact classifier='osgi.bundle' id='" + id + "' version='1.0.0'>\n");
+			artifacts.append("<properties size='1'><property name='download.checksum.sha-256' value='" + checksum
+					+ "'/></properties>\n");
+			artifacts.append("</artifact>\n");
+		}
+		// a packed variant, which is ignored
+		artifacts.append("<artifact classifier='osgi.bundle' id='org.example.p2.one' version='1.0.0'>\n");
+		artifacts.append("<properties size='1'><property name='format' value='packed'/></properties>\n");
+		artifacts.append("</artifact>\n");
+		artifacts.append("</artifacts>\n");
+		artifacts.append("</repository>\n");
+		Files.writeString(repo.resolve("artifacts.xml"), artifacts);
+
+		Path duDir = Files.createDirectories(base.resolve("descriptors/" + CATEGORY + "/eclipse-test"));
+		Files.writeString(duDir.resolve("common.bnd"),
+				"Argeo-Origin-P2: " + repo.toUri() + "\nSPDX-License-Identifier: CC0-1.0\n");
+		// only the last segment of the patterns is matched against the file names
+		Files.writeString(duDir.resolve("includes.properties"), "eclipse/plugins/org.example.p2.*_*.jar=\n");
+		Files.writeString(duDir.resolve("excludes.properties"), "org.example.p2.two_*.jar=\n");
+	}
+
+	void tearDown() throws IOException {
+		Repackage.deleteDirectory(base);
+	}
+
+	/** Only the included bundles which are not excluded are repackaged, with their sources. */
+	void testIncludesAndExcludes() throws IOException {
+		Path a2Base = base.resolve("a2");
+		Repackage repackage = new Repackage(a2Base, base.resolve("descriptors"));
+		repackage.processCategory(Paths.get(CATEGORY)).join();
+
+		List<String> jars = new ArrayList<>();
+		try (Stream<Path> files = Files.list(a2Base.resolve(CATEGORY))) {
+			files.forEach((file) -> jars.add(file.getFileName().toString()));
+		}
+		check(jars.equals(List.of("org.example.p2.one.1.0.jar")), "Unexpected bundles " + jars);
+		try (JarFile jar = new JarFile(a2Base.resolve(CATEGORY + "/org.example.p2.one.1.0.jar").toFile())) {
+			check(jar.getEntry("org/example/p2/one/one.txt") != null, "Missing binary content");
+			check(jar.getEntry("OSGI-OPT/src/org/example/p2/one/one.txt") != null, "Missing sources");
+		}
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	/** Writes a bundle to the plugins of the repository. */
+	void writeBundle(String id, String version, String sourceBundle) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue("Bundle-ManifestVersion", "2");
+		attributes.putValue("Bundle-SymbolicName", id);
+		attributes.putValue("Bundle-Version", version);
+		if (sourceBundle != null)
+			attributes.putValue("Eclipse-SourceBundle", sourceBundle);
+		Path jar = Files.createDirectories(repo.resolve("plugins")).resolve(id + "_" + version + ".jar");
+		try (OutputStream out = Files.newOutputStream(jar);
+				JarOutputStream jarOut = new JarOutputStream(out, manifest)) {
+			String bundleId = sourceBundle != null ? id.substring(0, id.length() - ".source".length()) : id;
+			String simpleName = bundleId.substring(bundleId.lastIndexOf('.') + 1);
+			jarOut.putNextEntry(new JarEntry(bundleId.replace('.', '/') + "/" + simpleName + ".txt"));
+			jarOut.write(id.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,124 @@
+package org.argeo.build;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests {@link WorkQueue} shared with another process, which claims a unit and
+ * stops responding.
+ */
+public class WorkQueueTest {
+	final static Duration LEASE_RENEWAL = Duration.ofMillis(100);
+	final static Duration LEASE_EXPIRY = Duration.ofMillis(500);
+
+	private Path base;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals("claim")) {// the other process
+			WorkQueue queue = new WorkQueue(Paths.get(args[1]));
+			System.out.println(queue.claim());
+			System.out.flush();
+			// stops responding, without completing the unit nor releasing its lease
+			Runtime.getRuntime().halt(0);
+		}
+
+		WorkQueueTest test = new WorkQueueTest();
+		test.setUp();
+		try {
+			test.testLeaseExpiry();
+		} finally {
+			test.tearDown();
+		}
+		System.out.println(WorkQueueTest.class.getSimpleName() + ": all tests passed");
+	}
+
+	void setUp() throws IOException {
+		base = Files.createTempDirectory("argeo-build-test-");
+	}
+
+	void tearDown() throws IOException {
+		Repackage.deleteDirectory(base);
+	}
+
+	/**
+	 * The unit claimed by a worker which has stopped responding is taken over once
+	 * its lease has expired, and only the results of the plan are reported.
+	 */
+	void testLeaseExpiry() throws Exception {
+		Path workDir = Files.createDirectories(base.resolve("work"));
+		WorkQueue queue = new WorkQueue(workDir, LEASE_RENEWAL, LEASE_EXPIRY);
+		try {
+			List<String> units = List.of("org.example/a", "org.example/b", "org.example/c", "org.example/failing");
+			queue.plan(units);
+			String crashed = claimInOtherProcess(workDir);
+			check(units.contains(crashed), "Unexpected unit claimed by the other process: " + crashed);
+
+			long start = System.nanoTime();
+			List<String> claimed = new ArrayList<>();
+			String unit;
+			while ((unit = queue.claim()) != null) {
+				claimed.add(unit);
+				if (unit.equals("org.example/failing"))
+					queue.complete(unit, new IllegalStateException("Expected failure"), List.of());
+				else
+					queue.complete(unit, null, List.of("a2/" + unit + ".jar"));
+			}
+			check(claimed.size() == units.size() - 1 && !claimed.contains(crashed),
+					"Unexpected units claimed " + claimed + ", " + crashed + " being leased");
+			check(!queue.isFinished(), "Queue is finished while a unit is leased");
+
+			String takenOver = null;
+			while (takenOver == null && System.nanoTime() - start < Duration.ofSeconds(30).toNanos()) {
+				Thread.sleep(LEASE_RENEWAL.toMillis());
+				takenOver = queue.claim();
+			}
+			check(crashed.equals(takenOver), "Lease of " + crashed + " has not been taken over");
+			check(System.nanoTime() - start >= LEASE_EXPIRY.toNanos(), "Lease has been taken over before expiry");
+			if (takenOver.equals("org.example/failing"))
+				queue.complete(takenOver, new IllegalStateException("Expected failure"), List.of());
+			else
+				queue.complete(takenOver, null, List.of("a2/" + takenOver + ".jar"));
+			check(queue.isFinished(), "Queue is not finished while all units are complete");
+
+			Map<String, String> failures = queue.getFailures();
+			check(failures.keySet().equals(Set.of("org.example/failing"))
+					&& failures.get("org.example/failing").contains("Expected failure"),
+					"Unexpected failures " + failures);
+			List<String> outputs = queue.getOutputs();
+			check(outputs.size() == 3 && outputs.containsAll(
+					List.of("a2/org.example/a.jar", "a2/org.example/b.jar", "a2/org.example/c.jar")),
+					"Unexpected outputs " + outputs);
+			queue.end();
+			check(queue.isFinished(), "Queue is not finished once ended");
+		} finally {
+			queue.close();
+		}
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	/** Starts another process, which claims a unit and stops responding. */
+	static String claimInOtherProcess(Path workDir) throws IOException, InterruptedException {
+		String java = ProcessHandle.current().info().command().orElse("java");
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				WorkQueueTest.class.getName(), "claim", workDir.toString())
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		String unit = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).strip();
+		check(process.waitFor() == 0, "Other process has failed");
+		return unit;
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
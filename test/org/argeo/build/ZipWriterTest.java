@@ -0,0 +1,119 @@
+package org.argeo.build;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Tests {@link ZipWriter} against {@link ZipFile}, and {@link ZipIndex}, with
+ * more entries than the ZIP format supports without its ZIP64 extensions.
+ */
+public class ZipWriterTest {
+	final static int ENTRY_COUNT = 70_000;
+
+	private Path base;
+
+	public static void main(String[] args) throws Exception {
+		ZipWriterTest test = new ZipWriterTest();
+		test.setUp();
+		try {
+			test.testManyEntries();
+			test.testManyEntriesOrdered();
+			test.testManyEntriesCopied();
+		} finally {
+			test.tearDown();
+		}
+		System.out.println(ZipWriterTest.class.getSimpleName() + ": all tests passed");
+	}
+
+	void setUp() throws IOException {
+		base = Files.createTempDirectory("argeo-build-test-");
+	}
+
+	void tearDown() throws IOException {
+		Repackage.deleteDirectory(base);
+	}
+
+	/** Entries written as they come. */
+	void testManyEntries() throws IOException {
+		Path zip = base.resolve("many.zip");
+		try (ZipWriter writer = new ZipWriter(Files.newOutputStream(zip), Deflater.DEFAULT_COMPRESSION)) {
+			for (int i = 0; i < ENTRY_COUNT; i++)
+				writer.write(name(i), new ByteArrayInputStream(content(i)));
+		}
+		checkEntries(zip, null);
+	}
+
+	/** Entries held in a spill file, and written in order. */
+	void testManyEntriesOrdered() throws IOException {
+		Path zip = base.resolve("ordered.zip");
+		Path spill = base.resolve("ordered.zip.spill");
+		Comparator<String> order = Comparator.reverseOrder();
+		try (ZipWriter writer = new ZipWriter(Files.newOutputStream(zip), Deflater.DEFAULT_COMPRESSION, order,
+				spill)) {
+			for (int i = 0; i < ENTRY_COUNT; i++)
+				writer.write(name(i), new ByteArrayInputStream(content(i)));
+		}
+		check(!Files.exists(spill), "Spill file has not been deleted");
+		checkEntries(zip, order);
+	}
+
+	/** Entries copied from an archive using the ZIP64 extensions. */
+	void testManyEntriesCopied() throws IOException {
+		Path zip = base.resolve("copied.zip");
+		try (ZipIndex index = new ZipIndex(base.resolve("many.zip"));
+				ZipWriter writer = new ZipWriter(Files.newOutputStream(zip), Deflater.DEFAULT_COMPRESSION)) {
+			for (ZipIndex.Entry entry : index.getEntries())
+				writer.copy(entry.getName(), entry);
+		}
+		checkEntries(zip, null);
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	static String name(int i) {
+		return "dir" + (i / 1000) + "/entry" + i + ".txt";
+	}
+
+	static byte[] content(int i) {
+		return ("content " + i).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Checks all the entries, in this order or in the order they were written. */
+	static void checkEntries(Path zip, Comparator<String> order) throws IOException {
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < ENTRY_COUNT; i++)
+			expected.add(name(i));
+		if (order != null)
+			expected.sort(order);
+
+		try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+			check(zipFile.size() == ENTRY_COUNT, "Unexpected number of entries " + zipFile.size());
+			int i = ENTRY_COUNT - 1;
+			ZipEntry entry = zipFile.getEntry(name(i));
+			check(entry != null, "Missing " + name(i));
+			check(new String(zipFile.getInputStream(entry).readAllBytes(), StandardCharsets.UTF_8)
+					.equals("content " + i), "Unexpected content of " + name(i));
+		}
+		try (ZipIndex index = new ZipIndex(zip)) {
+			List<String> names = new ArrayList<>();
+			for (ZipIndex.Entry entry : index.getEntries())
+				names.add(entry.getName());
+			check(names.equals(expected), "Unexpected entries in " + zip);
+		}
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}